@@ -0,0 +1,245 @@
+package hall.collin.christopher.dataformat.bench;
+
+import hall.collin.christopher.dataformat.NBTag;
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Deterministic generator of benchmark documents. The same shape and seed
+ * always produce the same document, so results from different runs and
+ * different versions of the library can be compared.
+ */
+public final class DocumentGenerator {
+
+	/**
+	 * The kinds of documents that can be generated.
+	 */
+	public enum Shape {
+		/** Compounds nested 64 levels deep, each with a few scalar members. */
+		DEEP,
+		/** One compound with 4096 scalar members of mixed types. */
+		WIDE,
+		/** 16 byte arrays of 64 KiB each, compressible like block data. */
+		BYTE_ARRAYS,
+		/** Lists of 4096 ints, longs, floats and doubles each. */
+		PRIMITIVE_LISTS,
+		/** A list of 8192 short strings and a compound of 1024 string members. */
+		STRINGS,
+		/** A Minecraft-style chunk: sections of block data, entities and height map. */
+		CHUNK
+	}
+
+	/** Seed used when none is given. */
+	public static final long DEFAULT_SEED = 0x4E4254L;
+
+	private static final String[] WORDS = {
+		"minecraft", "stone", "dirt", "grass", "oak", "log", "planks", "water",
+		"lava", "sand", "gravel", "iron", "gold", "diamond", "coal", "ore",
+		"Pos", "Motion", "Rotation", "Health", "Inventory", "Count", "Slot", "id"
+	};
+
+	private final Random random;
+
+	private DocumentGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Generates a document with the default seed.
+	 * @param shape kind of document
+	 * @return the root tag, a TAG_Compound named "" like in level files
+	 */
+	public static NBTag generate(Shape shape) {
+		return generate(shape, DEFAULT_SEED);
+	}
+
+	/**
+	 * Generates a document.
+	 * @param shape kind of document
+	 * @param seed random seed
+	 * @return the root tag, a TAG_Compound named "" like in level files
+	 */
+	public static NBTag generate(Shape shape, long seed) {
+		DocumentGenerator g = new DocumentGenerator(seed);
+		switch(shape){
+			case DEEP:
+				return NBTag.makeCompoundTag("", g.deep(64));
+			case WIDE:
+				return g.wide("", 4096);
+			case BYTE_ARRAYS:
+				return g.byteArrays();
+			case PRIMITIVE_LISTS:
+				return g.primitiveLists();
+			case STRINGS:
+				return g.strings();
+			default:
+				return g.chunk();
+		}
+	}
+
+	/**
+	 * Serializes a tag without compression.
+	 */
+	public static byte[] toBytes(NBTag tag) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try{
+			tag.write(out);
+		} catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Serializes a tag with gzip compression, like level files.
+	 */
+	public static byte[] toGZipBytes(NBTag tag) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(GZIPOutputStream gz = new GZIPOutputStream(out)){
+			tag.write(gz);
+		} catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+		return out.toByteArray();
+	}
+
+	private NBTag deep(int levels) {
+		NBTag[] members = new NBTag[levels > 1 ? 4 : 3];
+		members[0] = new NBTag(Type.TAG_Int, "depth", levels);
+		members[1] = new NBTag(Type.TAG_String, "id", word());
+		members[2] = new NBTag(Type.TAG_Double, "weight", random.nextDouble());
+		if(levels > 1){
+			members[3] = deep(levels - 1);
+		}
+		return NBTag.makeCompoundTag("child", members);
+	}
+
+	private NBTag wide(String name, int n) {
+		NBTag[] members = new NBTag[n];
+		for(int i = 0; i < n; i++){
+			members[i] = scalar(word() + i);
+		}
+		return NBTag.makeCompoundTag(name, members);
+	}
+
+	private NBTag scalar(String name) {
+		switch(random.nextInt(6)){
+			case 0:
+				return new NBTag(Type.TAG_Byte, name, (byte) random.nextInt());
+			case 1:
+				return new NBTag(Type.TAG_Short, name, (short) random.nextInt());
+			case 2:
+				return new NBTag(Type.TAG_Int, name, random.nextInt());
+			case 3:
+				return new NBTag(Type.TAG_Long, name, random.nextLong());
+			case 4:
+				return new NBTag(Type.TAG_Float, name, random.nextFloat());
+			default:
+				return new NBTag(Type.TAG_String, name, word());
+		}
+	}
+
+	private NBTag byteArrays() {
+		NBTag[] members = new NBTag[16];
+		for(int i = 0; i < members.length; i++){
+			members[i] = new NBTag(Type.TAG_Byte_Array, "data" + i, blockData(64 * 1024));
+		}
+		return NBTag.makeCompoundTag("", members);
+	}
+
+	/**
+	 * Returns bytes with runs of a few distinct values, which compress
+	 * about as well as real block data.
+	 */
+	private byte[] blockData(int n) {
+		byte[] b = new byte[n];
+		int i = 0;
+		while(i < n){
+			byte v = (byte) random.nextInt(8);
+			int run = Math.min(n - i, 1 + random.nextInt(32));
+			for(int j = 0; j < run; j++){
+				b[i++] = v;
+			}
+		}
+		return b;
+	}
+
+	private NBTag primitiveLists() {
+		int n = 4096;
+		int[] ints = new int[n];
+		long[] longs = new long[n];
+		float[] floats = new float[n];
+		double[] doubles = new double[n];
+		for(int i = 0; i < n; i++){
+			ints[i] = random.nextInt(256);
+			longs[i] = random.nextLong();
+			floats[i] = random.nextFloat();
+			doubles[i] = random.nextGaussian() * 1000;
+		}
+		return NBTag.makeCompoundTag("",
+				NBTag.makeListTag("ints", ints),
+				NBTag.makeListTag("longs", longs),
+				NBTag.makeListTag("floats", floats),
+				NBTag.makeListTag("doubles", doubles));
+	}
+
+	private NBTag strings() {
+		String[] list = new String[8192];
+		for(int i = 0; i < list.length; i++){
+			list[i] = word() + ":" + word();
+		}
+		NBTag[] members = new NBTag[1024];
+		for(int i = 0; i < members.length; i++){
+			members[i] = new NBTag(Type.TAG_String, "key" + i, word());
+		}
+		return NBTag.makeCompoundTag("",
+				NBTag.makeListTag("names", list),
+				NBTag.makeCompoundTag("lang", members));
+	}
+
+	private NBTag chunk() {
+		List<NBTag> sections = new ArrayList<>();
+		for(int y = 0; y < 16; y++){
+			sections.add(NBTag.makeCompoundTag(null,
+					new NBTag(Type.TAG_Byte, "Y", (byte) y),
+					new NBTag(Type.TAG_Byte_Array, "Blocks", blockData(4096)),
+					new NBTag(Type.TAG_Byte_Array, "Data", blockData(2048)),
+					new NBTag(Type.TAG_Byte_Array, "BlockLight", blockData(2048)),
+					new NBTag(Type.TAG_Byte_Array, "SkyLight", blockData(2048))));
+		}
+		List<NBTag> entities = new ArrayList<>();
+		for(int i = 0; i < 32; i++){
+			entities.add(NBTag.makeCompoundTag(null,
+					new NBTag(Type.TAG_String, "id", "minecraft:" + word()),
+					NBTag.makeListTag("Pos", random.nextDouble() * 16, random.nextDouble() * 256, random.nextDouble() * 16),
+					NBTag.makeListTag("Motion", 0.0, -0.08, 0.0),
+					NBTag.makeListTag("Rotation", random.nextFloat() * 360, 0f),
+					new NBTag(Type.TAG_Short, "Health", (short) 20),
+					new NBTag(Type.TAG_Byte, "OnGround", (byte) 1)));
+		}
+		int[] heights = new int[256];
+		for(int i = 0; i < heights.length; i++){
+			heights[i] = 60 + random.nextInt(8);
+		}
+		NBTag level = NBTag.makeCompoundTag("Level",
+				new NBTag(Type.TAG_Int, "xPos", random.nextInt(1000)),
+				new NBTag(Type.TAG_Int, "zPos", random.nextInt(1000)),
+				new NBTag(Type.TAG_Long, "LastUpdate", random.nextLong()),
+				new NBTag(Type.TAG_Byte, "TerrainPopulated", (byte) 1),
+				NBTag.makeTag("HeightMap", heights),
+				new NBTag(Type.TAG_List, "Sections", sections),
+				new NBTag(Type.TAG_List, "Entities", entities),
+				new NBTag(Type.TAG_List, "TileEntities", Type.TAG_Compound));
+		return NBTag.makeCompoundTag("", level);
+	}
+
+	private String word() {
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+}
@@ -0,0 +1,24 @@
+package hall.collin.christopher.dataformat.bench;
+
+import hall.collin.christopher.dataformat.bench.DocumentGenerator.Shape;
+
+/**
+ * Prints the uncompressed and gzip-compressed size of every generated
+ * document, to put the benchmark scores in relation. Run with
+ * <code>java -cp benchmarks/target/benchmarks.jar
+ * hall.collin.christopher.dataformat.bench.DocumentSizes</code>.
+ */
+public final class DocumentSizes {
+
+	private DocumentSizes() {
+	}
+
+	public static void main(String[] args) {
+		System.out.printf("%-16s %12s %12s %7s%n", "shape", "raw bytes", "gzip bytes", "ratio");
+		for(Shape shape : Shape.values()){
+			byte[] raw = DocumentGenerator.toBytes(DocumentGenerator.generate(shape));
+			byte[] gzip = DocumentGenerator.toGZipBytes(DocumentGenerator.generate(shape));
+			System.out.printf("%-16s %12d %12d %6.1f%%%n", shape.name(), raw.length, gzip.length, 100.0 * gzip.length / raw.length);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package hall.collin.christopher.dataformat.bench;
+
+import hall.collin.christopher.dataformat.NBTag;
+import hall.collin.christopher.dataformat.bench.DocumentGenerator.Shape;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark state holding one generated document as a tree, as raw bytes
+ * and as gzip-compressed bytes. The shape is a JMH parameter, so every
+ * benchmark runs once per shape unless <code>-p shape=...</code> is given.
+ */
+@State(Scope.Benchmark)
+public class Documents {
+
+	@Param({"DEEP", "WIDE", "BYTE_ARRAYS", "PRIMITIVE_LISTS", "STRINGS", "CHUNK"})
+	public Shape shape;
+
+	public NBTag tag;
+	public byte[] raw;
+	public byte[] gzip;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		tag = DocumentGenerator.generate(shape);
+		raw = DocumentGenerator.toBytes(tag);
+		gzip = DocumentGenerator.toGZipBytes(tag);
+	}
+}
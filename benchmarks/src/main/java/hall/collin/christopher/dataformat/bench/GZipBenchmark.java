@@ -0,0 +1,101 @@
+package hall.collin.christopher.dataformat.bench;
+
+import hall.collin.christopher.dataformat.NBTCodecContext;
+import hall.collin.christopher.dataformat.NBTag;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing of gzip-compressed documents, as stored in level
+ * files, once through the static NBTag methods and once through a reused
+ * {@link NBTCodecContext}. Besides operations per second, each benchmark
+ * reports the compressed and uncompressed bytes per second it processed, to
+ * compare with {@link ReadBenchmark} and {@link WriteBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class GZipBenchmark {
+
+	/**
+	 * Byte counters, reported by JMH as rates next to the score.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public long compressedBytes;
+		public long uncompressedBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			compressedBytes = 0;
+			uncompressedBytes = 0;
+		}
+	}
+
+	private ByteArrayOutputStream out;
+	private NBTCodecContext context;
+
+	@Setup(Level.Trial)
+	public void setup(Documents d) {
+		out = new ByteArrayOutputStream(d.gzip.length);
+		context = new NBTCodecContext();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public NBTag readGZip(Documents d, Bytes bytes) throws IOException {
+		NBTag tag = NBTag.readFromGZipStream(new ByteArrayInputStream(d.gzip));
+		bytes.compressedBytes += d.gzip.length;
+		bytes.uncompressedBytes += d.raw.length;
+		return tag;
+	}
+
+	@Benchmark
+	public int writeGZip(Documents d, Bytes bytes) throws IOException {
+		out.reset();
+		d.tag.writeToGZip(out);
+		bytes.compressedBytes += out.size();
+		bytes.uncompressedBytes += d.raw.length;
+		return out.size();
+	}
+
+	@Benchmark
+	public NBTag readGZipContext(Documents d, Bytes bytes) throws IOException {
+		NBTag tag = context.readGZip(new ByteArrayInputStream(d.gzip));
+		bytes.compressedBytes += d.gzip.length;
+		bytes.uncompressedBytes += d.raw.length;
+		return tag;
+	}
+
+	@Benchmark
+	public int writeGZipContext(Documents d, Bytes bytes) throws IOException {
+		out.reset();
+		context.writeGZip(d.tag, out);
+		bytes.compressedBytes += out.size();
+		bytes.uncompressedBytes += d.raw.length;
+		return out.size();
+	}
+}
@@ -0,0 +1,46 @@
+package hall.collin.christopher.dataformat.bench;
+
+import hall.collin.christopher.dataformat.NBTag;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of uncompressed documents through the different read paths.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReadBenchmark {
+
+	@Benchmark
+	public NBTag readStream(Documents d) throws IOException {
+		return NBTag.readNBTag(new DataInputStream(new ByteArrayInputStream(d.raw)));
+	}
+
+	@Benchmark
+	public NBTag readBuffer(Documents d) throws IOException {
+		return NBTag.readNBTag(ByteBuffer.wrap(d.raw), false);
+	}
+
+	@Benchmark
+	public NBTag readBufferSliced(Documents d) throws IOException {
+		return NBTag.readNBTag(ByteBuffer.wrap(d.raw), true);
+	}
+
+	@Benchmark
+	public NBTag readLazy(Documents d) throws IOException {
+		return NBTag.readLazyNBTag(d.raw);
+	}
+}
@@ -0,0 +1,59 @@
+package hall.collin.christopher.dataformat.bench;
+
+import hall.collin.christopher.dataformat.NBTPath;
+import hall.collin.christopher.dataformat.NBTag;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in a decoded tree. <code>findMissing</code> searches for a name
+ * that does not exist and so visits every tag; <code>findLast</code> and
+ * <code>pathLast</code> look up the last member of the root compound by
+ * search and by path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TreeBenchmark {
+
+	private String lastName;
+	private NBTPath lastPath;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setup(Documents d) {
+		for(String name : ((Map<String,NBTag>) d.tag.getValue()).keySet()){
+			lastName = name;
+		}
+		lastPath = NBTPath.compile("\"" + lastName.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+	}
+
+	@Benchmark
+	public NBTag findMissing(Documents d) {
+		return d.tag.findTagByName("no such tag");
+	}
+
+	@Benchmark
+	public NBTag findLast(Documents d) {
+		return d.tag.findTagByName(lastName);
+	}
+
+	@Benchmark
+	public NBTag pathLast(Documents d) {
+		return lastPath.find(d.tag);
+	}
+}
@@ -0,0 +1,43 @@
+package hall.collin.christopher.dataformat.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of documents without compression. The output buffer is reused,
+ * so the allocation reported by the gc profiler is that of the encoder.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WriteBenchmark {
+
+	private ByteArrayOutputStream out;
+
+	@Setup(Level.Trial)
+	public void setup(Documents d) {
+		out = new ByteArrayOutputStream(d.raw.length);
+	}
+
+	@Benchmark
+	public int write(Documents d) throws IOException {
+		out.reset();
+		d.tag.write(out);
+		return out.size();
+	}
+}
@@ -0,0 +1,157 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * DataInput over a ByteBuffer. Reads use absolute gets with a private
+ * position, so many instances can share one buffer without touching its
+ * position or limit.
+ */
+final class ByteBufferInput implements DataInput {
+
+	private final ByteBuffer buf;
+	private final int limit;
+	private int pos;
+
+	/**
+	 * @param buf buffer to read from, must be in big-endian byte order
+	 * @param pos absolute index of the first byte to read
+	 */
+	ByteBufferInput(ByteBuffer buf, int pos) {
+		if(buf.order() != ByteOrder.BIG_ENDIAN){
+			throw new IllegalArgumentException("Buffer must be big-endian");
+		}
+		this.buf = buf;
+		this.limit = buf.limit();
+		this.pos = pos;
+	}
+
+	/**
+	 * Returns the absolute index of the next byte to be read.
+	 */
+	int position() {
+		return pos;
+	}
+
+	ByteBuffer buffer() {
+		return buf;
+	}
+
+	private int advance(int n) throws EOFException {
+		int p = pos;
+		if(n > limit - p){
+			throw new EOFException();
+		}
+		pos = p + n;
+		return p;
+	}
+
+	/**
+	 * Returns the next <code>len</code> bytes as a read-only view of the
+	 * underlying buffer, without copying them.
+	 */
+	ByteBuffer slice(int len) throws EOFException {
+		int p = advance(len);
+		ByteBuffer d = buf.duplicate();
+		d.position(p);
+		d.limit(p + len);
+		return d.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the next <code>len</code> bytes as a big-endian view of the
+	 * underlying buffer, for bulk decoding.
+	 */
+	ByteBuffer view(int len) throws EOFException {
+		int p = advance(len);
+		ByteBuffer d = buf.duplicate();
+		d.position(p);
+		d.limit(p + len);
+		return d.slice();
+	}
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		int p = advance(len);
+		ByteBuffer d = buf.duplicate();
+		d.position(p);
+		d.get(b, off, len);
+	}
+
+	@Override
+	public int skipBytes(int n) {
+		int skipped = Math.max(0, Math.min(n, limit - pos));
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return buf.get(advance(1)) != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return buf.get(advance(1));
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return buf.get(advance(1)) & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		return buf.getShort(advance(2));
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return buf.getShort(advance(2)) & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		return buf.getChar(advance(2));
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return buf.getInt(advance(4));
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		return buf.getLong(advance(8));
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		return buf.getFloat(advance(4));
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return buf.getDouble(advance(8));
+	}
+
+	@Override
+	public String readLine() {
+		throw new UnsupportedOperationException("NBT data has no lines");
+	}
+
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+}
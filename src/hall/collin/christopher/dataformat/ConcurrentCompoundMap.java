@@ -0,0 +1,185 @@
+package hall.collin.christopher.dataformat;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Contents of a TAG_Compound in an {@link NBTConcurrentTree}. Members are
+ * looked up in a ConcurrentHashMap and iterated in insertion order through a
+ * ConcurrentSkipListMap keyed by insertion number, so reads never lock and
+ * iteration never throws ConcurrentModificationException.
+ * <p>
+ * Changes hold the lock of the stripe this map belongs to, which serializes
+ * changes to the same compound and keeps them out of snapshots. Tags added
+ * to the map are converted to the tree first.
+ */
+final class ConcurrentCompoundMap extends AbstractMap<String,NBTag> {
+
+	final NBTConcurrentTree tree;
+	final Lock lock;
+	private final NBTag owner;
+
+	private final ConcurrentHashMap<String,Member> index = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long,Member> order = new ConcurrentSkipListMap<>();
+	/** insertion number of the next new member, guarded by lock */
+	private long next = 0;
+
+	private Set<Map.Entry<String,NBTag>> entrySet = null;
+
+	/**
+	 * @param tree the tree this map is part of
+	 * @param owner tag holding this map, set as the parent of members
+	 */
+	ConcurrentCompoundMap(NBTConcurrentTree tree, NBTag owner) {
+		this.tree = tree;
+		this.lock = tree.stripe(this);
+		this.owner = owner;
+	}
+
+	/**
+	 * Member with a fixed position; replacing its tag keeps the position.
+	 */
+	private static final class Member implements Map.Entry<String,NBTag> {
+
+		final long position;
+		final String key;
+		volatile NBTag tag;
+
+		Member(long position, String key, NBTag tag) {
+			this.position = position;
+			this.key = key;
+			this.tag = tag;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public NBTag getValue() {
+			return tag;
+		}
+
+		@Override
+		public NBTag setValue(NBTag value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public NBTag get(Object key) {
+		Member m = index.get(key);
+		return m == null ? null : m.tag;
+	}
+
+	@Override
+	public NBTag put(String key, NBTag value) {
+		value.makeConcurrent(tree);
+		value.setParent(owner);
+		lock.lock();
+		try{
+			return putUnlocked(key, value);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a member while the map is being built and not yet shared.
+	 */
+	NBTag putUnlocked(String key, NBTag value) {
+		Member m = index.get(key);
+		if(m != null){
+			NBTag old = m.tag;
+			m.tag = value;
+			return old;
+		}
+		m = new Member(next++, key, value);
+		index.put(key, m);
+		order.put(m.position, m);
+		return null;
+	}
+
+	@Override
+	public NBTag remove(Object key) {
+		lock.lock();
+		try{
+			Member m = index.remove(key);
+			if(m == null){
+				return null;
+			}
+			order.remove(m.position);
+			return m.tag;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try{
+			index.clear();
+			order.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String,NBTag>> entrySet() {
+		if(entrySet == null){
+			entrySet = new AbstractSet<Map.Entry<String,NBTag>>() {
+				@Override
+				public Iterator<Map.Entry<String,NBTag>> iterator() {
+					final Iterator<Member> it = order.values().iterator();
+					return new Iterator<Map.Entry<String,NBTag>>() {
+						private Member last = null;
+
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String,NBTag> next() {
+							return last = it.next();
+						}
+
+						@Override
+						public void remove() {
+							if(last == null){
+								throw new IllegalStateException();
+							}
+							ConcurrentCompoundMap.this.remove(last.key);
+							last = null;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return index.size();
+				}
+			};
+		}
+		return entrySet;
+	}
+}
@@ -0,0 +1,119 @@
+package hall.collin.christopher.dataformat;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Contents of a TAG_List of tags in an {@link NBTConcurrentTree}. Elements
+ * are kept in a CopyOnWriteArrayList, so reads never lock and iterators see
+ * the list as it was when they were created.
+ * <p>
+ * Changes hold the lock of the stripe this list belongs to, which keeps them
+ * out of snapshots. Tags added to the list are converted to the tree first.
+ * Lists of numbers stay in a {@link PrimitiveList}; they should be changed
+ * with <code>setValue</code> rather than element by element.
+ */
+final class ConcurrentTagList extends AbstractList<NBTag> implements RandomAccess {
+
+	final NBTConcurrentTree tree;
+	final Lock lock;
+	private final NBTag owner;
+	private final CopyOnWriteArrayList<NBTag> elements;
+
+	/**
+	 * @param tree the tree this list is part of
+	 * @param owner tag holding this list, set as the parent of elements
+	 * @param elements the elements, already converted to the tree
+	 */
+	ConcurrentTagList(NBTConcurrentTree tree, NBTag owner, List<NBTag> elements) {
+		this.tree = tree;
+		this.lock = tree.stripe(this);
+		this.owner = owner;
+		this.elements = new CopyOnWriteArrayList<>(elements);
+	}
+
+	@Override
+	public int size() {
+		return elements.size();
+	}
+
+	@Override
+	public NBTag get(int index) {
+		return elements.get(index);
+	}
+
+	@Override
+	public NBTag set(int index, NBTag element) {
+		element.makeConcurrent(tree);
+		element.setParent(owner);
+		lock.lock();
+		try{
+			return elements.set(index, element);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean add(NBTag element) {
+		element.makeConcurrent(tree);
+		element.setParent(owner);
+		lock.lock();
+		try{
+			return elements.add(element);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void add(int index, NBTag element) {
+		element.makeConcurrent(tree);
+		element.setParent(owner);
+		lock.lock();
+		try{
+			elements.add(index, element);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public NBTag remove(int index) {
+		lock.lock();
+		try{
+			return elements.remove(index);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		lock.lock();
+		try{
+			elements.subList(fromIndex, toIndex).clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try{
+			elements.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Iterator<NBTag> iterator() {
+		return elements.iterator();
+	}
+}
@@ -0,0 +1,295 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Pure-Java block compressor for {@link NBTCompression#FAST}. Data is split
+ * into independent blocks of up to 64 KiB, and each block is encoded in the
+ * LZ4 block format: sequences of literals and back-references found with a
+ * single hash probe per position, trading ratio for speed.
+ * <p>
+ * The stream starts with the magic bytes <code>NBZ4</code>, followed by
+ * blocks of an int uncompressed length, an int encoded length and the
+ * encoded bytes, and ends with a zero length. A block whose encoded length
+ * equals its uncompressed length is stored as is.
+ */
+final class FastBlockCodec {
+
+	static final byte[] MAGIC = {'N', 'B', 'Z', '4'};
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final int MIN_MATCH = 4;
+	/** the last literals of a block, which never start a match */
+	private static final int LAST_LITERALS = 5;
+	/** no match starts in the last bytes of a block */
+	private static final int MATCH_LIMIT = 12;
+	private static final int HASH_BITS = 13;
+	private static final int SKIP_TRIGGER = 6;
+
+	private FastBlockCodec() {
+	}
+
+	/**
+	 * Writes the magic, the blocks and the end marker.
+	 */
+	static void compress(byte[] src, int off, int len, OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.write(MAGIC);
+		byte[] dst = new byte[maxEncodedLength(BLOCK_SIZE)];
+		int[] table = new int[1 << HASH_BITS];
+		for(int p = off, end = off + len; p < end; p += BLOCK_SIZE){
+			int n = Math.min(BLOCK_SIZE, end - p);
+			int encoded = encodeBlock(src, p, n, dst, table);
+			dos.writeInt(n);
+			if(encoded >= n){
+				dos.writeInt(n);
+				dos.write(src, p, n);
+			} else {
+				dos.writeInt(encoded);
+				dos.write(dst, 0, encoded);
+			}
+		}
+		dos.writeInt(0);
+		dos.flush();
+	}
+
+	static int maxEncodedLength(int n) {
+		return n + n / 255 + 16;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+
+	private static int hash(int v) {
+		return (v * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Encodes one block of up to 64 KiB in the LZ4 block format.
+	 * @return the encoded length
+	 */
+	static int encodeBlock(byte[] src, int off, int len, byte[] dst, int[] table) {
+		int end = off + len;
+		int anchor = off;
+		int dp = 0;
+		if(len > MATCH_LIMIT){
+			// positions are stored relative to the block, plus one
+			Arrays.fill(table, 0);
+			int limit = end - MATCH_LIMIT;
+			int matchEnd = end - LAST_LITERALS;
+			int ip = off;
+			int misses = 0;
+			while(ip < limit){
+				int v = readInt(src, ip);
+				int h = hash(v);
+				int ref = table[h] - 1 + off;
+				table[h] = ip - off + 1;
+				if(ref < off || ip - ref > 0xffff || readInt(src, ref) != v){
+					ip += 1 + (misses++ >>> SKIP_TRIGGER);
+					continue;
+				}
+				misses = 0;
+				// extend backwards over pending literals
+				while(ip > anchor && ref > off && src[ip - 1] == src[ref - 1]){
+					ip--;
+					ref--;
+				}
+				int matchLen = MIN_MATCH;
+				while(ip + matchLen < matchEnd && src[ref + matchLen] == src[ip + matchLen]){
+					matchLen++;
+				}
+				dp = writeSequence(src, anchor, ip - anchor, dst, dp, ip - ref, matchLen);
+				ip += matchLen;
+				anchor = ip;
+			}
+		}
+		return writeLastLiterals(src, anchor, end - anchor, dst, dp);
+	}
+
+	private static int writeSequence(byte[] src, int lit, int litLen, byte[] dst, int dp, int offset, int matchLen) {
+		int token = dp++;
+		dp = writeLiterals(src, lit, litLen, dst, dp, token);
+		dst[dp++] = (byte) offset;
+		dst[dp++] = (byte) (offset >>> 8);
+		int ml = matchLen - MIN_MATCH;
+		if(ml >= 15){
+			dst[token] |= 15;
+			dp = writeLength(dst, dp, ml - 15);
+		} else {
+			dst[token] |= ml;
+		}
+		return dp;
+	}
+
+	private static int writeLastLiterals(byte[] src, int lit, int litLen, byte[] dst, int dp) {
+		int token = dp++;
+		return writeLiterals(src, lit, litLen, dst, dp, token);
+	}
+
+	private static int writeLiterals(byte[] src, int lit, int litLen, byte[] dst, int dp, int token) {
+		if(litLen >= 15){
+			dst[token] = (byte) (15 << 4);
+			dp = writeLength(dst, dp, litLen - 15);
+		} else {
+			dst[token] = (byte) (litLen << 4);
+		}
+		System.arraycopy(src, lit, dst, dp, litLen);
+		return dp + litLen;
+	}
+
+	private static int writeLength(byte[] dst, int dp, int n) {
+		while(n >= 255){
+			dst[dp++] = (byte) 255;
+			n -= 255;
+		}
+		dst[dp++] = (byte) n;
+		return dp;
+	}
+
+	/**
+	 * Decodes one block in the LZ4 block format.
+	 * @return the decoded length
+	 * @throws IOException if the block is corrupt or decodes to more than
+	 * <code>dst.length</code> bytes
+	 */
+	static int decodeBlock(byte[] src, int off, int len, byte[] dst) throws IOException {
+		int sp = off;
+		int end = off + len;
+		int dp = 0;
+		try{
+			while(true){
+				int token = src[sp++] & 0xff;
+				int litLen = token >>> 4;
+				if(litLen == 15){
+					int b;
+					do{
+						b = src[sp++] & 0xff;
+						litLen += b;
+					} while(b == 255);
+				}
+				if(sp + litLen > end || dp + litLen > dst.length){
+					throw new IOException("Corrupt compressed block: literals out of bounds");
+				}
+				System.arraycopy(src, sp, dst, dp, litLen);
+				sp += litLen;
+				dp += litLen;
+				if(sp == end){
+					return dp;
+				}
+				int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+				sp += 2;
+				if(offset == 0 || offset > dp){
+					throw new IOException("Corrupt compressed block: invalid offset " + offset);
+				}
+				int matchLen = token & 15;
+				if(matchLen == 15){
+					int b;
+					do{
+						b = src[sp++] & 0xff;
+						matchLen += b;
+					} while(b == 255);
+				}
+				matchLen += MIN_MATCH;
+				if(dp + matchLen > dst.length){
+					throw new IOException("Corrupt compressed block: match out of bounds");
+				}
+				int ref = dp - offset;
+				if(offset >= matchLen){
+					System.arraycopy(dst, ref, dst, dp, matchLen);
+					dp += matchLen;
+				} else {
+					// overlapping copy repeats the last offset bytes
+					for(int i = 0; i < matchLen; i++){
+						dst[dp++] = dst[ref++];
+					}
+				}
+			}
+		} catch(ArrayIndexOutOfBoundsException ex){
+			throw new IOException("Corrupt compressed block: truncated", ex);
+		}
+	}
+
+	/**
+	 * Decompressing stream; the magic must already have been consumed.
+	 */
+	static final class Input extends InputStream {
+
+		private final DataInputStream in;
+		private final byte[] encoded = new byte[maxEncodedLength(BLOCK_SIZE)];
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int pos = 0;
+		private int limit = 0;
+		private boolean finished = false;
+
+		Input(InputStream in) {
+			this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+		}
+
+		/**
+		 * Decodes the next block; returns false at the end marker.
+		 */
+		private boolean fill() throws IOException {
+			if(finished){
+				return false;
+			}
+			int n = in.readInt();
+			if(n == 0){
+				finished = true;
+				return false;
+			}
+			int encodedLength = in.readInt();
+			if(n < 0 || n > BLOCK_SIZE || encodedLength <= 0 || encodedLength > n){
+				throw new IOException("Corrupt compressed stream: block of " + n + " bytes encoded in " + encodedLength);
+			}
+			if(encodedLength == n){
+				in.readFully(block, 0, n);
+			} else {
+				in.readFully(encoded, 0, encodedLength);
+				if(decodeBlock(encoded, 0, encodedLength, block) != n){
+					throw new IOException("Corrupt compressed stream: block length mismatch");
+				}
+			}
+			pos = 0;
+			limit = n;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(pos == limit && !fill()){
+				return -1;
+			}
+			return block[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0){
+				return 0;
+			}
+			if(pos == limit && !fill()){
+				return -1;
+			}
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(block, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+
+/**
+ * Projection that asks a {@link NBTProjection.Filter} about every tag.
+ */
+final class FilterProjection implements NBTProjection {
+
+	private final String path;
+	private final NBTProjection.Filter filter;
+
+	FilterProjection(String path, NBTProjection.Filter filter) {
+		this.path = path;
+		this.filter = filter;
+	}
+
+	@Override
+	public NBTProjection select(String name, int index, Type type) {
+		String childPath;
+		if(index >= 0){
+			childPath = path + "[" + index + "]";
+		} else if(path.isEmpty()){
+			childPath = name;
+		} else {
+			childPath = path + "." + name;
+		}
+		return filter.accept(childPath, name, type) ? new FilterProjection(childPath, filter) : null;
+	}
+}
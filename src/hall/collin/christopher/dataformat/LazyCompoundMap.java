@@ -0,0 +1,421 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Contents of a TAG_Compound that is decoded on demand. When the compound is
+ * read, only the name, type and payload position of each member is recorded
+ * in a compact index over the raw bytes. A member is decoded the first time
+ * it is looked up or iterated over, and members that were never decoded are
+ * written back by copying their original bytes.
+ * <p>
+ * Members that are compounds themselves are decoded lazily as well. The map
+ * keeps insertion order like the LinkedHashMap used for eagerly decoded
+ * compounds.
+ */
+final class LazyCompoundMap extends AbstractMap<String,NBTag> {
+
+	private static final Type[] TYPES = Type.values();
+	private static final int HASH_THRESHOLD = 8;
+
+	private final ByteBuffer source;
+	private final boolean sliceByteArrays;
+	private final NBTNameCache nameCache;
+	/** payload range of the whole compound, including the closing TAG_End */
+	private final int start;
+	private final int end;
+	private boolean modified = false;
+
+	private int count;
+	private String[] names;
+	private byte[] types;
+	private int[] offsets;
+	private int[] ends;
+	private NBTag[] tags;
+	private int decodedCount = 0;
+
+	/** open-addressing table of index+1, built on first lookup */
+	private int[] hashTable = null;
+
+	/** tag holding this map, set as the parent of decoded members */
+	private NBTag owner = null;
+
+	private Set<Map.Entry<String,NBTag>> entrySet = null;
+	private Set<String> keySet = null;
+
+	private LazyCompoundMap(ByteBuffer source, boolean sliceByteArrays, NBTNameCache nameCache, int start, int end, int count, String[] names, byte[] types, int[] offsets, int[] ends) {
+		this.source = source;
+		this.sliceByteArrays = sliceByteArrays;
+		this.nameCache = nameCache;
+		this.start = start;
+		this.end = end;
+		this.count = count;
+		this.names = names;
+		this.types = types;
+		this.offsets = offsets;
+		this.ends = ends;
+		this.tags = new NBTag[names.length];
+	}
+
+	/**
+	 * Indexes the members of a compound. The reader must be positioned on the
+	 * START_COMPOUND event of a reader over a {@link ByteBufferInput}, and is
+	 * left on the matching END event.
+	 */
+	static LazyCompoundMap index(NBTReader reader, ByteBufferInput in) throws IOException {
+		int start = in.position();
+		int n = 0;
+		String[] names = new String[8];
+		byte[] types = new byte[8];
+		int[] offsets = new int[8];
+		int[] ends = new int[8];
+		while(reader.next() != NBTReader.Event.END){
+			if(n == names.length){
+				int len = n * 2;
+				names = Arrays.copyOf(names, len);
+				types = Arrays.copyOf(types, len);
+				offsets = Arrays.copyOf(offsets, len);
+				ends = Arrays.copyOf(ends, len);
+			}
+			names[n] = reader.getName();
+			types[n] = (byte) reader.getType().ordinal();
+			offsets[n] = in.position();
+			reader.skip();
+			ends[n] = in.position();
+			n++;
+		}
+		return new LazyCompoundMap(in.buffer(), reader.isSlicingByteArrays(), reader.getNameCache(), start, in.position(), n, names, types, offsets, ends);
+	}
+
+	/**
+	 * Returns the type of the member at the given index without decoding it.
+	 */
+	Type typeAt(int i) {
+		return TYPES[types[i]];
+	}
+
+	/**
+	 * Returns the member at the given index, decoding it if necessary.
+	 */
+	NBTag tagAt(int i) {
+		NBTag tag = tags[i];
+		if(tag == null){
+			try{
+				Type t = typeAt(i);
+				NBTReader reader = new NBTReader(new ByteBufferInput(source, offsets[i]), t, true, sliceByteArrays);
+				reader.setNameCache(nameCache);
+				tag = new NBTag(t, names[i], reader.readPayload());
+			} catch(IOException ex){
+				throw new UncheckedIOException("Corrupt lazy NBT data for tag " + names[i], ex);
+			}
+			tag.setParent(owner);
+			tags[i] = tag;
+			decodedCount++;
+		}
+		return tag;
+	}
+
+	void setOwner(NBTag owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Returns the member at the given index if it has been decoded, or null.
+	 */
+	NBTag decodedAt(int i) {
+		return tags[i];
+	}
+
+	/**
+	 * Returns true if no member has been decoded, added or removed.
+	 */
+	boolean isPristine() {
+		return !modified && decodedCount == 0;
+	}
+
+	/**
+	 * Writes the members and the closing TAG_End. Members that were never
+	 * decoded are copied from the source bytes.
+	 */
+	void writePayload(DataOutputStream dos) throws IOException {
+		if(isPristine()){
+			copySource(dos, start, end);
+			return;
+		}
+		for(int i = 0; i < count; i++){
+			NBTag tag = tags[i];
+			dos.writeByte(types[i]);
+			dos.writeUTF(names[i]);
+			if(tag == null){
+				copySource(dos, offsets[i], ends[i]);
+			} else {
+				tag.writePayload(dos);
+			}
+		}
+		dos.writeByte(0);// TAG_End
+	}
+
+	/**
+	 * Returns the number of bytes {@link #writePayload(DataOutputStream)}
+	 * writes, without decoding any member.
+	 */
+	long payloadSize() {
+		if(isPristine()){
+			return end - start;
+		}
+		long n = 1;
+		for(int i = 0; i < count; i++){
+			NBTag tag = tags[i];
+			n += 3 + NBTBufferEncoder.utfLength(names[i]);
+			if(tag == null){
+				n += ends[i] - offsets[i];
+			} else {
+				tag.setParent(owner);
+				n += tag.payloadSize();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Same as {@link #writePayload(DataOutputStream)}, into a buffer.
+	 */
+	void encode(NBTBufferEncoder enc) {
+		if(isPristine()){
+			enc.putBytes(source, start, end);
+			return;
+		}
+		for(int i = 0; i < count; i++){
+			NBTag tag = tags[i];
+			enc.putByte(types[i]);
+			enc.putUTF(names[i]);
+			if(tag == null){
+				enc.putBytes(source, offsets[i], ends[i]);
+			} else {
+				enc.putPayload(tag);
+			}
+		}
+		enc.putByte(0);// TAG_End
+	}
+
+	private void copySource(DataOutputStream dos, int from, int to) throws IOException {
+		ByteBuffer d = source.duplicate();
+		d.limit(to);
+		d.position(from);
+		NBTag.writeBuffer(dos, d);
+	}
+
+	private int indexOf(Object key) {
+		if(!(key instanceof String)){
+			return -1;
+		}
+		if(count <= HASH_THRESHOLD){
+			for(int i = 0; i < count; i++){
+				if(names[i].equals(key)){
+					return i;
+				}
+			}
+			return -1;
+		}
+		if(hashTable == null){
+			buildHashTable();
+		}
+		int mask = hashTable.length - 1;
+		for(int h = key.hashCode() & mask; hashTable[h] != 0; h = (h + 1) & mask){
+			int i = hashTable[h] - 1;
+			if(names[i].equals(key)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void buildHashTable() {
+		int size = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+		int[] table = new int[size];
+		int mask = size - 1;
+		for(int i = 0; i < count; i++){
+			int h = names[i].hashCode() & mask;
+			while(table[h] != 0){
+				h = (h + 1) & mask;
+			}
+			table[h] = i + 1;
+		}
+		hashTable = table;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public NBTag get(Object key) {
+		int i = indexOf(key);
+		return i < 0 ? null : tagAt(i);
+	}
+
+	@Override
+	public NBTag put(String key, NBTag value) {
+		modified = true;
+		int i = indexOf(key);
+		if(i >= 0){
+			NBTag old = tagAt(i);
+			tags[i] = value;
+			types[i] = (byte) value.getType().ordinal();
+			return old;
+		}
+		if(count == names.length){
+			int len = Math.max(8, count * 2);
+			names = Arrays.copyOf(names, len);
+			types = Arrays.copyOf(types, len);
+			offsets = Arrays.copyOf(offsets, len);
+			ends = Arrays.copyOf(ends, len);
+			tags = Arrays.copyOf(tags, len);
+		}
+		names[count] = key;
+		types[count] = (byte) value.getType().ordinal();
+		offsets[count] = -1;
+		ends[count] = -1;
+		tags[count] = value;
+		count++;
+		hashTable = null;
+		return null;
+	}
+
+	@Override
+	public NBTag remove(Object key) {
+		int i = indexOf(key);
+		if(i < 0){
+			return null;
+		}
+		NBTag old = tagAt(i);
+		removeAt(i);
+		return old;
+	}
+
+	private void removeAt(int i) {
+		modified = true;
+		int tail = count - i - 1;
+		System.arraycopy(names, i + 1, names, i, tail);
+		System.arraycopy(types, i + 1, types, i, tail);
+		System.arraycopy(offsets, i + 1, offsets, i, tail);
+		System.arraycopy(ends, i + 1, ends, i, tail);
+		System.arraycopy(tags, i + 1, tags, i, tail);
+		count--;
+		names[count] = null;
+		tags[count] = null;
+		hashTable = null;
+	}
+
+	@Override
+	public void clear() {
+		modified = true;
+		Arrays.fill(names, 0, count, null);
+		Arrays.fill(tags, 0, count, null);
+		count = 0;
+		hashTable = null;
+	}
+
+	@Override
+	public Set<String> keySet() {
+		if(keySet == null){
+			keySet = new AbstractSet<String>() {
+				@Override
+				public Iterator<String> iterator() {
+					return new IndexIterator<String>() {
+						@Override
+						String element(int i) {
+							return names[i];
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return count;
+				}
+
+				@Override
+				public boolean contains(Object o) {
+					return indexOf(o) >= 0;
+				}
+			};
+		}
+		return keySet;
+	}
+
+	@Override
+	public Set<Map.Entry<String,NBTag>> entrySet() {
+		if(entrySet == null){
+			entrySet = new AbstractSet<Map.Entry<String,NBTag>>() {
+				@Override
+				public Iterator<Map.Entry<String,NBTag>> iterator() {
+					return new IndexIterator<Map.Entry<String,NBTag>>() {
+						@Override
+						Map.Entry<String,NBTag> element(int i) {
+							return new AbstractMap.SimpleImmutableEntry<>(names[i], tagAt(i));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return count;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Iterates over the index in insertion order.
+	 */
+	private abstract class IndexIterator<E> implements Iterator<E> {
+
+		private int next = 0;
+		private int last = -1;
+
+		abstract E element(int i);
+
+		@Override
+		public boolean hasNext() {
+			return next < count;
+		}
+
+		@Override
+		public E next() {
+			if(next >= count){
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return element(last);
+		}
+
+		@Override
+		public void remove() {
+			if(last < 0){
+				throw new IllegalStateException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+}
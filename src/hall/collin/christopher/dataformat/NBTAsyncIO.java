@@ -0,0 +1,382 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+
+/**
+ * Reads and writes NBT files without blocking the calling thread. File
+ * contents are transferred with an AsynchronousFileChannel, and
+ * decompression, decoding, encoding and compression run on an executor
+ * supplied by the caller, so an event loop can load and save files without
+ * waiting for them:
+ * <pre>
+ * NBTAsyncIO io = new NBTAsyncIO(ForkJoinPool.commonPool());
+ * io.readAsync(playerFile).thenAccept(tag -&gt; ...);
+ * </pre>
+ * Writes go to a temporary file in the same directory, which replaces the
+ * target file by an atomic rename once it is complete, so readers never see
+ * a partly written file and a failed write leaves the old file in place.
+ * <p>
+ * Cancelling a returned future stops the operation at its next step; a
+ * write that is cancelled before the rename leaves the target untouched.
+ * Compressors are pooled by this object and may be used from any thread.
+ * The executor is not shut down by {@link #close()}.
+ */
+public final class NBTAsyncIO implements Closeable {
+
+	private final Executor executor;
+	private final int level;
+	private final ConcurrentLinkedQueue<NBTCodecContext> codecs = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Creates an instance that compresses with the default level.
+	 * @param executor executor to decode and encode on
+	 */
+	public NBTAsyncIO(Executor executor) {
+		this(executor, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates an instance.
+	 * @param executor executor to decode and encode on
+	 * @param level compression level from 0 to 9, or -1 for the default
+	 */
+	public NBTAsyncIO(Executor executor, int level) {
+		if(level < -1 || level > 9){
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.executor = executor;
+		this.level = level;
+	}
+
+	/**
+	 * Reads an NBT file. The compression format is recognized by the first
+	 * bytes of the file, as in {@link NBTCompression#read(java.io.InputStream)}.
+	 * @param file the file to read
+	 * @return future of the root tag, completed exceptionally with an
+	 * IOException if the file could not be read or decoded
+	 */
+	public CompletableFuture<NBTag> readAsync(Path file) {
+		CompletableFuture<NBTag> result = new CompletableFuture<>();
+		try{
+			AsynchronousFileChannel ch = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+			long size;
+			try{
+				size = ch.size();
+				if(size > Integer.MAX_VALUE - 8){
+					throw new IOException("File is too large to be read: " + size + " bytes");
+				}
+			} catch(IOException ex){
+				closeQuietly(ch);
+				throw ex;
+			}
+			new Reader(ch, ByteBuffer.allocate((int) size), result).next(0);
+		} catch(IOException | RuntimeException ex){
+			result.completeExceptionally(ex);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a tag to a file with gzip compression, like
+	 * {@link NBTag#writeToGZip(java.io.OutputStream)}. The tree must not be
+	 * changed until it has been encoded; pass a copy (e.g. a
+	 * {@link NBTConcurrentTree#snapshot()}) if other threads may change it.
+	 * @param file the file to write
+	 * @param tag the root tag
+	 * @return future that completes when the file has been replaced
+	 */
+	public CompletableFuture<Void> writeAsync(Path file, NBTag tag) {
+		return writeAsync(file, tag, true);
+	}
+
+	/**
+	 * Writes a tag to a file, like {@link #writeAsync(Path, NBTag)}.
+	 * @param file the file to write
+	 * @param tag the root tag
+	 * @param gzip true to compress the file with gzip
+	 * @return future that completes when the file has been replaced
+	 */
+	public CompletableFuture<Void> writeAsync(Path file, NBTag tag, boolean gzip) {
+		return writeAsync(file, tag, gzip ? NBTCompression.GZIP : NBTCompression.NONE);
+	}
+
+	/**
+	 * Writes a tag to a file in any compression format, like
+	 * {@link #writeAsync(Path, NBTag)}.
+	 * @param file the file to write
+	 * @param tag the root tag
+	 * @param compression the compression format
+	 * @return future that completes when the file has been replaced
+	 */
+	public CompletableFuture<Void> writeAsync(final Path file, final NBTag tag, final NBTCompression compression) {
+		final CompletableFuture<Void> result = new CompletableFuture<>();
+		execute(result, new Task() {
+			@Override
+			public void run() throws IOException {
+				ByteBuffer data = ByteBuffer.wrap(encode(tag, compression));
+				Path dir = file.toAbsolutePath().getParent();
+				// not createTempFile, which makes the file readable by the
+				// owner only; this one gets the default permissions
+				Path temp = dir.resolve(file.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+				AsynchronousFileChannel ch = AsynchronousFileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				try{
+					copyPermissions(file, temp);
+				} catch(IOException | RuntimeException ex){
+					closeQuietly(ch);
+					Files.deleteIfExists(temp);
+					throw ex;
+				}
+				new Writer(ch, temp, file, data, result).next(0);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Gives a new file the POSIX permissions of the file it will replace, if
+	 * there is one.
+	 */
+	private static void copyPermissions(Path target, Path file) throws IOException {
+		PosixFileAttributeView view = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+		if(view == null || !Files.exists(target)){
+			return;
+		}
+		Files.setPosixFilePermissions(file, view.readAttributes().permissions());
+	}
+
+	/**
+	 * Frees the pooled compressors.
+	 */
+	@Override
+	public void close() {
+		NBTCodecContext c;
+		while((c = codecs.poll()) != null){
+			c.close();
+		}
+	}
+
+	private NBTag decode(ByteBuffer data) throws IOException {
+		byte[] header = new byte[NBTCompression.MAGIC_LENGTH];
+		int n = Math.min(header.length, data.limit());
+		data.get(header, 0, n).rewind();
+		NBTCompression compression = NBTCompression.detect(header, n);
+		if(compression == null){
+			throw new IOException("Unrecognized NBT compression format");
+		}
+		if(compression == NBTCompression.NONE){
+			return NBTag.readNBTag(data, false);
+		}
+		ByteArrayInputStream in = new ByteArrayInputStream(data.array(), 0, data.limit());
+		if(compression != NBTCompression.GZIP){
+			return compression.readTag(in);
+		}
+		NBTCodecContext codec = borrow();
+		try{
+			return codec.readGZip(in);
+		} finally {
+			codecs.offer(codec);
+		}
+	}
+
+	private byte[] encode(NBTag tag, NBTCompression compression) throws IOException {
+		byte[] raw = tag.toByteArray();
+		if(compression == NBTCompression.NONE){
+			return raw;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+		if(compression != NBTCompression.GZIP){
+			compression.compress(raw, 0, raw.length, out);
+			return out.toByteArray();
+		}
+		NBTCodecContext codec = borrow();
+		try{
+			codec.writeGZipMember(raw, 0, raw.length, out);
+			return out.toByteArray();
+		} finally {
+			codecs.offer(codec);
+		}
+	}
+
+	private NBTCodecContext borrow() {
+		NBTCodecContext codec = codecs.poll();
+		return codec == null ? new NBTCodecContext(level) : codec;
+	}
+
+	/**
+	 * A step that runs on the executor.
+	 */
+	private interface Task {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Runs a step on the executor unless the operation has been cancelled,
+	 * completing the future exceptionally if the step fails.
+	 */
+	private void execute(final CompletableFuture<?> result, final Task task) {
+		try{
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if(result.isDone()){
+						return;
+					}
+					try{
+						task.run();
+					} catch(IOException | RuntimeException ex){
+						result.completeExceptionally(ex);
+					}
+				}
+			});
+		} catch(RuntimeException ex){
+			result.completeExceptionally(ex);
+		}
+	}
+
+	private static void closeQuietly(AsynchronousFileChannel ch) {
+		try{
+			ch.close();
+		} catch(IOException ex){
+			// nothing was written through the channel that could be lost
+		}
+	}
+
+	/**
+	 * Reads the whole file into the buffer, then decodes it on the executor.
+	 */
+	private final class Reader implements CompletionHandler<Integer,Long> {
+
+		private final AsynchronousFileChannel ch;
+		private final ByteBuffer buffer;
+		private final CompletableFuture<NBTag> result;
+
+		Reader(AsynchronousFileChannel ch, ByteBuffer buffer, CompletableFuture<NBTag> result) {
+			this.ch = ch;
+			this.buffer = buffer;
+			this.result = result;
+		}
+
+		void next(long position) {
+			if(result.isDone()){
+				closeQuietly(ch);
+				return;
+			}
+			if(!buffer.hasRemaining()){
+				done();
+				return;
+			}
+			ch.read(buffer, position, position, this);
+		}
+
+		private void done() {
+			closeQuietly(ch);
+			buffer.flip();
+			execute(result, new Task() {
+				@Override
+				public void run() throws IOException {
+					result.complete(decode(buffer));
+				}
+			});
+		}
+
+		@Override
+		public void completed(Integer n, Long position) {
+			if(n < 0){
+				done();
+			} else {
+				next(position + n);
+			}
+		}
+
+		@Override
+		public void failed(Throwable ex, Long position) {
+			closeQuietly(ch);
+			result.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Writes the buffer to the temporary file, then syncs it and renames it
+	 * over the target on the executor.
+	 */
+	private final class Writer implements CompletionHandler<Integer,Long> {
+
+		private final AsynchronousFileChannel ch;
+		private final Path temp;
+		private final Path target;
+		private final ByteBuffer buffer;
+		private final CompletableFuture<Void> result;
+
+		Writer(AsynchronousFileChannel ch, Path temp, Path target, ByteBuffer buffer, CompletableFuture<Void> result) {
+			this.ch = ch;
+			this.temp = temp;
+			this.target = target;
+			this.buffer = buffer;
+			this.result = result;
+			// clean up if a later step fails or the future is cancelled
+			result.whenComplete((v, ex) -> {
+				if(ex != null){
+					closeQuietly(ch);
+					try{
+						Files.deleteIfExists(temp);
+					} catch(IOException ignored){
+						// an orphaned temporary file does not affect the target
+					}
+				}
+			});
+		}
+
+		void next(long position) {
+			if(result.isDone()){
+				return;
+			}
+			if(!buffer.hasRemaining()){
+				execute(result, new Task() {
+					@Override
+					public void run() throws IOException {
+						ch.force(false);
+						ch.close();
+						if(result.isDone()){
+							return;
+						}
+						try{
+							Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+						} catch(AtomicMoveNotSupportedException ex){
+							Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+						}
+						result.complete(null);
+					}
+				});
+				return;
+			}
+			ch.write(buffer, position, position, this);
+		}
+
+		@Override
+		public void completed(Integer n, Long position) {
+			next(position + n);
+		}
+
+		@Override
+		public void failed(Throwable ex, Long position) {
+			result.completeExceptionally(ex);
+		}
+	}
+}
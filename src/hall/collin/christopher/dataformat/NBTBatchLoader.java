@@ -0,0 +1,427 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Decodes many NBT documents concurrently on an executor supplied by the
+ * caller, such as a ForkJoinPool or a virtual-thread-per-task executor.
+ * Results are handed back in the order they complete. Example:
+ * <pre>
+ * try(NBTBatchLoader loader = new NBTBatchLoader(ForkJoinPool.commonPool(), 64)){
+ *     loader.loadAll(sources, result -&gt; world.add(result.getTag()));
+ * }
+ * </pre>
+ * At most <code>maxInFlight</code> documents are submitted but not yet
+ * taken, whether they are still being decoded or already done. Once that
+ * many are outstanding, {@link #submit(Source)} blocks until a result has
+ * been taken, which bounds the memory used by the loader and keeps a fast
+ * producer from running ahead of the consumer.
+ * <p>
+ * Compressed sources are decoded with {@link NBTCodecContext} instances
+ * that are pooled by the loader, so no per-thread state is needed. The
+ * loader does not shut down the executor. Submitting and taking results is
+ * meant to be done from a single thread.
+ */
+public final class NBTBatchLoader implements Closeable {
+
+	/**
+	 * A document to decode.
+	 */
+	public interface Source {
+		/**
+		 * Decodes the document.
+		 * @param codec codec context to use for decompression; it belongs to
+		 * the caller and must not be kept
+		 * @return the root tag
+		 * @throws IOException if the document could not be read or decoded
+		 */
+		NBTag load(NBTCodecContext codec) throws IOException;
+	}
+
+	/**
+	 * The outcome of decoding one source.
+	 */
+	public static final class Result {
+		private final Source source;
+		private final NBTag tag;
+		private final Throwable error;
+
+		Result(Source source, NBTag tag, Throwable error) {
+			this.source = source;
+			this.tag = tag;
+			this.error = error;
+		}
+
+		/**
+		 * Returns the source this result belongs to.
+		 */
+		public Source getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns true if the source was decoded successfully.
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * Returns the exception that occurred while decoding, or null.
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * Returns the decoded tag.
+		 * @return the root tag (null for a region chunk that does not exist)
+		 * @throws IOException if decoding failed with an IOException
+		 */
+		public NBTag getTag() throws IOException {
+			if(error instanceof IOException){
+				throw (IOException) error;
+			}
+			if(error instanceof RuntimeException){
+				throw (RuntimeException) error;
+			}
+			if(error instanceof Error){
+				throw (Error) error;
+			}
+			return tag;
+		}
+	}
+
+	private final CompletionService<Result> completion;
+	private final Semaphore permits;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final ConcurrentLinkedQueue<NBTCodecContext> codecs = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a loader.
+	 * @param executor executor to decode on
+	 * @param maxInFlight maximum number of documents that are submitted but
+	 * not yet taken
+	 */
+	public NBTBatchLoader(Executor executor, int maxInFlight) {
+		if(maxInFlight < 1){
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		}
+		this.completion = new ExecutorCompletionService<>(executor);
+		this.permits = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Submits a source for decoding, waiting while <code>maxInFlight</code>
+	 * results are outstanding.
+	 * @param source the source
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void submit(Source source) throws InterruptedException {
+		checkOpen();
+		permits.acquire();
+		enqueue(source);
+	}
+
+	/**
+	 * Submits a source for decoding if fewer than <code>maxInFlight</code>
+	 * results are outstanding.
+	 * @param source the source
+	 * @return false if the source was not submitted
+	 */
+	public boolean trySubmit(Source source) {
+		checkOpen();
+		if(!permits.tryAcquire()){
+			return false;
+		}
+		enqueue(source);
+		return true;
+	}
+
+	/**
+	 * Waits for the next completed result.
+	 * @return the result, or null if nothing is outstanding
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Result take() throws InterruptedException {
+		if(pending.get() == 0){
+			return null;
+		}
+		return finish(completion.take());
+	}
+
+	/**
+	 * Returns the next completed result without waiting.
+	 * @return the result, or null if none has completed yet
+	 */
+	public Result poll() {
+		Future<Result> f = completion.poll();
+		return f == null ? null : finish(f);
+	}
+
+	/**
+	 * Returns the number of sources that were submitted but whose results
+	 * have not been taken yet.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Decodes all sources and passes each result to the consumer as soon as
+	 * it is available, on the calling thread. Returns once every result has
+	 * been consumed.
+	 * @param sources the sources
+	 * @param consumer receives the results in completion order
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void loadAll(Iterable<? extends Source> sources, Consumer<? super Result> consumer) throws InterruptedException {
+		checkOpen();
+		for(Source s : sources){
+			while(!permits.tryAcquire()){
+				consumer.accept(take());
+			}
+			enqueue(s);
+		}
+		Result r;
+		while((r = take()) != null){
+			consumer.accept(r);
+		}
+	}
+
+	/**
+	 * Frees the pooled codec contexts. Decoding that is still running
+	 * finishes normally, but no more sources can be submitted.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		NBTCodecContext c;
+		while((c = codecs.poll()) != null){
+			c.close();
+		}
+	}
+
+	private void enqueue(Source source) {
+		pending.incrementAndGet();
+		try{
+			completion.submit(new Task(source));
+		} catch(RuntimeException ex){
+			pending.decrementAndGet();
+			permits.release();
+			throw ex;
+		}
+	}
+
+	private Result finish(Future<Result> f) {
+		pending.decrementAndGet();
+		permits.release();
+		try{
+			return f.get();
+		} catch(ExecutionException ex){
+			// only Errors escape a Task
+			return new Result(null, null, ex.getCause());
+		} catch(InterruptedException ex){
+			// the future is done, so get() does not wait
+			Thread.currentThread().interrupt();
+			return new Result(null, null, ex);
+		}
+	}
+
+	private void checkOpen() {
+		if(closed){
+			throw new IllegalStateException("Batch loader has been closed");
+		}
+	}
+
+	private final class Task implements Callable<Result> {
+		private final Source source;
+
+		Task(Source source) {
+			this.source = source;
+		}
+
+		@Override
+		public Result call() {
+			NBTCodecContext codec = codecs.poll();
+			if(codec == null){
+				codec = new NBTCodecContext();
+			}
+			try{
+				return new Result(source, source.load(codec), null);
+			} catch(IOException | RuntimeException ex){
+				return new Result(source, null, ex);
+			} finally {
+				if(closed){
+					codec.close();
+				} else {
+					codecs.offer(codec);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a source for an NBT file. The compression (any format known to
+	 * {@link NBTCompression}, or none) is detected from the first bytes of
+	 * the file.
+	 * @param file path of the file
+	 * @return the source
+	 */
+	public static Source file(final Path file) {
+		return new Source() {
+			@Override
+			public NBTag load(NBTCodecContext codec) throws IOException {
+				byte[] data = Files.readAllBytes(file);
+				return decode(codec, data, 0, data.length);
+			}
+
+			@Override
+			public String toString() {
+				return file.toString();
+			}
+		};
+	}
+
+	/**
+	 * Creates a source for a range of a byte array. The compression (any
+	 * format known to {@link NBTCompression}, or none) is detected from the
+	 * first bytes. The array must not be modified until the result has been
+	 * taken.
+	 * @param data the array
+	 * @param off offset of the document
+	 * @param len length of the document
+	 * @return the source
+	 */
+	public static Source bytes(final byte[] data, final int off, final int len) {
+		if(off < 0 || len < 0 || off > data.length - len){
+			throw new IndexOutOfBoundsException("Range [" + off + ", " + (off + len) + ") out of bounds for length " + data.length);
+		}
+		return new Source() {
+			@Override
+			public NBTag load(NBTCodecContext codec) throws IOException {
+				return decode(codec, data, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Creates a source for the remaining bytes of a buffer, for example a
+	 * slice of a memory-mapped file. The compression (any format known to
+	 * {@link NBTCompression}, or none) is detected from the first bytes. The
+	 * position of the buffer is not changed.
+	 * @param buffer the buffer
+	 * @return the source
+	 */
+	public static Source buffer(ByteBuffer buffer) {
+		final ByteBuffer b = buffer.duplicate();
+		return new Source() {
+			@Override
+			public NBTag load(NBTCodecContext codec) throws IOException {
+				return decode(codec, b.duplicate());
+			}
+		};
+	}
+
+	/**
+	 * Creates a source for a chunk of a region file. Chunks of the same file
+	 * are decoded in parallel; only reading their bytes is serialized.
+	 * @param region the region file
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 * @return the source; its result holds null if the chunk does not exist
+	 */
+	public static Source chunk(final NBTRegionFile region, final int x, final int z) {
+		return new Source() {
+			@Override
+			public NBTag load(NBTCodecContext codec) throws IOException {
+				return region.readChunk(x, z);
+			}
+
+			@Override
+			public String toString() {
+				return "chunk " + x + "," + z;
+			}
+		};
+	}
+
+	private static NBTag decode(NBTCodecContext codec, byte[] data, int off, int len) throws IOException {
+		return decode(codec, ByteBuffer.wrap(data, off, len));
+	}
+
+	/**
+	 * Decodes the remaining bytes of a buffer. Gzip and zlib go through the
+	 * pooled codec; other formats are read with their NBTCompression.
+	 */
+	private static NBTag decode(NBTCodecContext codec, ByteBuffer src) throws IOException {
+		byte[] header = new byte[NBTCompression.MAGIC_LENGTH];
+		int n = Math.min(header.length, src.remaining());
+		for(int i = 0; i < n; i++){
+			header[i] = src.get(src.position() + i);
+		}
+		NBTCompression compression = NBTCompression.detect(header, n);
+		if(compression == null){
+			throw new IOException("Unrecognized NBT compression format");
+		}
+		if(compression == NBTCompression.NONE){
+			return NBTag.readNBTag(src, false);
+		}
+		if(compression == NBTCompression.GZIP){
+			return codec.readGZip(new BufferStream(src));
+		}
+		if(compression == NBTCompression.ZLIB){
+			return codec.readZlib(new BufferStream(src));
+		}
+		return compression.readTag(new BufferStream(src));
+	}
+
+	/**
+	 * InputStream over the remaining bytes of a buffer.
+	 */
+	private static final class BufferStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0){
+				return 0;
+			}
+			if(!buffer.hasRemaining()){
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes tags into a ByteBuffer with absolute puts, producing the same
+ * bytes as {@link NBTag#write(java.io.OutputStream)}. The destination is
+ * expected to have been sized with {@link NBTag#serializedSize()}; the
+ * encoder itself only keeps an index and never grows or flips the buffer.
+ * Works the same on heap and direct buffers.
+ * <p>
+ * For {@link NBTIncrementalWriter} the encoder can also be given the
+ * previous encoding of the same tree. Every tag that is written records
+ * where its payload starts, relative to the payload of its container, and
+ * tags that have not changed since are then copied from the previous bytes
+ * instead of being encoded again.
+ */
+final class NBTBufferEncoder {
+
+	private final ByteBuffer buf;
+	private int pos;
+
+	/** previous encoding, or null to encode everything */
+	private final byte[] previous;
+	/** what the root records as its container */
+	private final Object snapshot;
+	/** the container being encoded, its payload index in previous (or -1) and in buf */
+	private NBTag container = null;
+	private int containerPrevious = -1;
+	private int containerStart = 0;
+
+	/**
+	 * @param dst destination; encoding starts at its position, which is not
+	 * changed
+	 */
+	NBTBufferEncoder(ByteBuffer dst) {
+		this(dst, null, null);
+	}
+
+	/**
+	 * @param dst destination; encoding starts at its position, which is not
+	 * changed
+	 * @param previous previous encoding of the tree, or null
+	 * @param snapshot token identifying the encoding being made, which must
+	 * be the <code>previous</code> array of the next incremental encoding
+	 */
+	NBTBufferEncoder(ByteBuffer dst, byte[] previous, Object snapshot) {
+		// a duplicate is always big-endian, whatever the order of dst
+		this.buf = dst.duplicate();
+		this.pos = dst.position();
+		this.previous = previous;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Returns the index after the last byte written.
+	 */
+	int position() {
+		return pos;
+	}
+
+	/**
+	 * Returns the length of a string in modified UTF-8, as written by
+	 * DataOutput.writeUTF, without the two length bytes.
+	 */
+	static int utfLength(String s) {
+		int len = s.length();
+		int n = len;
+		for(int i = 0; i < len; i++){
+			char c = s.charAt(i);
+			if(c >= 0x80 || c == 0){
+				n += (c >= 0x800) ? 2 : 1;
+			}
+		}
+		return n;
+	}
+
+	void putByte(int v) {
+		buf.put(pos, (byte) v);
+		pos++;
+	}
+
+	void putShort(int v) {
+		buf.putShort(pos, (short) v);
+		pos += 2;
+	}
+
+	void putInt(int v) {
+		buf.putInt(pos, v);
+		pos += 4;
+	}
+
+	void putLong(long v) {
+		buf.putLong(pos, v);
+		pos += 8;
+	}
+
+	/**
+	 * Writes a string like DataOutput.writeUTF.
+	 */
+	void putUTF(String s) {
+		int utf = utfLength(s);
+		if(utf > 65535){
+			throw new IllegalArgumentException("String too long for NBT: " + utf + " bytes");
+		}
+		putShort(utf);
+		int len = s.length();
+		for(int i = 0; i < len; i++){
+			char c = s.charAt(i);
+			if(c >= 0x01 && c < 0x80){
+				buf.put(pos++, (byte) c);
+			} else if(c < 0x800){
+				buf.put(pos++, (byte) (0xC0 | (c >> 6)));
+				buf.put(pos++, (byte) (0x80 | (c & 0x3F)));
+			} else {
+				buf.put(pos++, (byte) (0xE0 | (c >> 12)));
+				buf.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+				buf.put(pos++, (byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Copies the bytes <code>[from, to)</code> of a buffer.
+	 */
+	void putBytes(ByteBuffer src, int from, int to) {
+		ByteBuffer s = src.duplicate();
+		s.limit(to);
+		s.position(from);
+		ByteBuffer d = buf.duplicate();
+		d.position(pos);
+		d.put(s);
+		pos += to - from;
+	}
+
+	/**
+	 * Writes the first <code>n</code> elements of a primitive array in bulk
+	 * through a view of the destination.
+	 */
+	void putNumbers(Object array, Type elementType, int n) {
+		ByteBuffer d = buf.duplicate();
+		d.position(pos);
+		switch(elementType){
+			case TAG_Byte:
+				d.put((byte[]) array, 0, n);
+				break;
+			case TAG_Short:
+				d.asShortBuffer().put((short[]) array, 0, n);
+				break;
+			case TAG_Int:
+				d.asIntBuffer().put((int[]) array, 0, n);
+				break;
+			case TAG_Long:
+				d.asLongBuffer().put((long[]) array, 0, n);
+				break;
+			case TAG_Float:
+				d.asFloatBuffer().put((float[]) array, 0, n);
+				break;
+			case TAG_Double:
+				d.asDoubleBuffer().put((double[]) array, 0, n);
+				break;
+			default:
+				throw new IllegalArgumentException(elementType.name() + " is not a number type");
+		}
+		pos += n * NBTReader.fixedSize(elementType.ordinal());
+	}
+
+	/**
+	 * Writes the type, name and payload of a tag.
+	 */
+	void putTag(NBTag t) {
+		putByte(t.getType().ordinal());
+		if(t.getType() != Type.TAG_End){
+			putUTF(t.getName());
+			putPayload(t);
+		}
+	}
+
+	/**
+	 * Writes the payload of a tag, like NBTag.writePayload. In incremental
+	 * mode an unchanged tag is copied from the previous encoding and the
+	 * position of every tag is recorded.
+	 */
+	void putPayload(NBTag t) {
+		if(snapshot == null){
+			encodePayload(t);
+			return;
+		}
+		NBTag outer = container;
+		int outerPrevious = containerPrevious;
+		int outerStart = containerStart;
+		int start = pos;
+		int base = outer == null ? 0 : outerStart;
+		int at = -1;
+		if(previous != null && t.savedIn == (outer == null ? previous : outer) && (outer == null || outerPrevious >= 0)){
+			at = (outer == null ? 0 : outerPrevious) + t.savedAt;
+		}
+		if(at >= 0 && !t.dirty){
+			int len = (int) t.payloadSize();
+			ByteBuffer d = buf.duplicate();
+			d.position(pos);
+			d.put(previous, at, len);
+			pos += len;
+		} else {
+			container = t;
+			containerPrevious = at;
+			containerStart = start;
+			try{
+				encodePayload(t);
+			} finally {
+				container = outer;
+				containerPrevious = outerPrevious;
+				containerStart = outerStart;
+			}
+		}
+		t.savedIn = outer == null ? snapshot : outer;
+		t.savedAt = start - base;
+		t.dirty = false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void encodePayload(NBTag t) {
+		Object value = t.getValue();
+		switch(t.getType()){
+			case TAG_End:
+				break;
+			case TAG_Byte:
+				putByte((Byte) value);
+				break;
+			case TAG_Short:
+				putShort((Short) value);
+				break;
+			case TAG_Int:
+				putInt((Integer) value);
+				break;
+			case TAG_Long:
+				putLong((Long) value);
+				break;
+			case TAG_Float:
+				putInt(Float.floatToIntBits((Float) value));
+				break;
+			case TAG_Double:
+				putLong(Double.doubleToLongBits((Double) value));
+				break;
+			case TAG_Byte_Array:
+				if(value instanceof ByteBuffer){
+					ByteBuffer bb = (ByteBuffer) value;
+					putInt(bb.remaining());
+					putBytes(bb, bb.position(), bb.limit());
+				} else {
+					byte[] ba = (byte[]) value;
+					putInt(ba.length);
+					putNumbers(ba, Type.TAG_Byte, ba.length);
+				}
+				break;
+			case TAG_String:
+				putUTF((String) value);
+				break;
+			case TAG_Int_Array:
+				int[] ia = (int[]) value;
+				putInt(ia.length);
+				putNumbers(ia, Type.TAG_Int, ia.length);
+				break;
+			case TAG_Long_Array:
+				long[] la = (long[]) value;
+				putInt(la.length);
+				putNumbers(la, Type.TAG_Long, la.length);
+				break;
+			case TAG_List:
+				if(value instanceof PrimitiveList){
+					((PrimitiveList) value).encode(this);
+					break;
+				}
+				List<NBTag> list = (List<NBTag>) value;
+				putByte(t.getListType().ordinal());
+				putInt(list.size());
+				for(NBTag e : list){
+					putPayload(e);
+				}
+				break;
+			case TAG_Compound:
+				if(value instanceof LazyCompoundMap){
+					((LazyCompoundMap) value).encode(this);
+					break;
+				}
+				for(NBTag member : ((Map<String,NBTag>) value).values()){
+					putTag(member);
+				}
+				putByte(0);// TAG_End
+				break;
+		}
+	}
+}
@@ -0,0 +1,593 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reusable state for reading and writing compressed NBT. Unlike
+ * {@link NBTag#readFromGZipStream(InputStream)} and
+ * {@link NBTag#writeToGZip(OutputStream)}, which set up a new native
+ * Inflater or Deflater for every call, a context keeps its inflaters,
+ * deflaters and I/O buffers and reuses them for every document, which makes
+ * a big difference when many small documents are compressed. Both gzip
+ * (including input made of several concatenated gzip members) and raw zlib
+ * streams are supported.
+ * <p>
+ * A context is not thread-safe. Keep one per thread, for example in a
+ * ThreadLocal, and {@link #close()} it to free the native memory when the
+ * thread is done with it.
+ */
+public final class NBTCodecContext implements Closeable {
+
+	/** Default size of the compressed and uncompressed I/O buffers. */
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final int bufferSize;
+	private int level;
+	private NBTNameCache nameCache = null;
+
+	private Inflater gzipInflater = null;
+	private Inflater zlibInflater = null;
+	private Deflater gzipDeflater = null;
+	private Deflater zlibDeflater = null;
+	private final CRC32 crc = new CRC32();
+
+	private final Decoder decoder = new Decoder();
+	private final Encoder encoder = new Encoder();
+	private boolean closed = false;
+
+	/**
+	 * Creates a context with the default compression level and buffer size.
+	 */
+	public NBTCodecContext() {
+		this(Deflater.DEFAULT_COMPRESSION, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a context with the given compression level and the default
+	 * buffer size.
+	 * @param level compression level from 0 to 9, or -1 for the default
+	 */
+	public NBTCodecContext(int level) {
+		this(level, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a context.
+	 * @param level compression level from 0 to 9, or -1 for the default
+	 * @param bufferSize size of each I/O buffer in bytes
+	 */
+	public NBTCodecContext(int level, int bufferSize) {
+		checkLevel(level);
+		if(bufferSize < 512){
+			throw new IllegalArgumentException("Buffer size must be at least 512 bytes: " + bufferSize);
+		}
+		this.level = level;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Returns the compression level used for writing.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the compression level used for writing.
+	 * @param level compression level from 0 to 9, or -1 for the default
+	 */
+	public void setLevel(int level) {
+		checkLevel(level);
+		this.level = level;
+	}
+
+	/**
+	 * Sets a symbol table through which all tag names read with this context
+	 * are decoded.
+	 * @param cache the symbol table, or null to decode every name
+	 */
+	public void setNameCache(NBTNameCache cache) {
+		this.nameCache = cache;
+	}
+
+	/**
+	 * Returns the symbol table used to decode tag names, or null.
+	 */
+	public NBTNameCache getNameCache() {
+		return nameCache;
+	}
+
+	/**
+	 * Reads a gzip-compressed tag. The stream is read to its end, so that
+	 * the checksum of every gzip member is verified. The stream is not
+	 * closed.
+	 * @param is stream to read from, like a FileInputStream
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if the data is not valid gzip or NBT, or if another
+	 * IOException occurred.
+	 */
+	public NBTag readGZip(InputStream is) throws IOException {
+		return read(is, true);
+	}
+
+	/**
+	 * Reads a zlib-compressed tag. The stream is not closed.
+	 * @param is stream to read from
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if the data is not valid zlib or NBT, or if another
+	 * IOException occurred.
+	 */
+	public NBTag readZlib(InputStream is) throws IOException {
+		return read(is, false);
+	}
+
+	/**
+	 * Writes a tag as a single gzip member. The stream is neither flushed
+	 * nor closed.
+	 * @param tag the tag to write
+	 * @param os stream to write to, like a FileOutputStream
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeGZip(NBTag tag, OutputStream os) throws IOException {
+		write(tag, os, true);
+	}
+
+	/**
+	 * Writes a tag as a zlib stream. The stream is neither flushed nor
+	 * closed.
+	 * @param tag the tag to write
+	 * @param os stream to write to
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeZlib(NBTag tag, OutputStream os) throws IOException {
+		write(tag, os, false);
+	}
+
+	/**
+	 * Compresses a range of bytes into a single gzip member.
+	 */
+	void writeGZipMember(byte[] b, int off, int len, OutputStream os) throws IOException {
+		checkOpen();
+		encoder.start(os, true);
+		try{
+			encoder.write(b, off, len);
+			encoder.finish();
+		} finally {
+			encoder.sink = null;
+		}
+	}
+
+	/**
+	 * Frees the native memory of the inflaters and deflaters. The context
+	 * cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if(gzipInflater != null){
+			gzipInflater.end();
+		}
+		if(zlibInflater != null){
+			zlibInflater.end();
+		}
+		if(gzipDeflater != null){
+			gzipDeflater.end();
+		}
+		if(zlibDeflater != null){
+			zlibDeflater.end();
+		}
+	}
+
+	private NBTag read(InputStream is, boolean gzip) throws IOException {
+		checkOpen();
+		NBTMetricsListener listener = NBTMetrics.listener;
+		long start = listener == null ? 0 : System.nanoTime();
+		NBTOperationStats stats = listener == null ? null : new NBTOperationStats(true);
+		decoder.start(is, gzip);
+		try{
+			NBTReader reader = new NBTReader(decoder);
+			reader.setNameCache(nameCache);
+			reader.setStats(stats);
+			NBTag tag = reader.readTag();
+			decoder.drain();
+			if(listener != null){
+				stats.finish(System.nanoTime() - start, decoder.rawCount, decoder.compressedCount);
+				listener.decoded(stats);
+			}
+			return tag;
+		} finally {
+			decoder.src = null;
+		}
+	}
+
+	private void write(NBTag tag, OutputStream os, boolean gzip) throws IOException {
+		checkOpen();
+		NBTMetricsListener listener = NBTMetrics.listener;
+		long start = listener == null ? 0 : System.nanoTime();
+		encoder.start(os, gzip);
+		try{
+			tag.writeTag(new DataOutputStream(encoder));
+			encoder.finish();
+		} finally {
+			encoder.sink = null;
+		}
+		if(listener != null){
+			long nanos = System.nanoTime() - start;
+			NBTOperationStats stats = new NBTOperationStats(true);
+			stats.count(tag, 0);
+			stats.finish(nanos, encoder.rawCount, encoder.compressedCount);
+			listener.encoded(stats);
+		}
+	}
+
+	private Inflater inflater(boolean gzip) {
+		if(gzip){
+			if(gzipInflater == null){
+				gzipInflater = new Inflater(true);
+			}
+			return gzipInflater;
+		}
+		if(zlibInflater == null){
+			zlibInflater = new Inflater(false);
+		}
+		return zlibInflater;
+	}
+
+	private Deflater deflater(boolean gzip) {
+		if(gzip){
+			if(gzipDeflater == null){
+				gzipDeflater = new Deflater(level, true);
+			}
+			return gzipDeflater;
+		}
+		if(zlibDeflater == null){
+			zlibDeflater = new Deflater(level, false);
+		}
+		return zlibDeflater;
+	}
+
+	private void checkOpen() {
+		if(closed){
+			throw new IllegalStateException("Codec context has been closed");
+		}
+	}
+
+	private static void checkLevel(int level) {
+		if(level < -1 || level > 9){
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+	}
+
+	/**
+	 * Decompressing stream. Compressed input and decompressed output are
+	 * both buffered, so the single-byte reads of the NBT decoder do not go
+	 * to the inflater or the source stream.
+	 */
+	private final class Decoder extends InputStream {
+
+		InputStream src;
+		private Inflater inf;
+		private boolean gzip;
+		private boolean eof;
+		private byte[] in;
+		private byte[] out;
+		private int inPos;
+		private int inLimit;
+		private int outPos;
+		private int outLimit;
+		private long memberSize;
+		long rawCount;
+		long compressedCount;
+
+		void start(InputStream src, boolean gzip) throws IOException {
+			if(in == null){
+				in = new byte[bufferSize];
+				out = new byte[bufferSize];
+			}
+			this.src = src;
+			this.gzip = gzip;
+			inPos = inLimit = outPos = outLimit = 0;
+			eof = false;
+			rawCount = compressedCount = 0;
+			inf = inflater(gzip);
+			inf.reset();
+			if(gzip){
+				readHeader();
+				crc.reset();
+				memberSize = 0;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(outPos == outLimit && !fill()){
+				return -1;
+			}
+			return out[outPos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0){
+				return 0;
+			}
+			if(outPos == outLimit && !fill()){
+				return -1;
+			}
+			int n = Math.min(len, outLimit - outPos);
+			System.arraycopy(out, outPos, b, off, n);
+			outPos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return outLimit - outPos;
+		}
+
+		/**
+		 * Reads and discards the rest of the stream, checking every gzip
+		 * trailer on the way.
+		 */
+		void drain() throws IOException {
+			outPos = outLimit;
+			while(fill()){
+				outPos = outLimit;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			while(!eof){
+				if(inf.finished()){
+					inPos = inLimit - inf.getRemaining();
+					if(!gzip || !nextMember()){
+						eof = true;
+						return false;
+					}
+					continue;
+				}
+				if(inf.needsInput()){
+					if(inPos == inLimit && !refill()){
+						throw new EOFException("Unexpected end of compressed stream");
+					}
+					inf.setInput(in, inPos, inLimit - inPos);
+					inPos = inLimit;
+				}
+				int n;
+				try{
+					n = inf.inflate(out, 0, out.length);
+				} catch(DataFormatException ex){
+					throw new ZipException(ex.getMessage() == null ? "Invalid compressed data" : ex.getMessage());
+				}
+				if(n > 0){
+					if(gzip){
+						crc.update(out, 0, n);
+						memberSize += n;
+					}
+					rawCount += n;
+					outPos = 0;
+					outLimit = n;
+					return true;
+				}
+				if(inf.needsDictionary()){
+					throw new ZipException("Preset dictionaries are not supported");
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Checks the trailer of the finished gzip member and starts the next
+		 * member if there is one.
+		 */
+		private boolean nextMember() throws IOException {
+			long checksum = readIntLE();
+			long size = readIntLE();
+			if(checksum != crc.getValue()){
+				throw new ZipException("Corrupt GZIP trailer: CRC mismatch");
+			}
+			if(size != (memberSize & 0xFFFFFFFFL)){
+				throw new ZipException("Corrupt GZIP trailer: size mismatch");
+			}
+			int b = srcByte();
+			if(b < 0){
+				return false;
+			}
+			inPos--;
+			if(b != 0x1f){
+				// trailing garbage, ignored like GZIPInputStream does
+				return false;
+			}
+			readHeader();
+			inf.reset();
+			crc.reset();
+			memberSize = 0;
+			return true;
+		}
+
+		private void readHeader() throws IOException {
+			int magic = needByte() | (needByte() << 8);
+			if(magic != GZIP_MAGIC){
+				throw new ZipException("Not in GZIP format");
+			}
+			if(needByte() != Deflater.DEFLATED){
+				throw new ZipException("Unsupported compression method");
+			}
+			int flags = needByte();
+			// modification time, extra flags, operating system
+			for(int i = 0; i < 6; i++){
+				needByte();
+			}
+			if((flags & FEXTRA) != 0){
+				int n = needByte() | (needByte() << 8);
+				for(int i = 0; i < n; i++){
+					needByte();
+				}
+			}
+			if((flags & FNAME) != 0){
+				while(needByte() != 0){
+					// skip file name
+				}
+			}
+			if((flags & FCOMMENT) != 0){
+				while(needByte() != 0){
+					// skip comment
+				}
+			}
+			if((flags & FHCRC) != 0){
+				needByte();
+				needByte();
+			}
+		}
+
+		private long readIntLE() throws IOException {
+			return needByte() | (needByte() << 8) | (needByte() << 16) | ((long) needByte() << 24);
+		}
+
+		private int needByte() throws IOException {
+			int b = srcByte();
+			if(b < 0){
+				throw new EOFException("Unexpected end of GZIP stream");
+			}
+			return b;
+		}
+
+		private int srcByte() throws IOException {
+			if(inPos == inLimit && !refill()){
+				return -1;
+			}
+			return in[inPos++] & 0xFF;
+		}
+
+		private boolean refill() throws IOException {
+			int n = src.read(in, 0, in.length);
+			if(n <= 0){
+				return false;
+			}
+			inPos = 0;
+			inLimit = n;
+			compressedCount += n;
+			return true;
+		}
+	}
+
+	/**
+	 * Compressing stream. Uncompressed input is collected in a buffer, so
+	 * the single-byte writes of the NBT encoder do not go to the deflater.
+	 */
+	private final class Encoder extends OutputStream {
+
+		OutputStream sink;
+		private Deflater def;
+		private boolean gzip;
+		private byte[] in;
+		private byte[] out;
+		private int inLength;
+		long rawCount;
+		long compressedCount;
+
+		void start(OutputStream sink, boolean gzip) throws IOException {
+			if(in == null){
+				in = new byte[bufferSize];
+				out = new byte[bufferSize];
+			}
+			this.sink = sink;
+			this.gzip = gzip;
+			inLength = 0;
+			rawCount = compressedCount = 0;
+			def = deflater(gzip);
+			def.reset();
+			def.setLevel(level);
+			if(gzip){
+				crc.reset();
+				sink.write(GZIP_HEADER);
+				compressedCount += GZIP_HEADER.length;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(inLength == in.length){
+				flushInput();
+			}
+			in[inLength++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(len >= in.length){
+				flushInput();
+				deflate(b, off, len);
+				return;
+			}
+			if(len > in.length - inLength){
+				flushInput();
+			}
+			System.arraycopy(b, off, in, inLength, len);
+			inLength += len;
+		}
+
+		void finish() throws IOException {
+			flushInput();
+			def.finish();
+			while(!def.finished()){
+				drainDeflater();
+			}
+			if(gzip){
+				writeIntLE(crc.getValue());
+				writeIntLE(rawCount);
+				compressedCount += 8;
+			}
+		}
+
+		private void flushInput() throws IOException {
+			if(inLength > 0){
+				deflate(in, 0, inLength);
+				inLength = 0;
+			}
+		}
+
+		private void deflate(byte[] b, int off, int len) throws IOException {
+			if(gzip){
+				crc.update(b, off, len);
+			}
+			rawCount += len;
+			def.setInput(b, off, len);
+			while(!def.needsInput()){
+				drainDeflater();
+			}
+		}
+
+		private void drainDeflater() throws IOException {
+			int n = def.deflate(out, 0, out.length, Deflater.NO_FLUSH);
+			if(n > 0){
+				sink.write(out, 0, n);
+				compressedCount += n;
+			}
+		}
+
+		private void writeIntLE(long v) throws IOException {
+			sink.write((int) v & 0xFF);
+			sink.write((int) (v >> 8) & 0xFF);
+			sink.write((int) (v >> 16) & 0xFF);
+			sink.write((int) (v >> 24) & 0xFF);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compression format for NBT documents. The built-in formats are
+ * {@link #NONE}, {@link #GZIP}, {@link #ZLIB} and {@link #FAST}, a pure-Java
+ * block compressor that is several times faster than gzip at a lower
+ * compression ratio. A format is chosen per call when writing:
+ * <pre>
+ * tag.write(out, NBTCompression.FAST);
+ * </pre>
+ * and recognized by its magic bytes when reading, so that
+ * {@link #read(InputStream)} decodes a document in any registered format.
+ * <p>
+ * Other formats can be added by subclassing this class and either calling
+ * {@link #register(NBTCompression)} or listing the subclass, which then needs
+ * a public no-argument constructor, in
+ * <code>META-INF/services/hall.collin.christopher.dataformat.NBTCompression</code>.
+ * Implementations must be thread-safe.
+ */
+public abstract class NBTCompression {
+
+	/** Number of bytes passed to {@link #matches(byte[], int)}. */
+	public static final int MAGIC_LENGTH = 4;
+
+	/** Uncompressed NBT, recognized by a valid tag type in the first byte. */
+	public static final NBTCompression NONE = new NBTCompression("none") {
+		@Override
+		public boolean matches(byte[] header, int length) {
+			return length > 0 && header[0] >= 0 && header[0] <= NBTag.Type.values().length - 1;
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) {
+			return in;
+		}
+
+		@Override
+		public void compress(byte[] data, int off, int len, OutputStream out) throws IOException {
+			out.write(data, off, len);
+		}
+	};
+
+	/** Gzip, the format of Minecraft's level.dat and player files. */
+	public static final NBTCompression GZIP = new NBTCompression("gzip") {
+		@Override
+		public boolean matches(byte[] header, int length) {
+			return length >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) throws IOException {
+			return new GZIPInputStream(in);
+		}
+
+		@Override
+		public void compress(byte[] data, int off, int len, OutputStream out) throws IOException {
+			try(NBTCodecContext codec = new NBTCodecContext()){
+				codec.writeGZipMember(data, off, len, out);
+			}
+		}
+	};
+
+	/** Zlib, the format of chunks in region files. */
+	public static final NBTCompression ZLIB = new NBTCompression("zlib") {
+		@Override
+		public boolean matches(byte[] header, int length) {
+			// deflate with a 32 KiB window and a valid header checksum
+			return length >= 2 && header[0] == 0x78 && (0x7800 | (header[1] & 0xff)) % 31 == 0;
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) {
+			return new InflaterInputStream(in);
+		}
+
+		@Override
+		public void compress(byte[] data, int off, int len, OutputStream out) throws IOException {
+			Deflater deflater = new Deflater();
+			try{
+				DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+				dos.write(data, off, len);
+				dos.finish();
+			} finally {
+				deflater.end();
+			}
+		}
+	};
+
+	/**
+	 * Fast pure-Java compression using the LZ4 block encoding, in blocks of
+	 * 64 KiB. The container is specific to this library and is not the lz4
+	 * frame format.
+	 */
+	public static final NBTCompression FAST = new NBTCompression("fast") {
+		@Override
+		public boolean matches(byte[] header, int length) {
+			if(length < FastBlockCodec.MAGIC.length){
+				return false;
+			}
+			for(int i = 0; i < FastBlockCodec.MAGIC.length; i++){
+				if(header[i] != FastBlockCodec.MAGIC[i]){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) throws IOException {
+			DataInputStream dis = new DataInputStream(in);
+			byte[] magic = new byte[FastBlockCodec.MAGIC.length];
+			dis.readFully(magic);
+			if(!matches(magic, magic.length)){
+				throw new IOException("Not a " + getName() + " compressed stream");
+			}
+			return new FastBlockCodec.Input(dis);
+		}
+
+		@Override
+		public void compress(byte[] data, int off, int len, OutputStream out) throws IOException {
+			FastBlockCodec.compress(data, off, len, out);
+		}
+	};
+
+	/** formats checked by detect(), in order; NONE is always checked last */
+	private static final CopyOnWriteArrayList<NBTCompression> formats = new CopyOnWriteArrayList<>();
+
+	static {
+		formats.add(GZIP);
+		formats.add(ZLIB);
+		formats.add(FAST);
+		for(NBTCompression c : ServiceLoader.load(NBTCompression.class, NBTCompression.class.getClassLoader())){
+			formats.add(c);
+		}
+	}
+
+	private final String name;
+
+	/**
+	 * @param name short name of the format, like "gzip"
+	 */
+	protected NBTCompression(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return short name of the format, like "gzip"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Tells whether data starting with the given bytes is in this format.
+	 * @param header the first bytes of the data
+	 * @param length number of valid bytes in <code>header</code>, at most
+	 * {@link #MAGIC_LENGTH}; fewer if the data is shorter
+	 * @return true if the data is in this format
+	 */
+	public abstract boolean matches(byte[] header, int length);
+
+	/**
+	 * Wraps a stream of data in this format, including its magic bytes.
+	 * Closing the returned stream closes <code>in</code>.
+	 * @param in the compressed data
+	 * @return stream of the uncompressed data
+	 * @throws IOException if the header could not be read or is invalid
+	 */
+	public abstract InputStream decompress(InputStream in) throws IOException;
+
+	/**
+	 * Compresses a range of bytes. The stream is neither flushed nor closed.
+	 * @param data the uncompressed data
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @param out stream to write the compressed data to
+	 * @throws IOException if an IOException occurred
+	 */
+	public abstract void compress(byte[] data, int off, int len, OutputStream out) throws IOException;
+
+	/**
+	 * Adds a format to the formats recognized by {@link #detect(byte[], int)}.
+	 * Formats registered later are checked after the built-in ones.
+	 * @param compression the format to add
+	 */
+	public static void register(NBTCompression compression) {
+		if(compression == null){
+			throw new NullPointerException();
+		}
+		formats.addIfAbsent(compression);
+	}
+
+	/**
+	 * @return the recognized formats, not including {@link #NONE}
+	 */
+	public static List<NBTCompression> getFormats() {
+		return Collections.unmodifiableList(new ArrayList<>(formats));
+	}
+
+	/**
+	 * Finds the format of data from its first bytes.
+	 * @param header the first bytes of the data
+	 * @param length number of valid bytes in <code>header</code>
+	 * @return the matching format, or null if no format matches
+	 */
+	public static NBTCompression detect(byte[] header, int length) {
+		for(NBTCompression c : formats){
+			if(c.matches(header, length)){
+				return c;
+			}
+		}
+		return NONE.matches(header, length) ? NONE : null;
+	}
+
+	/**
+	 * Reads a tag in any recognized format. The stream is not closed, but
+	 * may have been read past the end of the document.
+	 * @param is stream to read from, like a FileInputStream
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if the format is not recognized, if the data is not
+	 * valid NBT or if another IOException occurred
+	 */
+	public static NBTag read(InputStream is) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(is, MAGIC_LENGTH);
+		byte[] header = new byte[MAGIC_LENGTH];
+		int n = 0;
+		while(n < header.length){
+			int r = in.read(header, n, header.length - n);
+			if(r < 0){
+				break;
+			}
+			n += r;
+		}
+		in.unread(header, 0, n);
+		NBTCompression c = detect(header, n);
+		if(c == null){
+			throw new IOException("Unrecognized NBT compression format");
+		}
+		return c.readTag(in);
+	}
+
+	/**
+	 * Reads a tag in this format. The stream is not closed.
+	 * @param is stream to read from
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if the data is not in this format or not valid NBT,
+	 * or if another IOException occurred
+	 */
+	public NBTag readTag(InputStream is) throws IOException {
+		return NBTag.readNBTag(new DataInputStream(decompress(is)));
+	}
+
+	/**
+	 * Writes a tag in this format. The stream is neither flushed nor closed.
+	 * @param tag the tag to write
+	 * @param os stream to write to, like a FileOutputStream
+	 * @throws IOException if an IOException occurred
+	 */
+	public void writeTag(NBTag tag, OutputStream os) throws IOException {
+		byte[] raw = tag.toByteArray();
+		compress(raw, 0, raw.length, os);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,191 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Makes an NBT structure safe to share between threads without one lock
+ * around the whole document. The compound and list tags of the tree are
+ * given thread-safe contents: compounds keep their insertion order and can
+ * be read and iterated without locking, and iteration never throws
+ * ConcurrentModificationException. Tags store their value in a volatile
+ * field, so a value set by one thread is seen by any thread that calls
+ * <code>getValue</code> afterwards, without locking. The elements of an
+ * array value, such as the primitive array of a list of numbers, are not
+ * covered by this.
+ * <p>
+ * Every compound and list is assigned to one of a number of lock stripes.
+ * <code>addTag</code>, the removeTag methods and <code>setValue</code> hold
+ * the stripe of the container they change, so changes to different
+ * containers rarely wait for each other. Tags added to the tree are
+ * converted when they are added. Lists of numbers keep their primitive
+ * array and should be replaced with <code>setValue</code> rather than
+ * changed element by element.
+ * <p>
+ * The live tree must not be written directly, since it may change while it
+ * is being encoded. Write a {@link #snapshot()} instead:
+ * <pre>
+ * NBTConcurrentTree shared = new NBTConcurrentTree(NBTag.readFromGZipStream(in));
+ * // any thread:
+ * shared.getRoot().findTagByName("Time").setValue(time);
+ * // saving thread:
+ * shared.snapshot().writeToGZip(out);
+ * </pre>
+ */
+public final class NBTConcurrentTree {
+
+	private final NBTag root;
+	private final ReentrantReadWriteLock[] stripes;
+
+	/**
+	 * Converts a tree in place, with four lock stripes per processor. The
+	 * tree must not be used by other threads during the conversion.
+	 * @param root a TAG_Compound or TAG_List
+	 */
+	public NBTConcurrentTree(NBTag root) {
+		this(root, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Converts a tree in place. The tree must not be used by other threads
+	 * during the conversion.
+	 * @param root a TAG_Compound or TAG_List
+	 * @param concurrency number of lock stripes, rounded up to a power of two
+	 */
+	public NBTConcurrentTree(NBTag root, int concurrency) {
+		if(root.getType() != Type.TAG_Compound && root.getType() != Type.TAG_List){
+			throw new IllegalArgumentException("Cannot share a NBTag of type " + root.getType().name());
+		}
+		if(concurrency < 1){
+			throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+		}
+		int n = Integer.highestOneBit(concurrency);
+		if(n < concurrency){
+			n <<= 1;
+		}
+		stripes = new ReentrantReadWriteLock[n];
+		for(int i = 0; i < n; i++){
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+		this.root = root;
+		root.makeConcurrent(this);
+	}
+
+	/**
+	 * Returns the root of the shared tree.
+	 * @return the converted root tag
+	 */
+	public NBTag getRoot() {
+		return root;
+	}
+
+	/**
+	 * Copies the tree as it is at one moment, into ordinary NBTag objects
+	 * that belong to the caller. Changes wait while the copy is made, but not
+	 * while the copy is encoded or compressed. Strings and numbers are shared
+	 * with the live tree; arrays are copied.
+	 * @return a copy of the tree
+	 */
+	public NBTag snapshot() {
+		for(ReentrantReadWriteLock s : stripes){
+			s.readLock().lock();
+		}
+		try{
+			return copy(root);
+		} finally {
+			for(ReentrantReadWriteLock s : stripes){
+				s.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the lock to hold while changing a container of this tree.
+	 */
+	Lock stripe(Object container) {
+		int h = System.identityHashCode(container);
+		h ^= h >>> 16;
+		return stripes[h & (stripes.length - 1)].writeLock();
+	}
+
+	/**
+	 * Returns the tree the value of a tag belongs to, or null if it is not
+	 * the contents of a container in a concurrent tree.
+	 */
+	static NBTConcurrentTree treeOf(Object value) {
+		if(value instanceof ConcurrentCompoundMap){
+			return ((ConcurrentCompoundMap) value).tree;
+		}
+		if(value instanceof ConcurrentTagList){
+			return ((ConcurrentTagList) value).tree;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the lock guarding the value of a tag, or null if it is not the
+	 * contents of a container in a concurrent tree.
+	 */
+	static Lock lockOf(Object value) {
+		if(value instanceof ConcurrentCompoundMap){
+			return ((ConcurrentCompoundMap) value).lock;
+		}
+		if(value instanceof ConcurrentTagList){
+			return ((ConcurrentTagList) value).lock;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static NBTag copy(NBTag t) {
+		Object value = t.getValue();
+		switch(t.getType()){
+			case TAG_Compound:
+				Map<String,NBTag> members = new LinkedHashMap<>();
+				for(Map.Entry<String,NBTag> e : ((Map<String,NBTag>) value).entrySet()){
+					members.put(e.getKey(), copy(e.getValue()));
+				}
+				return new NBTag(Type.TAG_Compound, t.getName(), members);
+			case TAG_List:
+				if(value instanceof PrimitiveList){
+					return new NBTag(Type.TAG_List, t.getName(), new PrimitiveList(t.getListType(), copyArray(((PrimitiveList) value).primitiveArray())));
+				}
+				List<NBTag> list = (List<NBTag>) value;
+				if(list.isEmpty()){
+					return new NBTag(Type.TAG_List, t.getName(), t.getListType());
+				}
+				List<NBTag> elements = new ArrayList<>(list.size());
+				for(NBTag e : list){
+					elements.add(copy(e));
+				}
+				return new NBTag(Type.TAG_List, t.getName(), elements);
+			case TAG_Byte_Array:
+				if(value instanceof ByteBuffer){
+					ByteBuffer bb = ((ByteBuffer) value).duplicate();
+					byte[] b = new byte[bb.remaining()];
+					bb.get(b);
+					return new NBTag(Type.TAG_Byte_Array, t.getName(), b);
+				}
+				return new NBTag(Type.TAG_Byte_Array, t.getName(), copyArray(value));
+			case TAG_Int_Array:
+			case TAG_Long_Array:
+				return new NBTag(t.getType(), t.getName(), copyArray(value));
+			default:
+				return new NBTag(t.getType(), t.getName(), value);
+		}
+	}
+
+	private static Object copyArray(Object array) {
+		int n = Array.getLength(array);
+		Object copy = Array.newInstance(array.getClass().getComponentType(), n);
+		System.arraycopy(array, 0, copy, 0, n);
+		return copy;
+	}
+}
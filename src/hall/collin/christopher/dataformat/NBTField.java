@@ -0,0 +1,30 @@
+package hall.collin.christopher.dataformat;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field that {@link NBTMapper} writes to and reads from NBT. Fields
+ * without this annotation are ignored. Example:
+ * <pre>
+ * public class Entity {
+ *     &#64;NBTField("id") String id;
+ *     &#64;NBTField("Pos") double[] position;
+ *     &#64;NBTField List&lt;Item&gt; inventory = new ArrayList&lt;&gt;();
+ * }
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface NBTField {
+
+	/**
+	 * @return name of the tag, or an empty string to use the name of the
+	 * field
+	 */
+	String value() default "";
+}
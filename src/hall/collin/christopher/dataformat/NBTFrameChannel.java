@@ -0,0 +1,336 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Sends and receives NBT messages over NIO channels, such as a
+ * SocketChannel. Every message is an uncompressed tag prefixed with its
+ * length as an unsigned varint (seven bits per byte, least significant
+ * group first, as in Protocol Buffers).
+ * <p>
+ * {@link #receive()} works with blocking and non-blocking channels: bytes
+ * of an incomplete frame are kept until the rest arrives, and the call
+ * returns null instead of waiting. Sending is split in two steps, so that
+ * many small messages go out in one system call:
+ * <pre>
+ * for(NBTag msg : batch){
+ *     frames.send(msg);
+ * }
+ * frames.flush();
+ * </pre>
+ * {@link #send(NBTag)} encodes the message into a reusable direct buffer,
+ * and {@link #flush()} writes all queued buffers with a gathering write.
+ * <p>
+ * A frame channel is not thread-safe; use one thread for receiving and one
+ * for sending at most. The channels are not closed by this class.
+ */
+public final class NBTFrameChannel {
+
+	/** Default maximum length of a received frame, 16 MiB. */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private static final int MAX_VARINT_LENGTH = 5;
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** messages larger than this get a buffer of their own */
+	private static final int MAX_PACKED_FRAME = CHUNK_SIZE / 4;
+	private static final int MAX_FREE_CHUNKS = 4;
+	/** most buffers passed to one gathering write, below the usual IOV_MAX */
+	private static final int MAX_GATHER = 512;
+
+	private final ReadableByteChannel source;
+	private final WritableByteChannel sink;
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+	/** received bytes, ready to be read between position and limit */
+	private ByteBuffer input;
+	private boolean endOfStream = false;
+
+	/** flipped buffers waiting to be written */
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+	/** chunk that messages are being packed into, or null */
+	private ByteBuffer chunk = null;
+	private final ArrayDeque<ByteBuffer> freeChunks = new ArrayDeque<>();
+	private ByteBuffer[] gather = new ByteBuffer[16];
+	private long pending = 0;
+
+	/**
+	 * Creates a frame channel that sends and receives over one channel.
+	 * @param channel channel to read from and write to, like a SocketChannel
+	 */
+	public NBTFrameChannel(ByteChannel channel) {
+		this(channel, channel);
+	}
+
+	/**
+	 * Creates a frame channel over separate channels.
+	 * @param source channel to receive from, or null to only send
+	 * @param sink channel to send to, or null to only receive
+	 */
+	public NBTFrameChannel(ReadableByteChannel source, WritableByteChannel sink) {
+		this.source = source;
+		this.sink = sink;
+		this.input = ByteBuffer.allocate(8 * 1024);
+		input.flip();
+	}
+
+	/**
+	 * Sets the largest frame that {@link #receive()} accepts. Longer frames
+	 * are rejected before their bytes are buffered, so a corrupt or hostile
+	 * length prefix cannot exhaust the memory.
+	 * @param maxFrameSize maximum frame length in bytes, not including the
+	 * length prefix
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if(maxFrameSize <= 0){
+			throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @return the largest frame accepted by {@link #receive()}
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Returns the next message. Frames that have already been received are
+	 * returned without reading from the channel. Otherwise the channel is
+	 * read; on a non-blocking channel this returns null if no complete frame
+	 * is available yet, and the bytes of a partial frame are kept for the
+	 * next call.
+	 * @return the next message, or null if no complete frame is available or
+	 * the end of the stream has been reached
+	 * @throws EOFException if the stream ended in the middle of a frame
+	 * @throws IOException if a frame is too long or does not hold exactly one
+	 * valid tag, or if another IOException occurred
+	 */
+	public NBTag receive() throws IOException {
+		if(source == null){
+			throw new IllegalStateException("This frame channel cannot receive");
+		}
+		while(true){
+			int needed = frameLength();
+			if(needed > 0 && input.remaining() >= needed){
+				return decodeFrame();
+			}
+			if(endOfStream){
+				if(input.hasRemaining()){
+					throw new EOFException("Stream ended in the middle of a frame");
+				}
+				return null;
+			}
+			int n = fill(needed);
+			if(n < 0){
+				endOfStream = true;
+			} else if(n == 0){
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return true if {@link #receive()} has reached the end of the stream
+	 */
+	public boolean isEndOfStream() {
+		return endOfStream;
+	}
+
+	/**
+	 * Parses the length prefix at the position of the input.
+	 * @return length of the frame including its prefix, or 0 if the prefix
+	 * is incomplete
+	 */
+	private int frameLength() throws IOException {
+		int p = input.position();
+		int value = 0;
+		for(int i = 0; i < MAX_VARINT_LENGTH; i++){
+			if(p + i >= input.limit()){
+				return 0;
+			}
+			int b = input.get(p + i);
+			if(i == MAX_VARINT_LENGTH - 1 && (b & 0x70) != 0){
+				// more than 32 bits
+				throw new IOException("Invalid frame length prefix");
+			}
+			value |= (b & 0x7f) << (7 * i);
+			if(b >= 0){
+				if(value < 0 || value > maxFrameSize){
+					throw new IOException("Frame of " + (value & 0xffffffffL) + " bytes exceeds the maximum of " + maxFrameSize);
+				}
+				return i + 1 + value;
+			}
+		}
+		throw new IOException("Invalid frame length prefix");
+	}
+
+	/**
+	 * Decodes a complete frame. The frame is consumed even if it is invalid,
+	 * so that the next frame can still be received.
+	 */
+	private NBTag decodeFrame() throws IOException {
+		int end = input.position() + frameLength();
+		ByteBuffer frame = input.duplicate();
+		frame.limit(end);
+		while(frame.get() < 0){
+			// skip the length prefix
+		}
+		try{
+			NBTag tag = NBTag.readNBTag(frame, false);
+			if(frame.hasRemaining()){
+				throw new IOException("Frame holds " + frame.remaining() + " bytes after its tag");
+			}
+			return tag;
+		} finally {
+			input.position(end);
+		}
+	}
+
+	/**
+	 * Reads from the source, first making room for a frame of the given
+	 * length.
+	 */
+	private int fill(int needed) throws IOException {
+		if(needed > input.capacity()){
+			ByteBuffer b = ByteBuffer.allocate(Math.max(needed, Math.min(2 * input.capacity(), maxFrameSize + MAX_VARINT_LENGTH)));
+			b.put(input);
+			input = b;
+		} else {
+			input.compact();
+		}
+		try{
+			return source.read(input);
+		} finally {
+			input.flip();
+		}
+	}
+
+	/**
+	 * Queues a message for sending. The message is encoded immediately, so
+	 * it may be changed as soon as this method returns. Nothing is written
+	 * to the channel until {@link #flush()} is called.
+	 * @param tag the message
+	 * @throws IllegalArgumentException if the encoded message is larger than
+	 * 2 GiB
+	 */
+	public void send(NBTag tag) {
+		if(sink == null){
+			throw new IllegalStateException("This frame channel cannot send");
+		}
+		long size = tag.serializedSize();
+		if(size > Integer.MAX_VALUE - 8 - MAX_VARINT_LENGTH){
+			throw new IllegalArgumentException("Message too large for a frame: " + size + " bytes");
+		}
+		int length = varintLength((int) size) + (int) size;
+		ByteBuffer dst;
+		if(length > MAX_PACKED_FRAME){
+			seal();
+			dst = ByteBuffer.allocate(length);
+		} else {
+			if(chunk != null && chunk.remaining() < length){
+				seal();
+			}
+			if(chunk == null){
+				chunk = freeChunks.isEmpty() ? ByteBuffer.allocateDirect(CHUNK_SIZE) : freeChunks.poll();
+			}
+			dst = chunk;
+		}
+		int v = (int) size;
+		while((v & ~0x7f) != 0){
+			dst.put((byte) (v | 0x80));
+			v >>>= 7;
+		}
+		dst.put((byte) v);
+		tag.encode(dst);
+		pending += length;
+		if(dst != chunk){
+			dst.flip();
+			queue.add(dst);
+		}
+	}
+
+	private static int varintLength(int v) {
+		int n = 1;
+		while((v & ~0x7f) != 0){
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/** moves the chunk being filled to the queue */
+	private void seal() {
+		if(chunk != null){
+			chunk.flip();
+			queue.add(chunk);
+			chunk = null;
+		}
+	}
+
+	/**
+	 * Writes the queued messages, passing as many buffers to each write as
+	 * the channel accepts. On a blocking channel this returns when all
+	 * messages have been written. On a non-blocking channel it returns false
+	 * as soon as the channel accepts no more bytes; call it again when the
+	 * channel is writable.
+	 * @return true if all queued messages have been written
+	 * @throws IOException if an IOException occurred
+	 */
+	public boolean flush() throws IOException {
+		if(sink == null){
+			throw new IllegalStateException("This frame channel cannot send");
+		}
+		seal();
+		while(!queue.isEmpty()){
+			long n;
+			if(sink instanceof GatheringByteChannel){
+				int count = Math.min(queue.size(), MAX_GATHER);
+				if(gather.length < count){
+					gather = new ByteBuffer[Math.min(MAX_GATHER, Math.max(count, 2 * gather.length))];
+				}
+				int i = 0;
+				for(ByteBuffer b : queue){
+					if(i == count){
+						break;
+					}
+					gather[i++] = b;
+				}
+				n = ((GatheringByteChannel) sink).write(gather, 0, count);
+				Arrays.fill(gather, 0, count, null);
+			} else {
+				n = sink.write(queue.peek());
+			}
+			pending -= n;
+			while(!queue.isEmpty() && !queue.peek().hasRemaining()){
+				recycle(queue.poll());
+			}
+			if(n == 0){
+				return queue.isEmpty();
+			}
+		}
+		return true;
+	}
+
+	private void recycle(ByteBuffer b) {
+		if(b.isDirect() && b.capacity() == CHUNK_SIZE && freeChunks.size() < MAX_FREE_CHUNKS){
+			b.clear();
+			freeChunks.add(b);
+		}
+	}
+
+	/**
+	 * @return number of queued bytes that have not been written yet
+	 */
+	public long pendingBytes() {
+		return pending;
+	}
+}
@@ -0,0 +1,695 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Immutable NBT tag with structural sharing. Compound tags are backed by a
+ * hash array mapped trie that keeps insertion order, and list tags by a
+ * persistent vector, so a changed version made with
+ * {@link #with(String, Object)} or {@link #without(String)} copies only the
+ * tags on the path to the change and shares every other subtree with the
+ * old version. Keeping many versions of a large document, e.g. for undo or
+ * versioned saves, costs little more than keeping one, and versions can be
+ * handed to other threads without copying or locking:
+ * <pre>
+ * NBTImmutableTag v1 = NBTImmutableTag.read(new NBTReader(in));
+ * NBTImmutableTag v2 = v1.with("Data.Player.Pos[1]", 64.0);
+ * v2.write(out);
+ * </pre>
+ * {@link #asNBTag()} presents a version as a read-only {@link NBTag} without
+ * copying the tree, for code that reads or writes NBTag trees, and
+ * {@link #of(NBTag)} copies an NBTag tree into an immutable one.
+ * <p>
+ * Lists of numbers and the arrays of TAG_Byte_Array, TAG_Int_Array and
+ * TAG_Long_Array tags are stored as primitive arrays, which are copied as a
+ * whole when they change.
+ */
+public final class NBTImmutableTag {
+
+	private final Type type;
+	private final String name;
+	private final Type listType;
+	/**
+	 * boxed number or String; primitive array for arrays and lists of
+	 * numbers; PersistentVector for other lists; PersistentCompound for
+	 * compounds
+	 */
+	private final Object value;
+
+	private NBTImmutableTag(Type type, String name, Type listType, Object value) {
+		this.type = type;
+		this.name = name;
+		this.listType = listType;
+		this.value = value;
+	}
+
+	/**
+	 * Creates an empty TAG_Compound, to build a tree with
+	 * {@link #with(String, Object)}.
+	 * @param name name of the tag
+	 * @return an empty compound tag
+	 */
+	public static NBTImmutableTag emptyCompound(String name) {
+		return new NBTImmutableTag(Type.TAG_Compound, name, null, PersistentCompound.EMPTY);
+	}
+
+	/**
+	 * Copies an NBTag tree into an immutable tree.
+	 * @param tag the tree to copy
+	 * @return immutable copy of <code>tag</code>
+	 */
+	public static NBTImmutableTag of(NBTag tag) {
+		return copy(tag, tag.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static NBTImmutableTag copy(NBTag tag, String name) {
+		Object v = tag.getValue();
+		switch(tag.getType()){
+			case TAG_Compound:
+				PersistentCompound c = PersistentCompound.EMPTY;
+				for(Map.Entry<String,NBTag> e : ((Map<String,NBTag>) v).entrySet()){
+					c = c.with(copy(e.getValue(), e.getKey()));
+				}
+				return new NBTImmutableTag(Type.TAG_Compound, name, null, c);
+			case TAG_List:
+				Type lt = tag.getListType();
+				if(v instanceof PrimitiveList){
+					return new NBTImmutableTag(Type.TAG_List, name, lt, copyArray(((PrimitiveList) v).primitiveArray()));
+				}
+				List<NBTag> list = (List<NBTag>) v;
+				List<NBTImmutableTag> elements = new ArrayList<>(list.size());
+				for(NBTag e : list){
+					elements.add(copy(e, null));
+				}
+				return new NBTImmutableTag(Type.TAG_List, name, lt, PersistentVector.of(elements));
+			case TAG_Byte_Array:
+				if(v instanceof ByteBuffer){
+					ByteBuffer bb = ((ByteBuffer) v).duplicate();
+					byte[] b = new byte[bb.remaining()];
+					bb.get(b);
+					return new NBTImmutableTag(Type.TAG_Byte_Array, name, null, b);
+				}
+				return new NBTImmutableTag(Type.TAG_Byte_Array, name, null, copyArray(v));
+			case TAG_Int_Array:
+			case TAG_Long_Array:
+				return new NBTImmutableTag(tag.getType(), name, null, copyArray(v));
+			default:
+				return new NBTImmutableTag(tag.getType(), name, null, v);
+		}
+	}
+
+	/**
+	 * Reads the next complete tag from a reader straight into an immutable
+	 * tree, without building an NBTag tree first. Like
+	 * {@link NBTReader#readTag()}, this reads the root tag if called before
+	 * the first event, or the tag named by the current
+	 * {@link NBTReader.Event#NAME} event.
+	 * @param reader the reader to read from
+	 * @return the tag read
+	 * @throws IOException if the stream is not valid NBT or if any other
+	 * IOException occurred.
+	 */
+	public static NBTImmutableTag read(NBTReader reader) throws IOException {
+		if(reader.getEvent() != NBTReader.Event.NAME){
+			NBTReader.Event e = reader.next();
+			if(e == NBTReader.Event.VALUE && reader.getType() == Type.TAG_End){
+				return new NBTImmutableTag(Type.TAG_End, null, null, null);
+			}
+			if(e != NBTReader.Event.NAME){
+				throw new IllegalStateException("Expected a named tag but found " + e.name());
+			}
+		}
+		String tagName = reader.getName();
+		reader.next();
+		return readValue(reader, tagName);
+	}
+
+	private static NBTImmutableTag readValue(NBTReader r, String name) throws IOException {
+		switch(r.getEvent()){
+			case START_LIST:
+				Type lt = r.getListType();
+				if(r.getListLength() > 0 && PrimitiveList.isPrimitive(lt)){
+					return new NBTImmutableTag(Type.TAG_List, name, lt, r.readListArray());
+				}
+				List<NBTImmutableTag> elements = new ArrayList<>(r.getListLength());
+				while(r.next() != NBTReader.Event.END){
+					elements.add(readValue(r, null));
+				}
+				return new NBTImmutableTag(Type.TAG_List, name, lt, PersistentVector.of(elements));
+			case START_COMPOUND:
+				PersistentCompound c = PersistentCompound.EMPTY;
+				while(r.next() != NBTReader.Event.END){
+					String memberName = r.getName();
+					r.next();
+					c = c.with(readValue(r, memberName));
+				}
+				return new NBTImmutableTag(Type.TAG_Compound, name, null, c);
+			case VALUE:
+				Type t = r.getType();
+				Object v;
+				switch(t){
+					case TAG_Byte:
+						v = r.getByte();
+						break;
+					case TAG_Short:
+						v = r.getShort();
+						break;
+					case TAG_Int:
+						v = r.getInt();
+						break;
+					case TAG_Long:
+						v = r.getLong();
+						break;
+					case TAG_Float:
+						v = r.getFloat();
+						break;
+					case TAG_Double:
+						v = r.getDouble();
+						break;
+					case TAG_Byte_Array:
+						v = r.getByteArray();
+						break;
+					case TAG_String:
+						v = r.getString();
+						break;
+					case TAG_Int_Array:
+						v = r.getIntArray();
+						break;
+					case TAG_Long_Array:
+						v = r.getLongArray();
+						break;
+					default:
+						v = null;
+						break;
+				}
+				return new NBTImmutableTag(t, name, null, v);
+			default:
+				throw new IllegalStateException("No payload at event " + r.getEvent().name());
+		}
+	}
+
+	/**
+	 * Presents this tag as a read-only NBTag, without copying the tree.
+	 * Nested tags are presented the same way when they are accessed;
+	 * trying to change them, their compounds or their lists throws
+	 * UnsupportedOperationException. Byte arrays are presented as read-only
+	 * ByteBuffers, while int and long arrays and lists of numbers are copied
+	 * when their tag is accessed, so writing into the array returned by
+	 * <code>getValue()</code> or a method like {@link NBTag#getIntList()}
+	 * changes only that copy.
+	 * @return NBTag view of this tag
+	 */
+	public NBTag asNBTag() {
+		return new ReadOnlyTag(type, name, view());
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object view() {
+		switch(type){
+			case TAG_Compound:
+				return new CompoundView((PersistentCompound) value);
+			case TAG_List:
+				if(!(value instanceof PersistentVector)){
+					return new PrimitiveList(listType, copyArray(value)).readOnly();
+				}
+				PersistentVector<NBTImmutableTag> v = (PersistentVector<NBTImmutableTag>) value;
+				return v.size() == 0 ? listType : new ListView(v);
+			case TAG_Byte_Array:
+				return ByteBuffer.wrap((byte[]) value).asReadOnlyBuffer();
+			case TAG_Int_Array:
+			case TAG_Long_Array:
+				return copyArray(value);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 * Writes this tag without compression, like {@link NBTag#write(OutputStream)}.
+	 * @param os stream to write to
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void write(OutputStream os) throws IOException {
+		asNBTag().write(os);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getListType() {
+		return listType;
+	}
+
+	/**
+	 * Returns the value in the form an NBTag of this type would hold it.
+	 * Arrays are copies; the Map of a compound and the List of a list are
+	 * read-only views as described for {@link #asNBTag()}.
+	 * @return the value of this tag
+	 */
+	public Object getValue() {
+		if(type == Type.TAG_Byte_Array){
+			return copyArray(value);
+		}
+		return view();
+	}
+
+	/**
+	 * Returns the number of members of a compound or elements of a list.
+	 * @return the size of this container
+	 * @throws UnsupportedOperationException if this is not a compound or
+	 * list tag
+	 */
+	public int size() {
+		if(type == Type.TAG_Compound){
+			return ((PersistentCompound) value).size();
+		}
+		if(type == Type.TAG_List){
+			return value instanceof PersistentVector ? ((PersistentVector<?>) value).size() : Array.getLength(value);
+		}
+		throw new UnsupportedOperationException("NBTag of type " + type.name() + " does not have member NBTags");
+	}
+
+	/**
+	 * Returns a member of this compound tag.
+	 * @param memberName name of the member
+	 * @return the member, or null if there is none with that name
+	 * @throws UnsupportedOperationException if this is not a compound tag
+	 */
+	public NBTImmutableTag get(String memberName) {
+		if(type != Type.TAG_Compound){
+			throw new UnsupportedOperationException("NBTag of type " + type.name() + " does not have named members");
+		}
+		return ((PersistentCompound) value).get(memberName);
+	}
+
+	/**
+	 * Returns an element of this list tag.
+	 * @param index index of the element
+	 * @return the element
+	 * @throws UnsupportedOperationException if this is not a list tag
+	 * @throws IndexOutOfBoundsException if there is no such element
+	 */
+	@SuppressWarnings("unchecked")
+	public NBTImmutableTag get(int index) {
+		if(type != Type.TAG_List){
+			throw new UnsupportedOperationException("NBTag of type " + type.name() + " does not have elements");
+		}
+		if(value instanceof PersistentVector){
+			return ((PersistentVector<NBTImmutableTag>) value).get(index);
+		}
+		return new NBTImmutableTag(listType, null, null, Array.get(value, index));
+	}
+
+	/**
+	 * Returns the tag a path leads to. Only paths of names and indices are
+	 * supported, not wildcards.
+	 * @param path the path, see {@link NBTPath}
+	 * @return the tag, or null if the path leads nowhere
+	 */
+	public NBTImmutableTag find(String path) {
+		return find(NBTPath.compile(path));
+	}
+
+	/**
+	 * Like {@link #find(String)}, with a compiled path.
+	 * @param path the path
+	 * @return the tag, or null if the path leads nowhere
+	 */
+	public NBTImmutableTag find(NBTPath path) {
+		checkConcrete(path);
+		NBTImmutableTag t = this;
+		for(int step = 0; step < path.stepCount() && t != null; step++){
+			if(path.stepKind(step) == NBTPath.NAME){
+				t = t.type == Type.TAG_Compound ? t.get(path.stepName(step)) : null;
+			} else {
+				if(t.type != Type.TAG_List){
+					return null;
+				}
+				int n = t.size();
+				int i = path.stepIndex(step);
+				if(i < 0){
+					i += n;
+				}
+				t = i >= 0 && i < n ? t.get(i) : null;
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Returns a new version of this tree in which the tag at the end of a
+	 * path is replaced, or added if the last step names a member that does
+	 * not exist or is the index just past the end of a list. Only the tags
+	 * on the path are copied. The value is an NBTImmutableTag, an NBTag
+	 * (which is copied), or a value to store in a new tag whose type follows
+	 * from its class: Byte, Short, Integer, Long, Float, Double, String,
+	 * byte[], int[] or long[] (arrays are copied). The new tag takes the
+	 * name of the member it replaces.
+	 * @param path the path, see {@link NBTPath}; wildcards are not supported
+	 * @param newValue the new tag or value
+	 * @return the new version
+	 * @throws IllegalArgumentException if the path does not lead to a tag
+	 * or to a place for a new one, or if the value does not fit there
+	 */
+	public NBTImmutableTag with(String path, Object newValue) {
+		return with(NBTPath.compile(path), newValue);
+	}
+
+	/**
+	 * Like {@link #with(String, Object)}, with a compiled path.
+	 * @param path the path
+	 * @param newValue the new tag or value
+	 * @return the new version
+	 */
+	public NBTImmutableTag with(NBTPath path, Object newValue) {
+		checkConcrete(path);
+		return with(path, 0, newValue);
+	}
+
+	@SuppressWarnings("unchecked")
+	private NBTImmutableTag with(NBTPath path, int step, Object newValue) {
+		if(step == path.stepCount()){
+			return make(name, newValue);
+		}
+		boolean last = step + 1 == path.stepCount();
+		if(path.stepKind(step) == NBTPath.NAME){
+			String memberName = path.stepName(step);
+			NBTImmutableTag member = type == Type.TAG_Compound ? get(memberName) : null;
+			if(type != Type.TAG_Compound || (member == null && !last)){
+				throw new IllegalArgumentException("No member " + memberName + " at step " + step + " of " + path);
+			}
+			NBTImmutableTag changed = member == null ? make(memberName, newValue) : member.with(path, step + 1, newValue);
+			return new NBTImmutableTag(type, name, null, ((PersistentCompound) value).with(changed));
+		}
+		int n = type == Type.TAG_List ? size() : 0;
+		int i = path.stepIndex(step);
+		if(i < 0){
+			i += n;
+		}
+		if(type != Type.TAG_List || i < 0 || i > n || (i == n && !last)){
+			throw new IllegalArgumentException("No element " + path.stepIndex(step) + " at step " + step + " of " + path);
+		}
+		if(!(value instanceof PersistentVector)){
+			// list of numbers
+			NBTImmutableTag element = make(null, newValue);
+			if(!last || element.type != listType){
+				throw new IllegalArgumentException("A list of " + listType.name() + " tags cannot hold a " + element.type.name() + " at " + path);
+			}
+			Object a = Array.newInstance(value.getClass().getComponentType(), Math.max(n, i + 1));
+			System.arraycopy(value, 0, a, 0, n);
+			Array.set(a, i, element.value);
+			return new NBTImmutableTag(type, name, listType, a);
+		}
+		PersistentVector<NBTImmutableTag> v = (PersistentVector<NBTImmutableTag>) value;
+		NBTImmutableTag element = i == n ? make(null, newValue) : v.get(i).with(path, step + 1, newValue);
+		Type lt = listType;
+		if(element.type != lt){
+			if(n > 1 || (n == 1 && i == 1)){
+				throw new IllegalArgumentException("A list of " + lt.name() + " tags cannot hold a " + element.type.name() + " at " + path);
+			}
+			lt = element.type;
+		}
+		return new NBTImmutableTag(type, name, lt, i == n ? v.append(element) : v.set(i, element));
+	}
+
+	/**
+	 * Returns a new version of this tree without the tag at the end of a
+	 * path. Only the tags on the path are copied; removing an element from
+	 * a list copies that list.
+	 * @param path the path, see {@link NBTPath}; wildcards are not supported
+	 * @return the new version, or this tree if there is no such tag
+	 */
+	public NBTImmutableTag without(String path) {
+		return without(NBTPath.compile(path));
+	}
+
+	/**
+	 * Like {@link #without(String)}, with a compiled path.
+	 * @param path the path
+	 * @return the new version, or this tree if there is no such tag
+	 */
+	public NBTImmutableTag without(NBTPath path) {
+		checkConcrete(path);
+		if(path.stepCount() == 0){
+			throw new IllegalArgumentException("Cannot remove the root tag");
+		}
+		return without(path, 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private NBTImmutableTag without(NBTPath path, int step) {
+		boolean last = step + 1 == path.stepCount();
+		if(path.stepKind(step) == NBTPath.NAME){
+			if(type != Type.TAG_Compound){
+				return this;
+			}
+			PersistentCompound c = (PersistentCompound) value;
+			String memberName = path.stepName(step);
+			PersistentCompound changed;
+			if(last){
+				changed = c.without(memberName);
+			} else {
+				NBTImmutableTag member = c.get(memberName);
+				NBTImmutableTag m = member == null ? null : member.without(path, step + 1);
+				if(m == member){
+					return this;
+				}
+				changed = c.with(m);
+			}
+			return changed == c ? this : new NBTImmutableTag(type, name, null, changed);
+		}
+		if(type != Type.TAG_List){
+			return this;
+		}
+		int n = size();
+		int i = path.stepIndex(step);
+		if(i < 0){
+			i += n;
+		}
+		if(i < 0 || i >= n){
+			return this;
+		}
+		if(!(value instanceof PersistentVector)){
+			if(!last){
+				return this;
+			}
+			Object a = Array.newInstance(value.getClass().getComponentType(), n - 1);
+			System.arraycopy(value, 0, a, 0, i);
+			System.arraycopy(value, i + 1, a, i, n - 1 - i);
+			return new NBTImmutableTag(type, name, listType, a);
+		}
+		PersistentVector<NBTImmutableTag> v = (PersistentVector<NBTImmutableTag>) value;
+		if(!last){
+			NBTImmutableTag e = v.get(i).without(path, step + 1);
+			return e == v.get(i) ? this : new NBTImmutableTag(type, name, listType, v.set(i, e));
+		}
+		List<NBTImmutableTag> rest = new ArrayList<>(n - 1);
+		for(int j = 0; j < n; j++){
+			if(j != i){
+				rest.add(v.get(j));
+			}
+		}
+		return new NBTImmutableTag(type, name, listType, PersistentVector.of(rest));
+	}
+
+	@Override
+	public String toString() {
+		return asNBTag().toString();
+	}
+
+	private static void checkConcrete(NBTPath path) {
+		for(int step = 0; step < path.stepCount(); step++){
+			int kind = path.stepKind(step);
+			if(kind != NBTPath.NAME && kind != NBTPath.INDEX){
+				throw new IllegalArgumentException("Wildcards are not supported here: " + path);
+			}
+		}
+	}
+
+	/**
+	 * Turns the value passed to <code>with</code> into a tag.
+	 */
+	private static NBTImmutableTag make(String name, Object v) {
+		if(v instanceof NBTImmutableTag){
+			NBTImmutableTag t = (NBTImmutableTag) v;
+			if(name == null ? t.name == null : name.equals(t.name)){
+				return t;
+			}
+			return new NBTImmutableTag(t.type, name, t.listType, t.value);
+		}
+		if(v instanceof NBTag){
+			return copy((NBTag) v, name);
+		}
+		Type t;
+		if(v instanceof Byte){
+			t = Type.TAG_Byte;
+		} else if(v instanceof Short){
+			t = Type.TAG_Short;
+		} else if(v instanceof Integer){
+			t = Type.TAG_Int;
+		} else if(v instanceof Long){
+			t = Type.TAG_Long;
+		} else if(v instanceof Float){
+			t = Type.TAG_Float;
+		} else if(v instanceof Double){
+			t = Type.TAG_Double;
+		} else if(v instanceof String){
+			t = Type.TAG_String;
+		} else if(v instanceof byte[]){
+			return new NBTImmutableTag(Type.TAG_Byte_Array, name, null, copyArray(v));
+		} else if(v instanceof int[]){
+			return new NBTImmutableTag(Type.TAG_Int_Array, name, null, copyArray(v));
+		} else if(v instanceof long[]){
+			return new NBTImmutableTag(Type.TAG_Long_Array, name, null, copyArray(v));
+		} else {
+			throw new IllegalArgumentException((v == null ? "null" : v.getClass().getName()) + " cannot be stored in a NBTImmutableTag");
+		}
+		return new NBTImmutableTag(t, name, null, v);
+	}
+
+	private static Object copyArray(Object array) {
+		int n = Array.getLength(array);
+		Object copy = Array.newInstance(array.getClass().getComponentType(), n);
+		System.arraycopy(array, 0, copy, 0, n);
+		return copy;
+	}
+
+	/**
+	 * Read-only Map view of the members of a compound.
+	 */
+	/**
+	 * NBTag returned by {@link #asNBTag()}, which cannot be changed.
+	 */
+	private static final class ReadOnlyTag extends NBTag {
+
+		ReadOnlyTag(Type type, String name, Object value) {
+			super(type, name, value, false);
+		}
+
+		private static UnsupportedOperationException readOnly() {
+			return new UnsupportedOperationException("A view of an NBTImmutableTag cannot be changed");
+		}
+
+		@Override
+		public void setValue(Object newValue) {
+			throw readOnly();
+		}
+
+		@Override
+		public void addTag(NBTag tag) {
+			throw readOnly();
+		}
+
+		@Override
+		public NBTag removeTag(int index) {
+			throw readOnly();
+		}
+
+		@Override
+		public NBTag removeTag(String targetName) {
+			throw readOnly();
+		}
+
+		@Override
+		public void removeSubTag(NBTag tag) {
+			throw readOnly();
+		}
+	}
+
+	private static final class CompoundView extends AbstractMap<String,NBTag> {
+
+		private final PersistentCompound members;
+		private Set<Map.Entry<String,NBTag>> entrySet = null;
+
+		CompoundView(PersistentCompound members) {
+			this.members = members;
+		}
+
+		@Override
+		public int size() {
+			return members.size();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && members.get((String) key) != null;
+		}
+
+		@Override
+		public NBTag get(Object key) {
+			NBTImmutableTag t = key instanceof String ? members.get((String) key) : null;
+			return t == null ? null : t.asNBTag();
+		}
+
+		@Override
+		public Set<Map.Entry<String,NBTag>> entrySet() {
+			if(entrySet == null){
+				entrySet = new AbstractSet<Map.Entry<String,NBTag>>() {
+					@Override
+					public Iterator<Map.Entry<String,NBTag>> iterator() {
+						final Iterator<NBTImmutableTag> it = members.iterator();
+						return new Iterator<Map.Entry<String,NBTag>>() {
+							@Override
+							public boolean hasNext() {
+								return it.hasNext();
+							}
+
+							@Override
+							public Map.Entry<String,NBTag> next() {
+								NBTImmutableTag t = it.next();
+								return new AbstractMap.SimpleImmutableEntry<>(t.name, t.asNBTag());
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return members.size();
+					}
+				};
+			}
+			return entrySet;
+		}
+	}
+
+	/**
+	 * Read-only List view of the elements of a list.
+	 */
+	private static final class ListView extends AbstractList<NBTag> implements RandomAccess {
+
+		private final PersistentVector<NBTImmutableTag> elements;
+
+		ListView(PersistentVector<NBTImmutableTag> elements) {
+			this.elements = elements;
+		}
+
+		@Override
+		public NBTag get(int index) {
+			return elements.get(index).asNBTag();
+		}
+
+		@Override
+		public int size() {
+			return elements.size();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Saves the same tree again and again, encoding only what has changed since
+ * the previous save. The writer keeps the bytes of the last save; every tag
+ * remembers where it was in them, and tags that have not been changed since
+ * (see {@link NBTag#isDirty()}) are copied from there instead of being
+ * encoded again. After a few fields of a large document have been set, a
+ * save costs little more than one copy of the document. Example:
+ * <pre>
+ * NBTIncrementalWriter saver = new NBTIncrementalWriter();
+ * ...
+ * try(OutputStream out = Files.newOutputStream(file)){
+ *     saver.writeGZip(level, out);
+ * }
+ * </pre>
+ * Changes are tracked by {@link NBTag#setValue(Object)},
+ * {@link NBTag#addTag(NBTag)}, the removeTag methods and
+ * {@link NBTag#removeSubTag(NBTag)}. A tag whose Map or List has been
+ * changed directly, or whose array returned by a method like
+ * {@link NBTag#getIntList()} has been written to, must be marked with
+ * {@link NBTag#invalidateSize()}.
+ * <p>
+ * Compression still processes the whole document, so for compressed files
+ * the savings are in encoding only. A writer is meant for one tree at a
+ * time; writing another tree simply encodes that tree in full. Writers are
+ * not thread-safe.
+ */
+public final class NBTIncrementalWriter implements AutoCloseable {
+
+	private byte[] previous = null;
+	private int level = -1;
+	private NBTCodecContext codec = null;
+
+	/**
+	 * Creates a writer. The first save encodes the whole tree.
+	 */
+	public NBTIncrementalWriter() {
+	}
+
+	/**
+	 * Sets the compression level of {@link #writeGZip(NBTag, OutputStream)}.
+	 * @param level compression level from 0 to 9, or -1 for the default
+	 */
+	public void setLevel(int level) {
+		if(level < -1 || level > 9){
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+		if(codec != null){
+			codec.setLevel(level);
+		}
+	}
+
+	/**
+	 * Encodes a tag, reusing the bytes of unchanged tags from the previous
+	 * save.
+	 * @param tag the root tag
+	 * @return a read-only buffer holding the encoded tag, with the same
+	 * bytes as {@link NBTag#write(OutputStream)}; it is valid until the next
+	 * call to this writer
+	 */
+	public ByteBuffer encode(NBTag tag) {
+		int n = save(tag);
+		return ByteBuffer.wrap(previous, 0, n).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes a tag without compression.
+	 * @param tag the root tag
+	 * @param os stream to write to; it is neither flushed nor closed
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void write(NBTag tag, OutputStream os) throws IOException {
+		int n = save(tag);
+		os.write(previous, 0, n);
+	}
+
+	/**
+	 * Writes a tag with gzip compression.
+	 * @param tag the root tag
+	 * @param os stream to write to; it is neither flushed nor closed
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeGZip(NBTag tag, OutputStream os) throws IOException {
+		int n = save(tag);
+		if(codec == null){
+			codec = new NBTCodecContext(level);
+		}
+		codec.writeGZipMember(previous, 0, n, os);
+	}
+
+	/**
+	 * Discards the bytes of the previous save, so the next save encodes the
+	 * whole tree, and frees the compressor.
+	 */
+	@Override
+	public void close() {
+		previous = null;
+		if(codec != null){
+			codec.close();
+			codec = null;
+		}
+	}
+
+	/**
+	 * Encodes the tag into a new snapshot, which becomes the previous one.
+	 * @return the length of the snapshot
+	 */
+	private int save(NBTag tag) {
+		long size = tag.serializedSize();
+		if(size > Integer.MAX_VALUE - 8){
+			throw new OutOfMemoryError("Tag too large for an array: " + size + " bytes");
+		}
+		if(previous != null && !tag.isDirty() && tag.savedIn == previous && size == previous.length){
+			// nothing has changed
+			return previous.length;
+		}
+		byte[] snapshot = new byte[(int) size];
+		NBTBufferEncoder enc = new NBTBufferEncoder(ByteBuffer.wrap(snapshot), previous, snapshot);
+		enc.putTag(tag);
+		previous = snapshot;
+		return snapshot.length;
+	}
+}
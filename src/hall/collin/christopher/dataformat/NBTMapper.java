@@ -0,0 +1,870 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTReader.Event;
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Writes objects as NBT and reads them back, directly against the wire
+ * format through {@link NBTWriter} and {@link NBTReader}, without building
+ * a tree of {@link NBTag} objects. The fields to map are marked with
+ * {@link NBTField}:
+ * <pre>
+ * NBTWriter w = new NBTWriter(out);
+ * NBTMapper.write(w, "Entity", entity);
+ * w.flush();
+ * ...
+ * Entity e = NBTMapper.read(new NBTReader(in), Entity.class);
+ * </pre>
+ * Java types are mapped as follows:
+ * <ul>
+ * <li>byte, short, int, long, float, double and their wrappers map to the
+ * number tags, boolean to a TAG_Byte of 0 or 1, String and enums (by
+ * name) to TAG_String.</li>
+ * <li>byte[], int[] and long[] map to the array tags; short[], float[],
+ * double[] and arrays of other mapped types to TAG_List.</li>
+ * <li>Collections map to TAG_List, and maps with String keys to
+ * TAG_Compound. Their element types are taken from the type arguments of
+ * the field, and interfaces like List, Set or Map are read into an
+ * ArrayList, LinkedHashSet or LinkedHashMap.</li>
+ * <li>Any other class maps to TAG_Compound with a member for every
+ * annotated field, including those of its superclasses. It must have a
+ * constructor without arguments, which may be private.</li>
+ * </ul>
+ * Fields that are null are not written, and members missing from the input
+ * leave their fields as the constructor set them. Members without a
+ * matching field are skipped.
+ * <p>
+ * The fields of a class are looked up once and turned into method handles,
+ * so mapping does not go through reflection. Mapping is thread-safe.
+ */
+public final class NBTMapper {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final ClassValue<Codec> CODECS = new ClassValue<Codec>() {
+		@Override
+		protected Codec computeValue(Class<?> type) {
+			Codec c = simpleCodec(type);
+			return c != null ? c : new ObjectCodec(type);
+		}
+	};
+
+	private NBTMapper() {
+	}
+
+	/**
+	 * Writes an object as a named tag.
+	 * @param w writer to write to, at the root or inside a compound or list
+	 * @param name name of the tag (ignored inside a list)
+	 * @param obj the object to write
+	 * @throws IOException if an IOException occurred
+	 * @throws IllegalArgumentException if the class of the object or of one
+	 * of its fields cannot be mapped, or a list holds a null element
+	 */
+	public static void write(NBTWriter w, String name, Object obj) throws IOException {
+		if(obj == null){
+			throw new NullPointerException("Object cannot be null");
+		}
+		try{
+			CODECS.get(obj.getClass()).write(w, name, obj);
+		} catch(IOException | RuntimeException | Error ex){
+			throw ex;
+		} catch(Throwable ex){
+			throw new UndeclaredThrowableException(ex);
+		}
+	}
+
+	/**
+	 * Encodes an object as an uncompressed NBT document.
+	 * @param name name of the root tag
+	 * @param obj the object to write
+	 * @return the encoded document
+	 * @throws IllegalArgumentException if the class of the object or of one
+	 * of its fields cannot be mapped, or a list holds a null element
+	 */
+	public static byte[] toByteArray(String name, Object obj) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try{
+			NBTWriter w = new NBTWriter(out);
+			write(w, name, obj);
+			w.flush();
+		} catch(IOException ex){
+			throw new IllegalStateException(ex);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads an object. If called before the first event, this reads the root
+	 * tag; if called right after a {@link Event#NAME} event, this reads the
+	 * tag with that name.
+	 * @param <T> the type to read
+	 * @param r reader to read from
+	 * @param type class of the object to read
+	 * @return the object
+	 * @throws IOException if the input is not valid NBT, or a tag does not
+	 * have the type of its field, or if another IOException occurred
+	 * @throws IllegalArgumentException if the class or one of its fields
+	 * cannot be mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T read(NBTReader r, Class<T> type) throws IOException {
+		if(r.getEvent() != Event.NAME){
+			Event e = r.next();
+			if(e != Event.NAME){
+				throw new IllegalStateException("Expected a named tag but found " + e.name());
+			}
+		}
+		try{
+			return (T) CODECS.get(type).read(r);
+		} catch(IOException | RuntimeException | Error ex){
+			throw ex;
+		} catch(Throwable ex){
+			throw new UndeclaredThrowableException(ex);
+		}
+	}
+
+	/**
+	 * Reads the next payload and checks that it has the given type.
+	 */
+	private static void expect(NBTReader r, Type t) throws IOException {
+		Event e = r.next();
+		Type found;
+		switch(e){
+			case VALUE:
+				found = r.getType();
+				break;
+			case START_LIST:
+				found = Type.TAG_List;
+				break;
+			case START_COMPOUND:
+				found = Type.TAG_Compound;
+				break;
+			default:
+				throw new IOException("Expected " + t.name() + " but found " + e.name());
+		}
+		if(found != t){
+			throw new IOException("Expected " + t.name() + " but found " + found.name());
+		}
+	}
+
+	/**
+	 * Checks the element type of the list started by the current event.
+	 */
+	private static void expectElements(NBTReader r, Type t) throws IOException {
+		if(r.getListLength() > 0 && r.getListType() != t){
+			throw new IOException("Expected a list of " + t.name() + " but found a list of " + r.getListType().name());
+		}
+	}
+
+	private static void expectEnd(NBTReader r) throws IOException {
+		Event e = r.next();
+		if(e != Event.END){
+			throw new IOException("Expected the end of a list but found " + e.name());
+		}
+	}
+
+	/**
+	 * Returns the codec of a field, list element or map value type.
+	 */
+	private static Codec codecFor(java.lang.reflect.Type t) {
+		if(t instanceof Class){
+			Class<?> c = (Class<?>) t;
+			if(Collection.class.isAssignableFrom(c) || Map.class.isAssignableFrom(c)){
+				throw new IllegalArgumentException(c.getName() + " needs type arguments to be mapped");
+			}
+			return CODECS.get(c);
+		}
+		if(t instanceof ParameterizedType){
+			ParameterizedType p = (ParameterizedType) t;
+			Class<?> raw = (Class<?>) p.getRawType();
+			java.lang.reflect.Type[] args = p.getActualTypeArguments();
+			if(Collection.class.isAssignableFrom(raw)){
+				return new CollectionCodec(factory(raw, ArrayList.class, LinkedHashSet.class, TreeSet.class, ArrayDeque.class), codecFor(args[0]));
+			}
+			if(Map.class.isAssignableFrom(raw)){
+				if(args[0] != String.class){
+					throw new IllegalArgumentException("Map keys must be Strings: " + t);
+				}
+				return new MapCodec(factory(raw, LinkedHashMap.class, TreeMap.class, ConcurrentHashMap.class, ConcurrentSkipListMap.class), codecFor(args[1]));
+			}
+			return CODECS.get(raw);
+		}
+		if(t instanceof WildcardType){
+			return codecFor(((WildcardType) t).getUpperBounds()[0]);
+		}
+		throw new IllegalArgumentException("Cannot map type " + t);
+	}
+
+	/**
+	 * Returns the codec of a type that does not map to a compound of its
+	 * fields, or null.
+	 */
+	private static Codec simpleCodec(Class<?> c) {
+		if(c == byte.class || c == Byte.class){
+			return BYTE;
+		} else if(c == boolean.class || c == Boolean.class){
+			return BOOLEAN;
+		} else if(c == short.class || c == Short.class){
+			return SHORT;
+		} else if(c == int.class || c == Integer.class){
+			return INT;
+		} else if(c == long.class || c == Long.class){
+			return LONG;
+		} else if(c == float.class || c == Float.class){
+			return FLOAT;
+		} else if(c == double.class || c == Double.class){
+			return DOUBLE;
+		} else if(c == String.class){
+			return STRING;
+		} else if(c == byte[].class){
+			return BYTE_ARRAY;
+		} else if(c == int[].class){
+			return INT_ARRAY;
+		} else if(c == long[].class){
+			return LONG_ARRAY;
+		} else if(c == short[].class){
+			return new NumberListCodec(Type.TAG_Short);
+		} else if(c == float[].class){
+			return new NumberListCodec(Type.TAG_Float);
+		} else if(c == double[].class){
+			return new NumberListCodec(Type.TAG_Double);
+		} else if(c.isArray()){
+			return new ArrayCodec(c.getComponentType(), codecFor(c.getComponentType()));
+		} else if(c.isEnum()){
+			return new EnumCodec(c);
+		} else if(c.isPrimitive()){
+			throw new IllegalArgumentException("Cannot map type " + c.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a handle that creates an instance of the given class, or of the
+	 * first of the defaults that can be assigned to it if it is abstract.
+	 */
+	private static MethodHandle factory(Class<?> c, Class<?>... defaults) {
+		if(c.isInterface() || Modifier.isAbstract(c.getModifiers())){
+			for(Class<?> d : defaults){
+				if(c.isAssignableFrom(d)){
+					return constructor(d);
+				}
+			}
+			throw new IllegalArgumentException("No implementation known for " + c.getName());
+		}
+		return constructor(c);
+	}
+
+	private static MethodHandle constructor(Class<?> c) {
+		try{
+			Constructor<?> k = c.getDeclaredConstructor();
+			k.setAccessible(true);
+			return LOOKUP.unreflectConstructor(k).asType(MethodType.methodType(Object.class));
+		} catch(NoSuchMethodException ex){
+			throw new IllegalArgumentException(c.getName() + " has no constructor without arguments");
+		} catch(IllegalAccessException | RuntimeException ex){
+			throw new IllegalArgumentException("Cannot access the constructor of " + c.getName(), ex);
+		}
+	}
+
+	/**
+	 * Converts between a Java type and the payload of one tag type.
+	 */
+	private static abstract class Codec {
+
+		final Type type;
+
+		Codec(Type type) {
+			this.type = type;
+		}
+
+		/**
+		 * Writes a value as a named tag.
+		 */
+		abstract void write(NBTWriter w, String name, Object value) throws Throwable;
+
+		/**
+		 * Reads the next payload, after a NAME event or inside a list.
+		 */
+		abstract Object read(NBTReader r) throws Throwable;
+	}
+
+	private static final Codec BYTE = new Codec(Type.TAG_Byte) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeByte(name, (Byte) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getByte();
+		}
+	};
+
+	private static final Codec BOOLEAN = new Codec(Type.TAG_Byte) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeByte(name, (Boolean) value ? (byte) 1 : (byte) 0);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getByte() != 0;
+		}
+	};
+
+	private static final Codec SHORT = new Codec(Type.TAG_Short) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeShort(name, (Short) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getShort();
+		}
+	};
+
+	private static final Codec INT = new Codec(Type.TAG_Int) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeInt(name, (Integer) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getInt();
+		}
+	};
+
+	private static final Codec LONG = new Codec(Type.TAG_Long) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeLong(name, (Long) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getLong();
+		}
+	};
+
+	private static final Codec FLOAT = new Codec(Type.TAG_Float) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeFloat(name, (Float) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getFloat();
+		}
+	};
+
+	private static final Codec DOUBLE = new Codec(Type.TAG_Double) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeDouble(name, (Double) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getDouble();
+		}
+	};
+
+	private static final Codec STRING = new Codec(Type.TAG_String) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeString(name, (String) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getString();
+		}
+	};
+
+	private static final Codec BYTE_ARRAY = new Codec(Type.TAG_Byte_Array) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeByteArray(name, (byte[]) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getByteArray();
+		}
+	};
+
+	private static final Codec INT_ARRAY = new Codec(Type.TAG_Int_Array) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeIntArray(name, (int[]) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getIntArray();
+		}
+	};
+
+	private static final Codec LONG_ARRAY = new Codec(Type.TAG_Long_Array) {
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeLongArray(name, (long[]) value);
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			return r.getLongArray();
+		}
+	};
+
+	/**
+	 * short[], float[] or double[] as a TAG_List, read in bulk.
+	 */
+	private static final class NumberListCodec extends Codec {
+
+		private final Type elementType;
+
+		NumberListCodec(Type elementType) {
+			super(Type.TAG_List);
+			this.elementType = elementType;
+		}
+
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			int n = Array.getLength(value);
+			w.beginList(name, elementType, n);
+			switch(elementType){
+				case TAG_Short:
+					for(short v : (short[]) value){
+						w.writeShort(null, v);
+					}
+					break;
+				case TAG_Float:
+					for(float v : (float[]) value){
+						w.writeFloat(null, v);
+					}
+					break;
+				default:
+					for(double v : (double[]) value){
+						w.writeDouble(null, v);
+					}
+					break;
+			}
+			w.end();
+		}
+
+		@Override
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			expectElements(r, elementType);
+			if(r.getListLength() == 0){
+				expectEnd(r);
+				return elementType == Type.TAG_Short ? new short[0] : elementType == Type.TAG_Float ? (Object) new float[0] : new double[0];
+			}
+			return r.readListArray();
+		}
+	}
+
+	private static final class EnumCodec extends Codec {
+
+		private final Class<?> enumType;
+
+		EnumCodec(Class<?> enumType) {
+			super(Type.TAG_String);
+			this.enumType = enumType;
+		}
+
+		@Override
+		void write(NBTWriter w, String name, Object value) throws IOException {
+			w.writeString(name, ((Enum<?>) value).name());
+		}
+
+		@Override
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Object read(NBTReader r) throws IOException {
+			expect(r, type);
+			String s = r.getString();
+			try{
+				return Enum.valueOf((Class) enumType, s);
+			} catch(IllegalArgumentException ex){
+				throw new IOException("No constant " + s + " in " + enumType.getName());
+			}
+		}
+	}
+
+	/**
+	 * Object arrays as a TAG_List.
+	 */
+	private static final class ArrayCodec extends Codec {
+
+		private final Class<?> componentType;
+		private final Codec element;
+
+		ArrayCodec(Class<?> componentType, Codec element) {
+			super(Type.TAG_List);
+			this.componentType = componentType;
+			this.element = element;
+		}
+
+		@Override
+		void write(NBTWriter w, String name, Object value) throws Throwable {
+			Object[] a = (Object[]) value;
+			w.beginList(name, element.type, a.length);
+			for(Object e : a){
+				writeElement(w, element, e);
+			}
+			w.end();
+		}
+
+		@Override
+		Object read(NBTReader r) throws Throwable {
+			expect(r, type);
+			expectElements(r, element.type);
+			Object[] a = (Object[]) Array.newInstance(componentType, r.getListLength());
+			for(int i = 0; i < a.length; i++){
+				a[i] = element.read(r);
+			}
+			expectEnd(r);
+			return a;
+		}
+	}
+
+	private static void writeElement(NBTWriter w, Codec element, Object e) throws Throwable {
+		if(e == null){
+			throw new IllegalArgumentException("NBT lists cannot hold null elements");
+		}
+		element.write(w, null, e);
+	}
+
+	private static final class CollectionCodec extends Codec {
+
+		private final MethodHandle factory;
+		private final Codec element;
+
+		CollectionCodec(MethodHandle factory, Codec element) {
+			super(Type.TAG_List);
+			this.factory = factory;
+			this.element = element;
+		}
+
+		@Override
+		void write(NBTWriter w, String name, Object value) throws Throwable {
+			Collection<?> c = (Collection<?>) value;
+			w.beginList(name, element.type, c.size());
+			for(Object e : c){
+				writeElement(w, element, e);
+			}
+			w.end();
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		Object read(NBTReader r) throws Throwable {
+			expect(r, type);
+			expectElements(r, element.type);
+			Collection<Object> c = (Collection<Object>) (Object) factory.invokeExact();
+			for(int i = r.getListLength(); i > 0; i--){
+				c.add(element.read(r));
+			}
+			expectEnd(r);
+			return c;
+		}
+	}
+
+	private static final class MapCodec extends Codec {
+
+		private final MethodHandle factory;
+		private final Codec value;
+
+		MapCodec(MethodHandle factory, Codec value) {
+			super(Type.TAG_Compound);
+			this.factory = factory;
+			this.value = value;
+		}
+
+		@Override
+		void write(NBTWriter w, String name, Object map) throws Throwable {
+			w.beginCompound(name);
+			for(Map.Entry<?,?> e : ((Map<?,?>) map).entrySet()){
+				if(e.getValue() != null){
+					value.write(w, (String) e.getKey(), e.getValue());
+				}
+			}
+			w.end();
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		Object read(NBTReader r) throws Throwable {
+			expect(r, type);
+			Map<String,Object> map = (Map<String,Object>) (Object) factory.invokeExact();
+			while(r.next() == Event.NAME){
+				map.put(r.getName(), value.read(r));
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * A class with annotated fields as a TAG_Compound. The fields are
+	 * resolved on first use, so that classes can refer to themselves.
+	 */
+	private static final class ObjectCodec extends Codec {
+
+		private final Class<?> c;
+		private volatile Property[] properties = null;
+		private Map<String,Property> byName;
+		private MethodHandle constructor;
+
+		ObjectCodec(Class<?> c) {
+			super(Type.TAG_Compound);
+			if(c.isInterface() || Modifier.isAbstract(c.getModifiers())){
+				throw new IllegalArgumentException("Cannot map abstract type " + c.getName());
+			}
+			if(annotatedFields(c).isEmpty()){
+				throw new IllegalArgumentException(c.getName() + " has no @NBTField fields");
+			}
+			this.c = c;
+		}
+
+		private Property[] properties() {
+			Property[] p = properties;
+			if(p == null){
+				List<Field> fields = annotatedFields(c);
+				p = new Property[fields.size()];
+				Map<String,Property> m = new HashMap<>();
+				for(int i = 0; i < p.length; i++){
+					p[i] = new Property(fields.get(i));
+					if(m.put(p[i].name, p[i]) != null){
+						throw new IllegalArgumentException(c.getName() + " maps two fields to the tag name " + p[i].name);
+					}
+				}
+				try{
+					constructor = constructor(c);
+				} catch(IllegalArgumentException ex){
+					// the class can still be written
+					constructor = null;
+				}
+				byName = m;
+				properties = p;
+			}
+			return p;
+		}
+
+		@Override
+		void write(NBTWriter w, String name, Object value) throws Throwable {
+			Property[] p = properties();
+			w.beginCompound(name);
+			for(Property f : p){
+				f.write(w, value);
+			}
+			w.end();
+		}
+
+		@Override
+		Object read(NBTReader r) throws Throwable {
+			properties();
+			if(constructor == null){
+				throw new IllegalArgumentException(c.getName() + " has no constructor without arguments");
+			}
+			expect(r, type);
+			Object obj = (Object) constructor.invokeExact();
+			while(r.next() == Event.NAME){
+				Property f = byName.get(r.getName());
+				if(f == null){
+					r.skip();
+				} else {
+					f.read(r, obj);
+				}
+			}
+			return obj;
+		}
+	}
+
+	/**
+	 * Returns the annotated instance fields of a class and its superclasses,
+	 * superclass fields first.
+	 */
+	private static List<Field> annotatedFields(Class<?> c) {
+		List<Field> fields = new ArrayList<>();
+		if(c.getSuperclass() != null){
+			fields.addAll(annotatedFields(c.getSuperclass()));
+		}
+		for(Field f : c.getDeclaredFields()){
+			if(f.isAnnotationPresent(NBTField.class) && !Modifier.isStatic(f.getModifiers())){
+				fields.add(f);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * An annotated field. Fields of primitive types are read and written
+	 * through typed handles, without boxing.
+	 */
+	private static final class Property {
+
+		private static final int OBJECT = 0;
+		private static final int BOOLEAN = 1;
+		private static final int BYTE = 2;
+		private static final int SHORT = 3;
+		private static final int INT = 4;
+		private static final int LONG = 5;
+		private static final int FLOAT = 6;
+		private static final int DOUBLE = 7;
+
+		final String name;
+		private final int kind;
+		private final Codec codec;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+
+		Property(Field f) {
+			String n = f.getAnnotation(NBTField.class).value();
+			this.name = n.isEmpty() ? f.getName() : n;
+			Class<?> t = f.getType();
+			if(t == boolean.class){
+				kind = BOOLEAN;
+			} else if(t == byte.class){
+				kind = BYTE;
+			} else if(t == short.class){
+				kind = SHORT;
+			} else if(t == int.class){
+				kind = INT;
+			} else if(t == long.class){
+				kind = LONG;
+			} else if(t == float.class){
+				kind = FLOAT;
+			} else if(t == double.class){
+				kind = DOUBLE;
+			} else if(t.isPrimitive()){
+				throw new IllegalArgumentException("Cannot map field " + f + " of type " + t.getName());
+			} else {
+				kind = OBJECT;
+			}
+			if(Modifier.isFinal(f.getModifiers())){
+				throw new IllegalArgumentException("Cannot map final field " + f);
+			}
+			try{
+				this.codec = codecFor(f.getGenericType());
+			} catch(IllegalArgumentException ex){
+				throw new IllegalArgumentException("Cannot map field " + f + ": " + ex.getMessage(), ex);
+			}
+			try{
+				f.setAccessible(true);
+				Class<?> v = kind == OBJECT ? Object.class : t;
+				this.getter = LOOKUP.unreflectGetter(f).asType(MethodType.methodType(v, Object.class));
+				this.setter = LOOKUP.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, v));
+			} catch(IllegalAccessException | RuntimeException ex){
+				throw new IllegalArgumentException("Cannot access field " + f, ex);
+			}
+		}
+
+		void write(NBTWriter w, Object obj) throws Throwable {
+			switch(kind){
+				case BOOLEAN:
+					w.writeByte(name, (boolean) getter.invokeExact(obj) ? (byte) 1 : (byte) 0);
+					break;
+				case BYTE:
+					w.writeByte(name, (byte) getter.invokeExact(obj));
+					break;
+				case SHORT:
+					w.writeShort(name, (short) getter.invokeExact(obj));
+					break;
+				case INT:
+					w.writeInt(name, (int) getter.invokeExact(obj));
+					break;
+				case LONG:
+					w.writeLong(name, (long) getter.invokeExact(obj));
+					break;
+				case FLOAT:
+					w.writeFloat(name, (float) getter.invokeExact(obj));
+					break;
+				case DOUBLE:
+					w.writeDouble(name, (double) getter.invokeExact(obj));
+					break;
+				default:
+					Object v = (Object) getter.invokeExact(obj);
+					if(v != null){
+						codec.write(w, name, v);
+					}
+					break;
+			}
+		}
+
+		void read(NBTReader r, Object obj) throws Throwable {
+			switch(kind){
+				case BOOLEAN:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getByte() != 0);
+					break;
+				case BYTE:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getByte());
+					break;
+				case SHORT:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getShort());
+					break;
+				case INT:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getInt());
+					break;
+				case LONG:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getLong());
+					break;
+				case FLOAT:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getFloat());
+					break;
+				case DOUBLE:
+					expect(r, codec.type);
+					setter.invokeExact(obj, r.getDouble());
+					break;
+				default:
+					setter.invokeExact(obj, codec.read(r));
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opt-in metrics for NBT reads and writes. Metrics are off until a listener
+ * is installed; while they are off, each read or write only checks a
+ * volatile field, so the hook can stay in place under real load. Example:
+ * <pre>
+ * NBTMetricsCollector metrics = NBTMetrics.enableJmx();
+ * ...
+ * long tags = metrics.getTagsDecoded();
+ * </pre>
+ * The hook covers {@link NBTag#readNBTag(java.io.DataInputStream)},
+ * {@link NBTag#readFromGZipStream(InputStream)} (with their overloads),
+ * {@link NBTag#write(OutputStream)} and {@link NBTag#writeToGZip(OutputStream)}.
+ */
+public final class NBTMetrics {
+
+	static volatile NBTMetricsListener listener = null;
+
+	private NBTMetrics() {
+	}
+
+	/**
+	 * Installs a listener that receives the statistics of every read and
+	 * write, replacing the current one.
+	 * @param l the listener, or null to turn metrics off
+	 */
+	public static void setListener(NBTMetricsListener l) {
+		listener = l;
+	}
+
+	/**
+	 * Returns the installed listener, or null if metrics are off.
+	 */
+	public static NBTMetricsListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Creates a {@link NBTMetricsCollector}, registers it with the platform
+	 * MBean server under {@link NBTMetricsCollector#OBJECT_NAME} and installs
+	 * it as the listener.
+	 * @return the collector
+	 * @throws IllegalStateException if the MBean could not be registered,
+	 * for example because another collector is already registered
+	 */
+	public static NBTMetricsCollector enableJmx() {
+		NBTMetricsCollector collector = new NBTMetricsCollector();
+		collector.register();
+		setListener(collector);
+		return collector;
+	}
+
+	/**
+	 * Reads a tag while collecting statistics for the listener.
+	 */
+	static NBTag read(NBTMetricsListener l, InputStream is, boolean gzip, NBTNameCache names, NBTProjection projection) throws IOException {
+		long start = System.nanoTime();
+		NBTOperationStats stats = new NBTOperationStats(gzip);
+		CountingInputStream compressed = gzip ? new CountingInputStream(is) : null;
+		CountingInputStream raw = new CountingInputStream(gzip ? new GZIPInputStream(compressed) : is);
+		NBTReader reader = new NBTReader(raw);
+		reader.setNameCache(names);
+		reader.setStats(stats);
+		NBTag tag = reader.readTag(projection);
+		stats.finish(System.nanoTime() - start, raw.count, compressed == null ? 0 : compressed.count);
+		l.decoded(stats);
+		return tag;
+	}
+
+	/**
+	 * Writes a tag while collecting statistics for the listener.
+	 */
+	static void write(NBTMetricsListener l, NBTag tag, OutputStream os, boolean gzip) throws IOException {
+		long start = System.nanoTime();
+		NBTOperationStats stats = new NBTOperationStats(gzip);
+		CountingOutputStream compressed = gzip ? new CountingOutputStream(os) : null;
+		GZIPOutputStream gzos = gzip ? new GZIPOutputStream(compressed) : null;
+		CountingOutputStream raw = new CountingOutputStream(gzip ? gzos : os);
+		DataOutputStream dos = new DataOutputStream(raw);
+		tag.writeTag(dos);
+		if(gzip){
+			gzos.finish();
+		} else {
+			dos.flush();
+		}
+		long nanos = System.nanoTime() - start;
+		stats.count(tag, 0);
+		stats.finish(nanos, raw.count, compressed == null ? 0 : compressed.count);
+		l.encoded(stats);
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0){
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n > 0){
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
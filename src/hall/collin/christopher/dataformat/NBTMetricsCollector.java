@@ -0,0 +1,272 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Thread-safe {@link NBTMetricsListener} that sums up the statistics of all
+ * reads and writes and exposes them as a platform MXBean. Latencies are
+ * recorded in a histogram with power-of-two buckets from 1 microsecond to
+ * about 1 minute.
+ * @see NBTMetrics#enableJmx()
+ */
+public class NBTMetricsCollector implements NBTMetricsListener, NBTMetricsMXBean {
+
+	/** Object name used by {@link #register()}. */
+	public static final String OBJECT_NAME = "hall.collin.christopher.dataformat:type=NBTMetrics";
+
+	private static final Type[] TYPES = Type.values();
+	private static final int BUCKETS = 28;
+
+	private final Counters decode = new Counters();
+	private final Counters encode = new Counters();
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final AtomicInteger largestArray = new AtomicInteger();
+
+	private ObjectName registeredName = null;
+
+	@Override
+	public void decoded(NBTOperationStats stats) {
+		decode.add(stats);
+		update(stats);
+	}
+
+	@Override
+	public void encoded(NBTOperationStats stats) {
+		encode.add(stats);
+		update(stats);
+	}
+
+	/**
+	 * Registers this collector with the platform MBean server under
+	 * {@link #OBJECT_NAME}.
+	 * @throws IllegalStateException if the MBean could not be registered
+	 */
+	public synchronized void register() {
+		try{
+			ObjectName on = new ObjectName(OBJECT_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			registeredName = on;
+		} catch(JMException ex){
+			throw new IllegalStateException("Could not register " + OBJECT_NAME, ex);
+		}
+	}
+
+	/**
+	 * Removes this collector from the platform MBean server, if it was
+	 * registered.
+	 */
+	public synchronized void unregister() {
+		if(registeredName == null){
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try{
+			if(server.isRegistered(registeredName)){
+				server.unregisterMBean(registeredName);
+			}
+		} catch(JMException ex){
+			throw new IllegalStateException("Could not unregister " + registeredName, ex);
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public long getDecodeCount() {
+		return decode.operations.sum();
+	}
+
+	@Override
+	public long getEncodeCount() {
+		return encode.operations.sum();
+	}
+
+	@Override
+	public long getTagsDecoded() {
+		return decode.totalTags();
+	}
+
+	@Override
+	public long getTagsEncoded() {
+		return encode.totalTags();
+	}
+
+	@Override
+	public Map<String,Long> getTagsDecodedByType() {
+		return decode.tagsByType();
+	}
+
+	@Override
+	public Map<String,Long> getTagsEncodedByType() {
+		return encode.tagsByType();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return decode.rawBytes.sum();
+	}
+
+	@Override
+	public long getCompressedBytesRead() {
+		return decode.compressedBytes.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return encode.rawBytes.sum();
+	}
+
+	@Override
+	public long getCompressedBytesWritten() {
+		return encode.compressedBytes.sum();
+	}
+
+	@Override
+	public long getDecodeNanos() {
+		return decode.nanos.sum();
+	}
+
+	@Override
+	public long getEncodeNanos() {
+		return encode.nanos.sum();
+	}
+
+	@Override
+	public long[] getDecodeLatencyHistogram() {
+		return decode.histogram();
+	}
+
+	@Override
+	public long[] getEncodeLatencyHistogram() {
+		return encode.histogram();
+	}
+
+	@Override
+	public long[] getLatencyBucketLimitsMicros() {
+		long[] limits = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS - 1; i++){
+			limits[i] = 1L << i;
+		}
+		limits[BUCKETS - 1] = Long.MAX_VALUE;
+		return limits;
+	}
+
+	@Override
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	@Override
+	public int getLargestArray() {
+		return largestArray.get();
+	}
+
+	@Override
+	public void reset() {
+		decode.reset();
+		encode.reset();
+		maxDepth.set(0);
+		largestArray.set(0);
+	}
+
+	private void update(NBTOperationStats stats) {
+		max(maxDepth, stats.getMaxDepth());
+		max(largestArray, stats.getLargestArray());
+	}
+
+	private static void max(AtomicInteger a, int v) {
+		int current;
+		while(v > (current = a.get())){
+			if(a.compareAndSet(current, v)){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the histogram bucket of a duration: bucket 0 holds durations
+	 * below 1 microsecond, bucket i durations below 2^i microseconds.
+	 */
+	static int bucket(long nanos) {
+		long micros = nanos / 1000;
+		int b = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	/**
+	 * Counters for one direction (reading or writing).
+	 */
+	private static final class Counters {
+		final LongAdder operations = new LongAdder();
+		final LongAdder rawBytes = new LongAdder();
+		final LongAdder compressedBytes = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder[] tags = new LongAdder[TYPES.length];
+		final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+
+		Counters() {
+			for(int i = 0; i < tags.length; i++){
+				tags[i] = new LongAdder();
+			}
+		}
+
+		void add(NBTOperationStats stats) {
+			operations.increment();
+			rawBytes.add(stats.getRawBytes());
+			compressedBytes.add(stats.getCompressedBytes());
+			nanos.add(stats.getNanos());
+			for(Type t : TYPES){
+				long n = stats.getTagCount(t);
+				if(n != 0){
+					tags[t.ordinal()].add(n);
+				}
+			}
+			latency.incrementAndGet(bucket(stats.getNanos()));
+		}
+
+		long totalTags() {
+			long n = 0;
+			for(LongAdder a : tags){
+				n += a.sum();
+			}
+			return n;
+		}
+
+		Map<String,Long> tagsByType() {
+			Map<String,Long> m = new LinkedHashMap<>();
+			for(Type t : TYPES){
+				m.put(t.name(), tags[t.ordinal()].sum());
+			}
+			return m;
+		}
+
+		long[] histogram() {
+			long[] h = new long[BUCKETS];
+			for(int i = 0; i < BUCKETS; i++){
+				h[i] = latency.get(i);
+			}
+			return h;
+		}
+
+		void reset() {
+			operations.reset();
+			rawBytes.reset();
+			compressedBytes.reset();
+			nanos.reset();
+			for(LongAdder a : tags){
+				a.reset();
+			}
+			for(int i = 0; i < BUCKETS; i++){
+				latency.set(i, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package hall.collin.christopher.dataformat;
+
+/**
+ * Receives the statistics of every NBT read and write once it has been
+ * installed with {@link NBTMetrics#setListener(NBTMetricsListener)}.
+ * Listeners are called on the thread that did the I/O, right after it
+ * completed, so they must be thread-safe and quick. They should not throw
+ * exceptions, which would be passed on to the caller of the read or write
+ * method.
+ * @see NBTMetricsCollector
+ */
+public interface NBTMetricsListener {
+
+	/**
+	 * Called after a tag has been read by {@link NBTag#readNBTag(java.io.DataInputStream)}
+	 * or {@link NBTag#readFromGZipStream(java.io.InputStream)} (or one of
+	 * their overloads).
+	 * @param stats statistics of the read; the object is not reused
+	 */
+	void decoded(NBTOperationStats stats);
+
+	/**
+	 * Called after a tag has been written by {@link NBTag#write(java.io.OutputStream)}
+	 * or {@link NBTag#writeToGZip(java.io.OutputStream)}.
+	 * @param stats statistics of the write; the object is not reused
+	 */
+	void encoded(NBTOperationStats stats);
+}
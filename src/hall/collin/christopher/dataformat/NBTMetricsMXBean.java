@@ -0,0 +1,74 @@
+package hall.collin.christopher.dataformat;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link NBTMetricsCollector}. All counters are
+ * totals since the collector was created or last reset.
+ */
+public interface NBTMetricsMXBean {
+
+	/** Returns the number of tags that were read. */
+	long getDecodeCount();
+
+	/** Returns the number of tags that were written. */
+	long getEncodeCount();
+
+	/** Returns the number of tags read, including all nested tags. */
+	long getTagsDecoded();
+
+	/** Returns the number of tags written, including all nested tags. */
+	long getTagsEncoded();
+
+	/** Returns the number of tags read per type name. */
+	Map<String,Long> getTagsDecodedByType();
+
+	/** Returns the number of tags written per type name. */
+	Map<String,Long> getTagsEncodedByType();
+
+	/** Returns the number of uncompressed bytes read. */
+	long getBytesRead();
+
+	/** Returns the number of compressed bytes read. */
+	long getCompressedBytesRead();
+
+	/** Returns the number of uncompressed bytes written. */
+	long getBytesWritten();
+
+	/** Returns the number of compressed bytes written. */
+	long getCompressedBytesWritten();
+
+	/** Returns the total time spent reading, in nanoseconds. */
+	long getDecodeNanos();
+
+	/** Returns the total time spent writing, in nanoseconds. */
+	long getEncodeNanos();
+
+	/**
+	 * Returns the number of reads per latency bucket, see
+	 * {@link #getLatencyBucketLimitsMicros()}.
+	 */
+	long[] getDecodeLatencyHistogram();
+
+	/**
+	 * Returns the number of writes per latency bucket, see
+	 * {@link #getLatencyBucketLimitsMicros()}.
+	 */
+	long[] getEncodeLatencyHistogram();
+
+	/**
+	 * Returns the exclusive upper limit of each latency bucket in
+	 * microseconds. The last bucket has no limit and is reported as
+	 * Long.MAX_VALUE.
+	 */
+	long[] getLatencyBucketLimitsMicros();
+
+	/** Returns the deepest nesting of list and compound tags seen. */
+	int getMaxDepth();
+
+	/** Returns the length of the largest byte, int or long array seen. */
+	int getLargestArray();
+
+	/** Sets all counters back to zero. */
+	void reset();
+}
@@ -0,0 +1,172 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+
+/**
+ * Symbol table for tag names. NBT files tend to repeat the same few hundred
+ * tag names over and over; when a cache is given to a reader, each name is
+ * looked up by its raw bytes and the same canonical String instance is
+ * returned every time, so neither a byte[] nor a String is allocated for
+ * names that were seen before.
+ * <p>
+ * The cache is bounded: once it holds its maximum number of names, new names
+ * are still decoded but no longer added, and names longer than the maximum
+ * name length are never added. This keeps untrusted input from growing the
+ * cache without limit. Instances are not thread-safe; use one cache per
+ * thread, for example by keeping it next to the thread's other reusable
+ * buffers, and reuse it for as many documents as you like.
+ */
+public final class NBTNameCache {
+
+	/** Default maximum number of cached names. */
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+	/** Default maximum length (in bytes) of a cached name. */
+	public static final int DEFAULT_MAX_NAME_LENGTH = 64;
+
+	private final int maxEntries;
+	private final int maxNameLength;
+	private final byte[][] keys;
+	private final String[] values;
+	private final int[] hashes;
+	private int size = 0;
+
+	private char[] chars = new char[64];
+
+	/**
+	 * Creates a cache that holds up to {@link #DEFAULT_MAX_ENTRIES} names of
+	 * up to {@link #DEFAULT_MAX_NAME_LENGTH} bytes each.
+	 */
+	public NBTNameCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_NAME_LENGTH);
+	}
+
+	/**
+	 * Creates a cache with the given bounds.
+	 * @param maxEntries maximum number of names to keep
+	 * @param maxNameLength maximum length, in bytes of modified UTF-8, of a
+	 * name to keep
+	 */
+	public NBTNameCache(int maxEntries, int maxNameLength) {
+		if(maxEntries < 1 || maxEntries > (1 << 28)){
+			throw new IllegalArgumentException("Invalid number of entries: " + maxEntries);
+		}
+		if(maxNameLength < 0){
+			throw new IllegalArgumentException("Negative name length: " + maxNameLength);
+		}
+		this.maxEntries = maxEntries;
+		this.maxNameLength = maxNameLength;
+		int capacity = Integer.highestOneBit(maxEntries) * 4;
+		this.keys = new byte[capacity][];
+		this.values = new String[capacity];
+		this.hashes = new int[capacity];
+	}
+
+	/**
+	 * Returns the number of cached names.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all cached names.
+	 */
+	public void clear() {
+		Arrays.fill(keys, null);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Returns the canonical String for a name given as modified UTF-8
+	 * bytes, decoding and caching it if it has not been seen before.
+	 */
+	String intern(byte[] b, int off, int len) throws UTFDataFormatException {
+		if(len > maxNameLength){
+			return decode(b, off, len);
+		}
+		int h = 1;
+		for(int i = off, end = off + len; i < end; i++){
+			h = 31 * h + b[i];
+		}
+		int mask = keys.length - 1;
+		int slot = (h ^ (h >>> 16)) & mask;
+		byte[] key;
+		while((key = keys[slot]) != null){
+			if(hashes[slot] == h && key.length == len && regionEquals(key, b, off, len)){
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		String s = decode(b, off, len);
+		if(size < maxEntries){
+			keys[slot] = Arrays.copyOfRange(b, off, off + len);
+			values[slot] = s;
+			hashes[slot] = h;
+			size++;
+		}
+		return s;
+	}
+
+	private static boolean regionEquals(byte[] key, byte[] b, int off, int len) {
+		for(int i = 0; i < len; i++){
+			if(key[i] != b[off + i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes modified UTF-8 (the encoding of DataOutput.writeUTF) without
+	 * allocating anything but the resulting String.
+	 */
+	String decode(byte[] b, int off, int len) throws UTFDataFormatException {
+		if(chars.length < len){
+			chars = new char[Math.max(len, chars.length * 2)];
+		}
+		return decode(b, off, len, chars);
+	}
+
+	/**
+	 * Decodes modified UTF-8 using the given scratch array, which must hold
+	 * at least <code>len</code> chars.
+	 */
+	static String decode(byte[] b, int off, int len, char[] chars) throws UTFDataFormatException {
+		int n = 0;
+		int i = off;
+		int end = off + len;
+		while(i < end){
+			int c = b[i] & 0xFF;
+			if(c < 0x80){
+				chars[n++] = (char) c;
+				i++;
+			} else if((c >> 5) == 0x6){
+				if(i + 1 >= end){
+					throw new UTFDataFormatException("Malformed input: partial character at end");
+				}
+				int c2 = b[i + 1];
+				if((c2 & 0xC0) != 0x80){
+					throw new UTFDataFormatException("Malformed input around byte " + (i - off));
+				}
+				chars[n++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+				i += 2;
+			} else if((c >> 4) == 0xE){
+				if(i + 2 >= end){
+					throw new UTFDataFormatException("Malformed input: partial character at end");
+				}
+				int c2 = b[i + 1];
+				int c3 = b[i + 2];
+				if((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80){
+					throw new UTFDataFormatException("Malformed input around byte " + (i - off));
+				}
+				chars[n++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+				i += 3;
+			} else {
+				throw new UTFDataFormatException("Malformed input around byte " + (i - off));
+			}
+		}
+		return new String(chars, 0, n);
+	}
+}
@@ -0,0 +1,169 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of a single read or write, passed to a
+ * {@link NBTMetricsListener}.
+ */
+public final class NBTOperationStats {
+
+	private static final Type[] TYPES = Type.values();
+
+	private final boolean compressed;
+	private final long[] tagCounts = new long[TYPES.length];
+	private long rawBytes = 0;
+	private long compressedBytes = 0;
+	private long nanos = 0;
+	private int maxDepth = 0;
+	private int largestArray = 0;
+
+	NBTOperationStats(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Returns true if the data was gzip-compressed.
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the number of tags of the given type that were read or
+	 * written, including list elements and the root tag.
+	 */
+	public long getTagCount(Type t) {
+		return tagCounts[t.ordinal()];
+	}
+
+	/**
+	 * Returns the total number of tags that were read or written.
+	 */
+	public long getTagCount() {
+		long n = 0;
+		for(long c : tagCounts){
+			n += c;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of uncompressed NBT bytes.
+	 */
+	public long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * Returns the number of compressed bytes, or 0 if the data was not
+	 * compressed.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 * Returns the duration of the read or write in nanoseconds.
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Returns the deepest nesting of list and compound tags, where the
+	 * contents of the root tag are at depth 1.
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the length of the largest byte, int or long array.
+	 */
+	public int getLargestArray() {
+		return largestArray;
+	}
+
+	void tag(Type t) {
+		tagCounts[t.ordinal()]++;
+	}
+
+	void tags(Type t, int n) {
+		tagCounts[t.ordinal()] += n;
+	}
+
+	void depth(int d) {
+		if(d > maxDepth){
+			maxDepth = d;
+		}
+	}
+
+	void array(int length) {
+		if(length > largestArray){
+			largestArray = length;
+		}
+	}
+
+	void finish(long nanos, long rawBytes, long compressedBytes) {
+		this.nanos = nanos;
+		this.rawBytes = rawBytes;
+		this.compressedBytes = compressedBytes;
+	}
+
+	/**
+	 * Counts a tag and everything nested inside it. Members of a lazily read
+	 * compound that were never decoded are counted by their type only.
+	 */
+	@SuppressWarnings("unchecked")
+	void count(NBTag tag, int depth) {
+		Type t = tag.getType();
+		tag(t);
+		Object value = tag.getValue();
+		switch(t){
+			case TAG_Byte_Array:
+				array(value instanceof byte[] ? ((byte[]) value).length : ((ByteBuffer) value).remaining());
+				break;
+			case TAG_Int_Array:
+				array(((int[]) value).length);
+				break;
+			case TAG_Long_Array:
+				array(((long[]) value).length);
+				break;
+			case TAG_List:
+				depth(depth + 1);
+				if(value instanceof PrimitiveList){
+					PrimitiveList pl = (PrimitiveList) value;
+					tags(pl.getElementType(), pl.size());
+				} else {
+					for(NBTag e : (List<NBTag>) value){
+						count(e, depth + 1);
+					}
+				}
+				break;
+			case TAG_Compound:
+				depth(depth + 1);
+				if(value instanceof LazyCompoundMap){
+					LazyCompoundMap lazy = (LazyCompoundMap) value;
+					for(int i = 0; i < lazy.size(); i++){
+						NBTag member = lazy.decodedAt(i);
+						if(member == null){
+							tag(lazy.typeAt(i));
+						} else {
+							count(member, depth + 1);
+						}
+					}
+				} else {
+					for(NBTag member : ((Map<String,NBTag>) value).values()){
+						count(member, depth + 1);
+					}
+				}
+				break;
+			default:
+				break;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Encodes large documents on several threads. The document is split into
+ * parts of about equal size: runs of neighbouring tags are grouped until
+ * they reach the size of one part, and compounds and lists larger than one
+ * part (like the single compound at the root of most level files) are split
+ * in turn. Each part is encoded into its own buffer on the executor, and
+ * the buffers are written out in document order, so the result is byte for
+ * byte the same as that of {@link NBTag#write(OutputStream)}. Parts are
+ * never smaller than 64 KiB, so small documents are written as one part.
+ * <p>
+ * {@link #writeGZip(NBTag, OutputStream)} additionally compresses every
+ * buffer as an independent gzip member, like pigz does. A file made of
+ * concatenated gzip members is valid gzip and can be read by
+ * {@link NBTag#readFromGZipStream(java.io.InputStream)}, by
+ * {@link NBTCodecContext} and by the gzip tool.
+ * <p>
+ * All encoded parts are held in memory until they have been written, so
+ * the writer needs about as much heap as the encoded document. A writer
+ * may be used by several threads at once.
+ */
+public final class NBTParallelWriter implements AutoCloseable {
+
+	private static final int MAX_SPLIT_DEPTH = 8;
+	/** smallest part worth its own buffer and gzip member */
+	private static final long MIN_PART_SIZE = 64 * 1024;
+
+	private final Executor executor;
+	private final int parts;
+	private volatile int level = -1;
+	private final ConcurrentLinkedQueue<NBTCodecContext> codecs = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Creates a writer.
+	 * @param executor executor to encode on
+	 * @param parallelism number of threads the executor runs in parallel;
+	 * large documents are split into about four times as many parts
+	 */
+	public NBTParallelWriter(Executor executor, int parallelism) {
+		if(parallelism < 1){
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		}
+		this.executor = executor;
+		this.parts = parallelism * 4;
+	}
+
+	/**
+	 * Sets the compression level of {@link #writeGZip(NBTag, OutputStream)}.
+	 * @param level compression level from 0 to 9, or -1 for the default
+	 */
+	public void setLevel(int level) {
+		if(level < -1 || level > 9){
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+		close();
+	}
+
+	/**
+	 * Writes a tag without compression.
+	 * @param tag the tag to write
+	 * @param os stream to write to; it is neither flushed nor closed
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void write(NBTag tag, OutputStream os) throws IOException {
+		write(tag, os, false);
+	}
+
+	/**
+	 * Writes a tag as a sequence of gzip members.
+	 * @param tag the tag to write
+	 * @param os stream to write to; it is neither flushed nor closed
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeGZip(NBTag tag, OutputStream os) throws IOException {
+		write(tag, os, true);
+	}
+
+	/**
+	 * Frees the pooled compressors.
+	 */
+	@Override
+	public void close() {
+		NBTCodecContext c;
+		while((c = codecs.poll()) != null){
+			c.close();
+		}
+	}
+
+	private void write(NBTag tag, OutputStream os, boolean gzip) throws IOException {
+		Planner planner = new Planner(Math.max(MIN_PART_SIZE, tag.serializedSize() / parts));
+		DataOutputStream header = planner.literal();
+		header.writeByte(tag.getType().ordinal());
+		if(tag.getType() != Type.TAG_End){
+			header.writeUTF(tag.getName());
+			planner.plan(tag, 0);
+		}
+		List<Part> plan = planner.finish();
+		List<FutureTask<byte[]>> tasks = new ArrayList<>(plan.size());
+		for(Part p : plan){
+			FutureTask<byte[]> task = new FutureTask<>(new Encode(p, gzip));
+			tasks.add(task);
+			executor.execute(task);
+		}
+		try{
+			for(FutureTask<byte[]> task : tasks){
+				os.write(task.get());
+			}
+		} catch(InterruptedException ex){
+			cancel(tasks);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing");
+		} catch(ExecutionException ex){
+			cancel(tasks);
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException){
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static void cancel(List<FutureTask<byte[]>> tasks) {
+		for(FutureTask<byte[]> t : tasks){
+			t.cancel(false);
+		}
+	}
+
+	/**
+	 * A contiguous range of list elements or compound members, with the
+	 * literal bytes (headers and TAG_End bytes) around it.
+	 */
+	private static final class Part {
+		byte[] prefix;
+		final List<NBTag> items;
+		final int from;
+		final int to;
+		final boolean named;
+		byte[] suffix = new byte[0];
+
+		Part(byte[] prefix, List<NBTag> items, int from, int to, boolean named) {
+			this.prefix = prefix;
+			this.items = items;
+			this.from = from;
+			this.to = to;
+			this.named = named;
+		}
+	}
+
+	/**
+	 * Splits a tree into parts.
+	 */
+	private static final class Planner {
+		private final long partSize;
+		private final List<Part> plan = new ArrayList<>();
+		private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		private final DataOutputStream literal = new DataOutputStream(pending);
+
+		/**
+		 * @param partSize number of bytes to aim for in each part
+		 */
+		Planner(long partSize) {
+			this.partSize = partSize;
+		}
+
+		DataOutputStream literal() {
+			return literal;
+		}
+
+		/**
+		 * Plans the payload of a tag whose header has already been written.
+		 * The children of compounds and lists are grouped into runs of about
+		 * one part size; children larger than that are planned recursively.
+		 */
+		@SuppressWarnings("unchecked")
+		void plan(NBTag tag, int depth) throws IOException {
+			Object value = tag.getValue();
+			if(tag.getType() == Type.TAG_Compound && !(value instanceof LazyCompoundMap)){
+				List<NBTag> members = new ArrayList<>(((Map<String,NBTag>) value).values());
+				planChildren(members, true, depth);
+				literal.writeByte(0);// TAG_End
+			} else if(tag.getType() == Type.TAG_List && !(value instanceof PrimitiveList) && !((List<NBTag>) value).isEmpty()){
+				List<NBTag> elements = (List<NBTag>) value;
+				literal.writeByte(tag.getListType().ordinal());
+				literal.writeInt(elements.size());
+				planChildren(elements, false, depth);
+			} else {
+				List<NBTag> single = new ArrayList<>(1);
+				single.add(tag);
+				addPart(single, 0, 1, false);
+			}
+		}
+
+		private void planChildren(List<NBTag> items, boolean named, int depth) throws IOException {
+			int n = items.size();
+			int run = 0;
+			long runSize = 0;
+			for(int i = 0; i < n; i++){
+				NBTag child = items.get(i);
+				long size = named ? child.serializedSize() : child.payloadSize();
+				if(size > partSize && depth < MAX_SPLIT_DEPTH && isSplittable(child)){
+					if(run < i){
+						addPart(items, run, i, named);
+					}
+					if(named){
+						literal.writeByte(child.getType().ordinal());
+						literal.writeUTF(child.getName());
+					}
+					plan(child, depth + 1);
+					run = i + 1;
+					runSize = 0;
+					continue;
+				}
+				if(runSize > 0 && runSize + size > partSize){
+					addPart(items, run, i, named);
+					run = i;
+					runSize = 0;
+				}
+				runSize += size;
+			}
+			if(run < n){
+				addPart(items, run, n, named);
+			}
+		}
+
+		private boolean isSplittable(NBTag t) {
+			Object v = t.getValue();
+			return (t.getType() == Type.TAG_Compound && !(v instanceof LazyCompoundMap))
+					|| (t.getType() == Type.TAG_List && !(v instanceof PrimitiveList));
+		}
+
+		private void addPart(List<NBTag> items, int from, int to, boolean named) {
+			plan.add(new Part(pending.toByteArray(), items, from, to, named));
+			pending.reset();
+		}
+
+		List<Part> finish() {
+			if(plan.isEmpty()){
+				// a lone TAG_End
+				plan.add(new Part(pending.toByteArray(), new ArrayList<NBTag>(), 0, 0, false));
+			} else {
+				plan.get(plan.size() - 1).suffix = pending.toByteArray();
+			}
+			return plan;
+		}
+	}
+
+	private final class Encode implements Callable<byte[]> {
+		private final Part part;
+		private final boolean gzip;
+
+		Encode(Part part, boolean gzip) {
+			this.part = part;
+			this.gzip = gzip;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			PartBuffer buf = new PartBuffer();
+			DataOutputStream dos = new DataOutputStream(buf);
+			dos.write(part.prefix);
+			for(int i = part.from; i < part.to; i++){
+				NBTag t = part.items.get(i);
+				if(part.named){
+					t.writeTag(dos);
+				} else {
+					t.writePayload(dos);
+				}
+			}
+			dos.write(part.suffix);
+			if(!gzip){
+				return buf.toByteArray();
+			}
+			NBTCodecContext codec = codecs.poll();
+			if(codec == null){
+				codec = new NBTCodecContext(level);
+			}
+			try{
+				ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, buf.size() / 4));
+				codec.writeGZipMember(buf.array(), 0, buf.size(), out);
+				return out.toByteArray();
+			} finally {
+				if(codec.getLevel() == level){
+					codecs.offer(codec);
+				} else {
+					codec.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * ByteArrayOutputStream that exposes its array without copying.
+	 */
+	private static final class PartBuffer extends ByteArrayOutputStream {
+		PartBuffer() {
+			super(8192);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+}
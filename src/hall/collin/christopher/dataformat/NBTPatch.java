@@ -0,0 +1,568 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary delta between two versions of an NBT structure. A patch is made by
+ * comparing two trees with {@link #diff(NBTag, NBTag)} and turns the first
+ * tree into the second with {@link #apply(NBTag)}, so that replicas can be
+ * kept up to date by shipping only what has changed:
+ * <pre>
+ * NBTPatch patch = NBTPatch.diff(lastSent, current);
+ * patch.write(out);
+ * ...
+ * replica = NBTPatch.read(in).apply(replica);
+ * </pre>
+ * Members of compound tags are matched by name and elements of list tags by
+ * index. Tags whose type has changed are sent in full, and so are strings
+ * and numbers that have changed. Of byte, int and long arrays and of lists
+ * of numbers only the range from the first to the last changed element is
+ * sent, so the size of a patch follows the size of the change rather than
+ * the size of the document.
+ * <p>
+ * The order of compound members is not part of the comparison: members that
+ * are new in the second tree are added after the existing members. Patches
+ * are immutable and may be shared between threads.
+ */
+public final class NBTPatch {
+
+	// operations; the current tag starts at the root
+	private static final int END = 0;
+	/** name: make a member of the current compound the current tag */
+	private static final int ENTER_MEMBER = 1;
+	/** index: make an element of the current list the current tag */
+	private static final int ENTER_ELEMENT = 2;
+	/** go back to the container of the current tag */
+	private static final int EXIT = 3;
+	/** named tag: replaces the root */
+	private static final int REPLACE = 4;
+	/** named tag: adds or replaces a member of the current compound */
+	private static final int PUT = 5;
+	/** name: removes a member of the current compound */
+	private static final int REMOVE = 6;
+	/** index, element: replaces an element of the current list */
+	private static final int SET = 7;
+	/** element: appends an element to the current list */
+	private static final int APPEND = 8;
+	/** length: removes the elements of the current list from length on */
+	private static final int TRUNCATE = 9;
+	/** length, offset, count, numbers: resizes the current array or list of
+	 * numbers and replaces count numbers from offset on */
+	private static final int ARRAY = 10;
+
+	private final byte[] ops;
+
+	private NBTPatch(byte[] ops) {
+		this.ops = ops;
+	}
+
+	/**
+	 * Compares two trees and returns the patch that turns the first into the
+	 * second. Subtrees that are the same object in both trees are not
+	 * compared.
+	 * @param from the old version
+	 * @param to the new version
+	 * @return the changes from <code>from</code> to <code>to</code>
+	 */
+	public static NBTPatch diff(NBTag from, NBTag to) {
+		Encoder enc = new Encoder();
+		try{
+			if(!compatible(from, to) || !name(from).equals(name(to))){
+				writeTag(enc.op(REPLACE), to, name(to));
+			} else if(isNested(to.getType())){
+				diffValue(enc, from, to);
+			} else if(!sameLeaf(from, to)){
+				writeTag(enc.op(REPLACE), to, name(to));
+			}
+			enc.out.writeByte(END);
+		} catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+		return new NBTPatch(enc.bytes.toByteArray());
+	}
+
+	/**
+	 * Reads a patch written by {@link #write(OutputStream)}.
+	 * @param is stream to read from; nothing after the patch is read
+	 * @return the patch
+	 * @throws IOException if there was no patch in the stream or if another
+	 * IOException occurred.
+	 */
+	public static NBTPatch read(InputStream is) throws IOException {
+		DataInputStream dis = is instanceof DataInputStream ? (DataInputStream) is : new DataInputStream(is);
+		int n = dis.readInt();
+		if(n < 1){
+			throw new IOException("Invalid NBT patch length: " + n);
+		}
+		byte[] ops = new byte[n];
+		dis.readFully(ops);
+		return new NBTPatch(ops);
+	}
+
+	/**
+	 * Writes this patch, prefixed with its length, without compression.
+	 * @param os stream to write to; it is neither flushed nor closed
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void write(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(ops.length);
+		dos.write(ops);
+	}
+
+	/**
+	 * Returns the number of bytes {@link #write(OutputStream)} writes.
+	 * @return size of this patch in bytes
+	 */
+	public int size() {
+		return 4 + ops.length;
+	}
+
+	/**
+	 * Returns true if this patch does not change anything.
+	 * @return true if the compared trees were equal
+	 */
+	public boolean isEmpty() {
+		return ops.length == 1;
+	}
+
+	/**
+	 * Applies this patch to the tree it was made from, or to an equal tree.
+	 * The tree is changed in place through the mutator methods of NBTag, so
+	 * the changes are tracked like any other (see
+	 * {@link NBTag#isDirty()}). Only the root is replaced by a new tag, if
+	 * its type or name has changed. If the tree does not fit the patch, it
+	 * is left partly patched.
+	 * @param target the tree to change
+	 * @return the patched tree: <code>target</code>, or a new root tag
+	 * @throws IOException if the patch is corrupt
+	 * @throws IllegalArgumentException if the tree does not have the tags
+	 * this patch changes
+	 */
+	@SuppressWarnings("unchecked")
+	public NBTag apply(NBTag target) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(ops));
+		List<NBTag> stack = new ArrayList<>();
+		NBTag root = target;
+		NBTag current = target;
+		while(true){
+			int op = in.readUnsignedByte();
+			switch(op){
+				case END:
+					return root;
+				case ENTER_MEMBER:{
+					String name = in.readUTF();
+					NBTag child = ((Map<String,NBTag>) expect(current, Type.TAG_Compound).getValue()).get(name);
+					if(child == null){
+						throw new IllegalArgumentException("Patch does not fit the tree: no member " + name + " in " + current.getName());
+					}
+					stack.add(current);
+					current = child;
+					break;
+				}
+				case ENTER_ELEMENT:{
+					int index = in.readInt();
+					List<NBTag> list = (List<NBTag>) expect(current, Type.TAG_List).getValue();
+					if(index < 0 || index >= list.size()){
+						throw new IllegalArgumentException("Patch does not fit the tree: no element " + index + " in " + current.getName());
+					}
+					stack.add(current);
+					current = list.get(index);
+					break;
+				}
+				case EXIT:
+					if(stack.isEmpty()){
+						throw new IOException("Corrupt NBT patch: exit from the root");
+					}
+					current = stack.remove(stack.size() - 1);
+					break;
+				case REPLACE:
+					if(!stack.isEmpty()){
+						throw new IOException("Corrupt NBT patch: root replaced below the root");
+					}
+					root = current = readTag(in);
+					break;
+				case PUT:
+					expect(current, Type.TAG_Compound).addTag(readTag(in));
+					break;
+				case REMOVE:
+					expect(current, Type.TAG_Compound).removeTag(in.readUTF());
+					break;
+				case SET:{
+					int index = in.readInt();
+					List<NBTag> list = (List<NBTag>) expect(current, Type.TAG_List).getValue();
+					if(index < 0 || index >= list.size()){
+						throw new IllegalArgumentException("Patch does not fit the tree: no element " + index + " in " + current.getName());
+					}
+					NBTag element = readElement(in);
+					list.set(index, element);
+					element.setParent(current);
+					current.changed();
+					break;
+				}
+				case APPEND:
+					expect(current, Type.TAG_List).addTag(readElement(in));
+					break;
+				case TRUNCATE:{
+					int length = in.readInt();
+					List<NBTag> list = (List<NBTag>) expect(current, Type.TAG_List).getValue();
+					if(length < 0 || length > list.size()){
+						throw new IllegalArgumentException("Patch does not fit the tree: cannot truncate " + current.getName() + " to " + length + " elements");
+					}
+					list.subList(length, list.size()).clear();
+					current.changed();
+					break;
+				}
+				case ARRAY:
+					applyArray(current, in);
+					break;
+				default:
+					throw new IOException("Corrupt NBT patch: unknown operation " + op);
+			}
+		}
+	}
+
+	private static NBTag expect(NBTag t, Type type) {
+		if(t.getType() != type){
+			throw new IllegalArgumentException("Patch does not fit the tree: " + t.getName() + " is a " + t.getType().name() + ", not a " + type.name());
+		}
+		return t;
+	}
+
+	private static void applyArray(NBTag t, DataInputStream in) throws IOException {
+		int length = in.readInt();
+		int offset = in.readInt();
+		int count = in.readInt();
+		if(length < 0 || offset < 0 || count < 0 || (long) offset + count > length){
+			throw new IOException("Corrupt NBT patch: range " + offset + "+" + count + " of " + length + " elements");
+		}
+		Type elementType = elementType(t);
+		if(elementType == null){
+			throw new IllegalArgumentException("Patch does not fit the tree: " + t.getName() + " does not hold numbers");
+		}
+		Object old = numbers(t);
+		Object a = Array.newInstance(old.getClass().getComponentType(), length);
+		System.arraycopy(old, 0, a, 0, Math.min(Array.getLength(old), length));
+		if(elementType == Type.TAG_Byte){
+			in.readFully((byte[]) a, offset, count);
+		} else {
+			byte[] raw = new byte[count * NBTReader.fixedSize(elementType.ordinal())];
+			in.readFully(raw);
+			ByteBuffer bb = ByteBuffer.wrap(raw);
+			switch(elementType){
+				case TAG_Short:
+					bb.asShortBuffer().get((short[]) a, offset, count);
+					break;
+				case TAG_Int:
+					bb.asIntBuffer().get((int[]) a, offset, count);
+					break;
+				case TAG_Long:
+					bb.asLongBuffer().get((long[]) a, offset, count);
+					break;
+				case TAG_Float:
+					bb.asFloatBuffer().get((float[]) a, offset, count);
+					break;
+				case TAG_Double:
+					bb.asDoubleBuffer().get((double[]) a, offset, count);
+					break;
+				default:
+					break;
+			}
+		}
+		if(t.getType() == Type.TAG_List){
+			t.setValue(new PrimitiveList(elementType, a));
+		} else {
+			t.setValue(a);
+		}
+	}
+
+	private static NBTag readTag(DataInput in) throws IOException {
+		return new NBTReader(in).readTag();
+	}
+
+	private static NBTag readElement(DataInput in) throws IOException {
+		NBTag t = readTag(in);
+		return new NBTag(t.getType(), null, t.getValue());
+	}
+
+	/**
+	 * Writes a named tag; list elements are written with an empty name.
+	 */
+	private static void writeTag(DataOutputStream out, NBTag t, String name) throws IOException {
+		out.writeByte(t.getType().ordinal());
+		out.writeUTF(name);
+		t.writePayload(out);
+	}
+
+	/**
+	 * Compares two tags of the same type, and of the same list type if they
+	 * are lists, that hold nested tags or arrays.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void diffValue(Encoder enc, NBTag a, NBTag b) throws IOException {
+		switch(b.getType()){
+			case TAG_Compound:
+				diffCompound(enc, (Map<String,NBTag>) a.getValue(), (Map<String,NBTag>) b.getValue());
+				break;
+			case TAG_List:
+				if(PrimitiveList.isPrimitive(b.getListType())){
+					diffArray(enc, numbers(a), numbers(b), b.getListType());
+				} else {
+					diffList(enc, (List<NBTag>) a.getValue(), (List<NBTag>) b.getValue());
+				}
+				break;
+			default:
+				diffArray(enc, numbers(a), numbers(b), elementType(b));
+				break;
+		}
+	}
+
+	private static void diffCompound(Encoder enc, Map<String,NBTag> a, Map<String,NBTag> b) throws IOException {
+		for(String name : a.keySet()){
+			if(!b.containsKey(name)){
+				enc.op(REMOVE).writeUTF(name);
+			}
+		}
+		for(Map.Entry<String,NBTag> e : b.entrySet()){
+			NBTag y = e.getValue();
+			NBTag x = a.get(e.getKey());
+			if(x == y){
+				continue;
+			}
+			if(x == null || !compatible(x, y)){
+				writeTag(enc.op(PUT), y, e.getKey());
+			} else if(isNested(y.getType())){
+				enc.enter(e.getKey());
+				diffValue(enc, x, y);
+				enc.exit();
+			} else if(!sameLeaf(x, y)){
+				writeTag(enc.op(PUT), y, e.getKey());
+			}
+		}
+	}
+
+	private static void diffList(Encoder enc, List<NBTag> a, List<NBTag> b) throws IOException {
+		int n = Math.min(a.size(), b.size());
+		for(int i = 0; i < n; i++){
+			NBTag x = a.get(i);
+			NBTag y = b.get(i);
+			if(x == y){
+				continue;
+			}
+			if(!compatible(x, y)){
+				setElement(enc, i, y);
+			} else if(isNested(y.getType())){
+				enc.enter(i);
+				diffValue(enc, x, y);
+				enc.exit();
+			} else if(!sameLeaf(x, y)){
+				setElement(enc, i, y);
+			}
+		}
+		for(int i = n; i < b.size(); i++){
+			writeTag(enc.op(APPEND), b.get(i), "");
+		}
+		if(b.size() < a.size()){
+			enc.op(TRUNCATE).writeInt(b.size());
+		}
+	}
+
+	private static void setElement(Encoder enc, int index, NBTag element) throws IOException {
+		DataOutputStream out = enc.op(SET);
+		out.writeInt(index);
+		writeTag(out, element, "");
+	}
+
+	/**
+	 * Writes the range of <code>y</code> that differs from <code>x</code>,
+	 * if any.
+	 */
+	private static void diffArray(Encoder enc, Object x, Object y, Type elementType) throws IOException {
+		if(x == y){
+			return;
+		}
+		int lx = Array.getLength(x);
+		int ly = Array.getLength(y);
+		int n = Math.min(lx, ly);
+		int first = 0;
+		while(first < n && sameNumber(x, y, first, elementType)){
+			first++;
+		}
+		int end;
+		if(lx != ly){
+			end = ly;
+		} else {
+			if(first == n){
+				return;
+			}
+			end = n;
+			while(end > first && sameNumber(x, y, end - 1, elementType)){
+				end--;
+			}
+		}
+		DataOutputStream out = enc.op(ARRAY);
+		out.writeInt(ly);
+		out.writeInt(first);
+		out.writeInt(end - first);
+		NBTag.writeNumbers(out, y, elementType, first, end - first);
+	}
+
+	private static boolean sameNumber(Object x, Object y, int i, Type elementType) {
+		switch(elementType){
+			case TAG_Byte:
+				return ((byte[]) x)[i] == ((byte[]) y)[i];
+			case TAG_Short:
+				return ((short[]) x)[i] == ((short[]) y)[i];
+			case TAG_Int:
+				return ((int[]) x)[i] == ((int[]) y)[i];
+			case TAG_Long:
+				return ((long[]) x)[i] == ((long[]) y)[i];
+			case TAG_Float:
+				return Float.floatToRawIntBits(((float[]) x)[i]) == Float.floatToRawIntBits(((float[]) y)[i]);
+			case TAG_Double:
+				return Double.doubleToRawLongBits(((double[]) x)[i]) == Double.doubleToRawLongBits(((double[]) y)[i]);
+			default:
+				throw new IllegalArgumentException(elementType.name() + " is not a number type");
+		}
+	}
+
+	/**
+	 * Compares numbers and strings.
+	 */
+	private static boolean sameLeaf(NBTag x, NBTag y) {
+		switch(y.getType()){
+			case TAG_End:
+				return true;
+			case TAG_Float:
+				return Float.floatToRawIntBits((Float) x.getValue()) == Float.floatToRawIntBits((Float) y.getValue());
+			case TAG_Double:
+				return Double.doubleToRawLongBits((Double) x.getValue()) == Double.doubleToRawLongBits((Double) y.getValue());
+			default:
+				return x.getValue().equals(y.getValue());
+		}
+	}
+
+	/**
+	 * Returns true if one tag can be patched into the other.
+	 */
+	private static boolean compatible(NBTag x, NBTag y) {
+		return x.getType() == y.getType() && (x.getType() != Type.TAG_List || x.getListType() == y.getListType());
+	}
+
+	private static boolean isNested(Type t) {
+		switch(t){
+			case TAG_Byte_Array:
+			case TAG_List:
+			case TAG_Compound:
+			case TAG_Int_Array:
+			case TAG_Long_Array:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static String name(NBTag t) {
+		return t.getName() == null ? "" : t.getName();
+	}
+
+	/**
+	 * Returns the type of the numbers in an array or list of numbers, or
+	 * null if the tag does not hold numbers.
+	 */
+	private static Type elementType(NBTag t) {
+		switch(t.getType()){
+			case TAG_Byte_Array:
+				return Type.TAG_Byte;
+			case TAG_Int_Array:
+				return Type.TAG_Int;
+			case TAG_Long_Array:
+				return Type.TAG_Long;
+			case TAG_List:
+				return PrimitiveList.isPrimitive(t.getListType()) ? t.getListType() : null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Returns the numbers of an array or list of numbers as a primitive
+	 * array, which must not be modified.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object numbers(NBTag t) {
+		Object value = t.getValue();
+		if(value instanceof ByteBuffer){
+			ByteBuffer bb = ((ByteBuffer) value).duplicate();
+			byte[] b = new byte[bb.remaining()];
+			bb.get(b);
+			return b;
+		}
+		if(value instanceof PrimitiveList){
+			return ((PrimitiveList) value).primitiveArray();
+		}
+		if(value instanceof List){
+			return NBTag.toPrimitiveArray((List<NBTag>) value, t.getListType());
+		}
+		return value;
+	}
+
+	/**
+	 * Writes operations. ENTER operations are only written once an operation
+	 * below them is written, so unchanged subtrees cost nothing.
+	 */
+	private static final class Encoder {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		/** member names and element indices from the root to the current tag */
+		private final List<Object> path = new ArrayList<>();
+		/** number of steps of the path that have been written */
+		private int written = 0;
+
+		void enter(String name) {
+			path.add(name);
+		}
+
+		void enter(int index) {
+			path.add(index);
+		}
+
+		void exit() throws IOException {
+			if(written == path.size()){
+				out.writeByte(EXIT);
+				written--;
+			}
+			path.remove(path.size() - 1);
+		}
+
+		DataOutputStream op(int op) throws IOException {
+			for(; written < path.size(); written++){
+				Object step = path.get(written);
+				if(step instanceof String){
+					out.writeByte(ENTER_MEMBER);
+					out.writeUTF((String) step);
+				} else {
+					out.writeByte(ENTER_ELEMENT);
+					out.writeInt((Integer) step);
+				}
+			}
+			out.writeByte(op);
+			return out;
+		}
+	}
+}
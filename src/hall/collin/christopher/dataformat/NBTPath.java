@@ -0,0 +1,295 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled path expression that navigates directly to nested tags, instead
+ * of searching the whole tree like {@link NBTag#findTagByName(String)}.
+ * A path is a sequence of steps:
+ * <ul>
+ * <li><code>Name</code> selects the member of a compound tag with that name.
+ * Names containing dots, brackets or quotes can be written in double quotes,
+ * with <code>\"</code> and <code>\\</code> as escapes.</li>
+ * <li><code>*</code> selects every member of a compound tag.</li>
+ * <li><code>[3]</code> selects an element of a list tag by index; negative
+ * indices count from the end of the list.</li>
+ * <li><code>[*]</code> selects every element of a list tag.</li>
+ * </ul>
+ * Names are separated by dots, and indices follow the name of their list,
+ * e.g. <code>Level.Sections[*].Palette[0].Name</code>. The first step is
+ * applied to the tag the path is evaluated against, and the empty path
+ * selects that tag itself.
+ * <p>
+ * Compiled paths are immutable and may be shared between threads.
+ */
+public final class NBTPath {
+
+	static final int NAME = 0;
+	static final int ANY_NAME = 1;
+	static final int INDEX = 2;
+	static final int ANY_INDEX = 3;
+
+	private final String source;
+	private final int[] kinds;
+	private final String[] names;
+	private final int[] indices;
+
+	private NBTPath(String source, int[] kinds, String[] names, int[] indices) {
+		this.source = source;
+		this.kinds = kinds;
+		this.names = names;
+		this.indices = indices;
+	}
+
+	/**
+	 * Compiles a path expression.
+	 * @param path the path, see the class description for the syntax
+	 * @return the compiled path
+	 * @throws IllegalArgumentException if the path is not valid
+	 */
+	public static NBTPath compile(String path) {
+		return new Parser(path).parse();
+	}
+
+	/**
+	 * Returns the first tag selected by this path, in document order.
+	 * @param root tag to evaluate the path against
+	 * @return the first selected tag, or null if nothing matches
+	 */
+	public NBTag find(NBTag root) {
+		return eval(root, 0, null);
+	}
+
+	/**
+	 * Returns all tags selected by this path, in document order.
+	 * @param root tag to evaluate the path against
+	 * @return the selected tags (empty if nothing matches)
+	 */
+	public List<NBTag> findAll(NBTag root) {
+		List<NBTag> matches = new ArrayList<>();
+		eval(root, 0, matches);
+		return matches;
+	}
+
+	/**
+	 * Returns the path as it was passed to {@link #compile(String)}.
+	 */
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof NBTPath)){
+			return false;
+		}
+		NBTPath p = (NBTPath) o;
+		return Arrays.equals(kinds, p.kinds) && Arrays.equals(names, p.names) && Arrays.equals(indices, p.indices);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(kinds) + Arrays.hashCode(names);
+	}
+
+	int stepCount() {
+		return kinds.length;
+	}
+
+	int stepKind(int step) {
+		return kinds[step];
+	}
+
+	String stepName(int step) {
+		return names[step];
+	}
+
+	int stepIndex(int step) {
+		return indices[step];
+	}
+
+	/**
+	 * Evaluates the steps from <code>step</code> on. If <code>all</code> is
+	 * null, returns the first match; otherwise adds every match to it.
+	 */
+	@SuppressWarnings("unchecked")
+	private NBTag eval(NBTag tag, int step, List<NBTag> all) {
+		if(step == kinds.length){
+			if(all != null){
+				all.add(tag);
+			}
+			return tag;
+		}
+		Type type = tag.getType();
+		switch(kinds[step]){
+			case NAME:
+				if(type != Type.TAG_Compound){
+					return null;
+				}
+				NBTag child = ((Map<String,NBTag>) tag.getValue()).get(names[step]);
+				return child == null ? null : eval(child, step + 1, all);
+			case ANY_NAME:
+				if(type != Type.TAG_Compound){
+					return null;
+				}
+				for(NBTag member : ((Map<String,NBTag>) tag.getValue()).values()){
+					NBTag result = eval(member, step + 1, all);
+					if(result != null && all == null){
+						return result;
+					}
+				}
+				return null;
+			case INDEX:
+				if(type != Type.TAG_List){
+					return null;
+				}
+				List<NBTag> list = (List<NBTag>) tag.getValue();
+				int i = indices[step];
+				if(i < 0){
+					i += list.size();
+				}
+				if(i < 0 || i >= list.size()){
+					return null;
+				}
+				return eval(list.get(i), step + 1, all);
+			default:
+				if(type != Type.TAG_List){
+					return null;
+				}
+				for(NBTag element : (List<NBTag>) tag.getValue()){
+					NBTag result = eval(element, step + 1, all);
+					if(result != null && all == null){
+						return result;
+					}
+				}
+				return null;
+		}
+	}
+
+	/**
+	 * Recursive-descent parser for path expressions.
+	 */
+	private static final class Parser {
+
+		private final String path;
+		private int pos = 0;
+		private final List<Integer> kinds = new ArrayList<>();
+		private final List<String> names = new ArrayList<>();
+		private final List<Integer> indices = new ArrayList<>();
+
+		Parser(String path) {
+			if(path == null){
+				throw new NullPointerException("Path cannot be null");
+			}
+			this.path = path;
+		}
+
+		NBTPath parse() {
+			int n = path.length();
+			if(n > 0){
+				if(path.charAt(0) != '['){
+					parseName();
+				}
+				while(true){
+					while(pos < n && path.charAt(pos) == '['){
+						parseIndex();
+					}
+					if(pos == n){
+						break;
+					}
+					if(path.charAt(pos) != '.'){
+						throw error("expected '.' or '['");
+					}
+					pos++;
+					parseName();
+				}
+			}
+			int[] k = new int[kinds.size()];
+			int[] idx = new int[kinds.size()];
+			for(int i = 0; i < k.length; i++){
+				k[i] = kinds.get(i);
+				idx[i] = indices.get(i);
+			}
+			return new NBTPath(path, k, names.toArray(new String[names.size()]), idx);
+		}
+
+		private void parseName() {
+			int n = path.length();
+			if(pos < n && path.charAt(pos) == '"'){
+				StringBuilder sb = new StringBuilder();
+				pos++;
+				while(true){
+					if(pos >= n){
+						throw error("unterminated quoted name");
+					}
+					char c = path.charAt(pos++);
+					if(c == '"'){
+						break;
+					}
+					if(c == '\\'){
+						if(pos >= n){
+							throw error("unterminated escape");
+						}
+						c = path.charAt(pos++);
+					}
+					sb.append(c);
+				}
+				addStep(NAME, sb.toString(), 0);
+				return;
+			}
+			int start = pos;
+			while(pos < n){
+				char c = path.charAt(pos);
+				if(c == '.' || c == '['){
+					break;
+				}
+				if(c == ']' || c == '"'){
+					throw error("unexpected '" + c + "'");
+				}
+				pos++;
+			}
+			if(pos == start){
+				throw error("missing name");
+			}
+			String name = path.substring(start, pos);
+			if(name.equals("*")){
+				addStep(ANY_NAME, null, 0);
+			} else {
+				addStep(NAME, name, 0);
+			}
+		}
+
+		private void parseIndex() {
+			int close = path.indexOf(']', pos);
+			if(close < 0){
+				throw error("unterminated index");
+			}
+			String index = path.substring(pos + 1, close).trim();
+			if(index.equals("*")){
+				addStep(ANY_INDEX, null, 0);
+			} else {
+				try{
+					addStep(INDEX, null, Integer.parseInt(index));
+				} catch(NumberFormatException ex){
+					throw error("invalid index \"" + index + "\"");
+				}
+			}
+			pos = close + 1;
+		}
+
+		private void addStep(int kind, String name, int index) {
+			kinds.add(kind);
+			names.add(name);
+			indices.add(index);
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException("Invalid NBT path \"" + path + "\" at position " + pos + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+
+/**
+ * Selects the parts of an NBT structure to decode. Parts that are not
+ * selected are skipped at the byte level while reading, without allocating
+ * anything for them, e.g.
+ * <pre>
+ * NBTProjection p = NBTProjection.of("Level.xPos", "Level.zPos", "Level.Sections[*].Y");
+ * NBTag tag = NBTag.readFromGZipStream(in, p);
+ * </pre>
+ * The root tag is always decoded, and the projection is asked about each of
+ * its members, then about the members of each selected member, and so on.
+ * Compound members that are not selected are left out of the decoded tree.
+ * List elements that are not selected are replaced by empty placeholders
+ * (0, "", empty arrays, lists and compounds) so that the indices of the
+ * selected elements do not change. Lists of numbers are always decoded
+ * completely once the list itself is selected.
+ */
+public interface NBTProjection {
+
+	/**
+	 * Projection that selects everything.
+	 */
+	NBTProjection ALL = new NBTProjection() {
+		@Override
+		public NBTProjection select(String name, int index, Type type) {
+			return this;
+		}
+	};
+
+	/**
+	 * Decides whether a member of a compound tag or an element of a list tag
+	 * is decoded.
+	 * @param name the name of a compound member, or null for a list element
+	 * @param index the index of a list element, or -1 for a compound member
+	 * @param type the type of the member or element
+	 * @return the projection to apply to the children of the selected tag,
+	 * {@link #ALL} to decode it completely, or null to skip it
+	 */
+	NBTProjection select(String name, int index, Type type);
+
+	/**
+	 * Creates a projection that selects the tags matched by any of the given
+	 * paths, with everything nested inside them.
+	 * @param paths path expressions, see {@link NBTPath}
+	 * @return the projection
+	 * @throws IllegalArgumentException if a path is not valid
+	 */
+	static NBTProjection of(String... paths) {
+		NBTPath[] compiled = new NBTPath[paths.length];
+		for(int i = 0; i < paths.length; i++){
+			compiled[i] = NBTPath.compile(paths[i]);
+		}
+		return of(compiled);
+	}
+
+	/**
+	 * Creates a projection that selects the tags matched by any of the given
+	 * paths, with everything nested inside them. Negative list indices
+	 * cannot be resolved before the list is read, so they select every
+	 * element of their list.
+	 * @param paths compiled paths
+	 * @return the projection
+	 */
+	static NBTProjection of(NBTPath... paths) {
+		int[] steps = new int[paths.length];
+		for(NBTPath p : paths){
+			if(p.stepCount() == 0){
+				return ALL;
+			}
+		}
+		return new PathProjection(paths.clone(), steps);
+	}
+
+	/**
+	 * Creates a projection from a filter on the path of each tag. A tag is
+	 * decoded if the filter accepts it; if a compound or list tag is
+	 * rejected, nothing inside it is looked at. To select a nested tag, the
+	 * filter must therefore also accept all of its parents.
+	 * @param filter the filter
+	 * @return the projection
+	 */
+	static NBTProjection filter(Filter filter) {
+		return new FilterProjection("", filter);
+	}
+
+	/**
+	 * Filter for {@link NBTProjection#filter(Filter)}.
+	 */
+	interface Filter {
+		/**
+		 * @param path path of the tag relative to the root tag, in the
+		 * syntax of {@link NBTPath} (e.g. <code>Level.Sections[2]</code>,
+		 * names are not quoted)
+		 * @param name name of the tag, or null for a list element
+		 * @param type type of the tag
+		 * @return true to decode the tag
+		 */
+		boolean accept(String path, String name, Type type);
+	}
+}
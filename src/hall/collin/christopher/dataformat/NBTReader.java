@@ -0,0 +1,1007 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Event-based pull reader for the NBT wire format, in the style of StAX.
+ * Instead of building a complete tree of {@link NBTag} objects like
+ * {@link NBTag#readNBTag(java.io.DataInputStream)}, this reader walks the
+ * stream one tag at a time and hands primitive values back unboxed, so huge
+ * documents can be scanned in constant memory.
+ * <p>
+ * A named tag (the root tag and every member of a compound tag) is reported
+ * as a {@link Event#NAME} event followed by the event for its payload.
+ * Elements of a list tag have no name and are reported directly. Example:
+ * <pre>
+ * NBTReader r = new NBTReader(in);
+ * while(r.next() != NBTReader.Event.END_DOCUMENT){
+ *     if(r.getEvent() == NBTReader.Event.NAME &amp;&amp; "Data".equals(r.getName())){
+ *         r.skip(); // not interested in this subtree
+ *     }
+ * }
+ * </pre>
+ * Instances are not thread-safe.
+ */
+public class NBTReader implements Closeable {
+
+	/**
+	 * Enum for the events produced by {@link NBTReader#next()}.
+	 */
+	public enum Event {
+		/** The name of a named tag has been read. {@link NBTReader#getType()}
+		 * already holds the type of the payload that follows. */
+		NAME,
+		/** A non-container payload (number, string or array) has been
+		 * read. Use {@link NBTReader#getType()} to see which one. */
+		VALUE,
+		/** Start of a TAG_List payload. {@link NBTReader#getListType()} and
+		 * {@link NBTReader#getListLength()} describe the elements that follow. */
+		START_LIST,
+		/** Start of a TAG_Compound payload. */
+		START_COMPOUND,
+		/** End of the innermost list or compound tag. */
+		END,
+		/** The root tag has been read completely. Nothing more will be read
+		 * from the stream. */
+		END_DOCUMENT;
+	}
+
+	private static final Type[] TYPES = Type.values();
+	private static final int SKIP_BUFFER_SIZE = 4096;
+
+	private final DataInput in;
+	private final boolean lazy;
+	private final boolean sliceByteArrays;
+
+	// container stack
+	private byte[] frameType = new byte[16];
+	private byte[] frameListType = new byte[16];
+	private int[] frameRemaining = new int[16];
+	private int depth = 0;
+
+	private boolean started = false;
+	private boolean finished = false;
+
+	// current event
+	private Event event = null;
+	private Type type = null;
+	private String name = null;
+	private Type listType = null;
+	private int listLength = 0;
+	private long longValue = 0;
+	private double doubleValue = 0;
+	private String stringValue = null;
+	private int arrayLength = 0;
+	private long pendingBytes = 0;
+
+	/** reusable buffer for bulk decoding from streams */
+	private ByteBuffer scratch = null;
+
+	private NBTNameCache nameCache = null;
+	private NBTOperationStats stats = null;
+	private byte[] nameBytes = new byte[64];
+	private char[] nameChars = new char[64];
+
+	/**
+	 * Creates a reader on top of the given stream. The stream is not
+	 * decompressed, wrap it in a GZIPInputStream first if necessary.
+	 * @param in stream to read from
+	 */
+	public NBTReader(InputStream in) {
+		this(in instanceof DataInput ? (DataInput) in : new DataInputStream(in));
+	}
+
+	/**
+	 * Creates a reader on top of the given stream. The stream is not
+	 * decompressed, wrap it in a GZIPInputStream first if necessary.
+	 * @param in stream to read from
+	 */
+	public NBTReader(DataInputStream in) {
+		this((DataInput) in);
+	}
+
+	/**
+	 * Creates a reader on top of the given data source.
+	 * @param in source to read from
+	 */
+	public NBTReader(DataInput in) {
+		this(in, false, false);
+	}
+
+	/**
+	 * Creates a reader on top of a buffer, for example a MappedByteBuffer of 
+	 * an uncompressed NBT file. Reading starts at the position of the buffer 
+	 * and decodes directly from it; the position of <code>buffer</code> 
+	 * itself is not changed.
+	 * @param buffer buffer to read from
+	 */
+	public NBTReader(ByteBuffer buffer) {
+		this(new ByteBufferInput(buffer.duplicate().order(ByteOrder.BIG_ENDIAN), buffer.position()), false, false);
+	}
+
+	/**
+	 * Creates a reader over a buffer. Compound tags are decoded into a
+	 * {@link LazyCompoundMap} when building trees if <code>lazy</code> is
+	 * true, and byte arrays become read-only slices of the buffer if
+	 * <code>sliceByteArrays</code> is true.
+	 */
+	NBTReader(ByteBufferInput in, boolean lazy, boolean sliceByteArrays) {
+		this((DataInput) in, lazy, sliceByteArrays);
+	}
+
+	/**
+	 * Creates a reader positioned on the payload of a tag of the given type,
+	 * as if the NAME event of that tag had just been read.
+	 */
+	NBTReader(ByteBufferInput in, Type payloadType, boolean lazy, boolean sliceByteArrays) {
+		this((DataInput) in, lazy, sliceByteArrays);
+		this.started = true;
+		this.event = Event.NAME;
+		this.type = payloadType;
+	}
+
+	private NBTReader(DataInput in, boolean lazy, boolean sliceByteArrays) {
+		if(in == null){
+			throw new NullPointerException("Input cannot be null");
+		}
+		this.in = in;
+		this.lazy = lazy;
+		this.sliceByteArrays = sliceByteArrays;
+	}
+
+	/**
+	 * Advances to the next event. Any part of the previous payload that was
+	 * not consumed (e.g. the contents of a byte array) is skipped.
+	 * @return the new current event
+	 * @throws IOException if the stream is not valid NBT or if any other
+	 * IOException occurred.
+	 */
+	public Event next() throws IOException {
+		if(pendingBytes > 0){
+			skipFully(pendingBytes);
+			pendingBytes = 0;
+		}
+		if(finished){
+			return setEvent(Event.END_DOCUMENT);
+		}
+		if(event == Event.NAME){
+			return beginPayload(type);
+		}
+		if(!started){
+			started = true;
+			byte t = in.readByte();
+			if(t == 0){
+				// a lone TAG_End as root tag
+				type = Type.TAG_End;
+				name = null;
+				finished = true;
+				return setEvent(Event.VALUE);
+			}
+			type = toType(t);
+			name = readName();
+			return setEvent(Event.NAME);
+		}
+		int top = depth - 1;
+		if(frameType[top] == Type.TAG_Compound.ordinal()){
+			byte t = in.readByte();
+			if(t == 0){
+				return endContainer();
+			}
+			type = toType(t);
+			name = readName();
+			return setEvent(Event.NAME);
+		} else {
+			if(frameRemaining[top] == 0){
+				return endContainer();
+			}
+			frameRemaining[top]--;
+			name = null;
+			return beginPayload(TYPES[frameListType[top]]);
+		}
+	}
+
+	/**
+	 * Skips whatever the current event introduces, without allocating
+	 * anything for the skipped data. After a {@link Event#NAME} event the
+	 * entire payload of the named tag is skipped, after
+	 * {@link Event#START_LIST} or {@link Event#START_COMPOUND} the rest of
+	 * that container is skipped including its {@link Event#END} event, and
+	 * after a {@link Event#VALUE} event the unread part of a byte array is
+	 * skipped. Skipping a named tag leaves the reader on a {@link Event#VALUE}
+	 * event of type TAG_End.
+	 * @throws IOException if the stream is not valid NBT or if any other
+	 * IOException occurred.
+	 */
+	public void skip() throws IOException {
+		if(event == null){
+			return;
+		}
+		switch(event){
+			case NAME:
+				skipPayload(type.ordinal());
+				event = Event.VALUE;
+				type = Type.TAG_End;
+				if(depth == 0){
+					finished = true;
+				}
+				break;
+			case START_LIST:
+			case START_COMPOUND:
+				int top = depth - 1;
+				if(frameType[top] == Type.TAG_Compound.ordinal()){
+					skipCompoundContents();
+				} else {
+					skipListContents(frameListType[top], frameRemaining[top]);
+				}
+				depth--;
+				event = Event.END;
+				if(depth == 0){
+					finished = true;
+				}
+				break;
+			case VALUE:
+				if(pendingBytes > 0){
+					skipFully(pendingBytes);
+					pendingBytes = 0;
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Reads the next complete tag and all of its nested tags into a tree of
+	 * {@link NBTag} objects. If called before the first event, this reads the
+	 * root tag. If called right after a {@link Event#NAME} event, this reads
+	 * the tag with that name.
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if the stream is not valid NBT or if any other
+	 * IOException occurred.
+	 */
+	public NBTag readTag() throws IOException {
+		return readTag(null);
+	}
+
+	/**
+	 * Like {@link #readTag()}, but only decodes the parts of the tag that are
+	 * selected by a projection. Everything else is skipped without being
+	 * decoded.
+	 * @param projection the parts to decode, or null to decode everything
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if the stream is not valid NBT or if any other
+	 * IOException occurred.
+	 */
+	public NBTag readTag(NBTProjection projection) throws IOException {
+		if(event != Event.NAME){
+			Event e = next();
+			if(e == Event.VALUE && type == Type.TAG_End){
+				return new NBTag(Type.TAG_End, null, null);
+			}
+			if(e != Event.NAME){
+				throw new IllegalStateException("Expected a named tag but found " + e.name());
+			}
+		}
+		String tagName = name;
+		Type tagType = type;
+		next();
+		return new NBTag(tagType, tagName, readValue(projection == NBTProjection.ALL ? null : projection));
+	}
+
+	/**
+	 * Reads the payload that follows the current NAME event into the object
+	 * held by an {@link NBTag} of that type.
+	 */
+	Object readPayload() throws IOException {
+		next();
+		return readValue(null);
+	}
+
+	/**
+	 * Converts the payload of the current event into the object held by an
+	 * {@link NBTag} of that type, consuming the whole payload. Only the parts
+	 * selected by <code>proj</code> are decoded, unless it is null.
+	 */
+	private Object readValue(NBTProjection proj) throws IOException {
+		switch(event){
+			case VALUE:
+				return getValue();
+			case START_LIST:
+				Type lt = listType;
+				if(listLength > 0 && PrimitiveList.isPrimitive(lt)){
+					return new PrimitiveList(lt, readListArray());
+				}
+				List<NBTag> elements = new ArrayList<>(listLength);
+				if(proj == null){
+					while(next() != Event.END){
+						elements.add(new NBTag(lt, null, readValue(null)));
+					}
+				} else {
+					int top = depth - 1;
+					for(int i = 0; frameRemaining[top] > 0; i++){
+						NBTProjection sub = proj.select(null, i, lt);
+						if(sub == null){
+							// keep a placeholder so that indices do not shift
+							frameRemaining[top]--;
+							skipPayload(lt.ordinal());
+							elements.add(new NBTag(lt, null, emptyValue(lt)));
+						} else {
+							next();
+							elements.add(new NBTag(lt, null, readValue(sub == NBTProjection.ALL ? null : sub)));
+						}
+					}
+					next();
+				}
+				if(elements.isEmpty()){
+					return lt;
+				}
+				return elements;
+			case START_COMPOUND:
+				if(lazy && proj == null){
+					return LazyCompoundMap.index(this, (ByteBufferInput) in);
+				}
+				Map<String,NBTag> children = new LinkedHashMap<>();
+				while(next() != Event.END){
+					String childName = name;
+					Type childType = type;
+					NBTProjection sub = null;
+					if(proj != null){
+						sub = proj.select(childName, -1, childType);
+						if(sub == null){
+							skip();
+							continue;
+						}
+						if(sub == NBTProjection.ALL){
+							sub = null;
+						}
+					}
+					next();
+					children.put(childName, new NBTag(childType, childName, readValue(sub)));
+				}
+				return children;
+			default:
+				throw new IllegalStateException("No payload at event " + event.name());
+		}
+	}
+
+	/**
+	 * Sets the symbol table used to decode tag names. With a cache, names
+	 * that were seen before are returned as the same String instance without
+	 * allocating. Names are decoded through a reusable buffer either way.
+	 * @param cache the cache to use, or null to decode every name into a new
+	 * String
+	 */
+	public void setNameCache(NBTNameCache cache) {
+		this.nameCache = cache;
+	}
+
+	/**
+	 * Makes the reader count the tags it reads, its nesting depth and array
+	 * sizes into <code>stats</code>.
+	 */
+	void setStats(NBTOperationStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Returns the symbol table used to decode tag names, or null if there is
+	 * none.
+	 */
+	public NBTNameCache getNameCache() {
+		return nameCache;
+	}
+
+	/**
+	 * Returns the current event, or null if {@link #next()} was never called.
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the type of the current tag.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the name of the current tag, or null for list elements.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of lists and compounds that enclose the current
+	 * event. START_LIST and START_COMPOUND count their own container.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the element type of the list started by the current
+	 * {@link Event#START_LIST} event.
+	 */
+	public Type getListType() {
+		return listType;
+	}
+
+	/**
+	 * Returns the number of elements of the list started by the current
+	 * {@link Event#START_LIST} event.
+	 */
+	public int getListLength() {
+		return listLength;
+	}
+
+	public byte getByte() {
+		checkValue(Type.TAG_Byte);
+		return (byte) longValue;
+	}
+
+	public short getShort() {
+		checkValue(Type.TAG_Short);
+		return (short) longValue;
+	}
+
+	public int getInt() {
+		checkValue(Type.TAG_Int);
+		return (int) longValue;
+	}
+
+	public long getLong() {
+		checkValue(Type.TAG_Long);
+		return longValue;
+	}
+
+	public float getFloat() {
+		checkValue(Type.TAG_Float);
+		return (float) doubleValue;
+	}
+
+	public double getDouble() {
+		checkValue(Type.TAG_Double);
+		return doubleValue;
+	}
+
+	public String getString() {
+		checkValue(Type.TAG_String);
+		return stringValue;
+	}
+
+	/**
+	 * Returns the number of elements of the current TAG_Byte_Array,
+	 * TAG_Int_Array or TAG_Long_Array value.
+	 */
+	public int getArrayLength() {
+		if(event != Event.VALUE || (type != Type.TAG_Byte_Array && type != Type.TAG_Int_Array && type != Type.TAG_Long_Array)){
+			throw new IllegalStateException("Current event is not an array value");
+		}
+		return arrayLength;
+	}
+
+	/**
+	 * Reads the contents of the current TAG_Int_Array value into a new
+	 * array, decoding it in bulk.
+	 * @return the int array
+	 * @throws IOException if the stream ended early or any other IOException
+	 * occurred.
+	 */
+	public int[] getIntArray() throws IOException {
+		checkValue(Type.TAG_Int_Array);
+		return (int[]) readPendingArray(Type.TAG_Int);
+	}
+
+	/**
+	 * Reads the contents of the current TAG_Long_Array value into a new
+	 * array, decoding it in bulk.
+	 * @return the long array
+	 * @throws IOException if the stream ended early or any other IOException
+	 * occurred.
+	 */
+	public long[] getLongArray() throws IOException {
+		checkValue(Type.TAG_Long_Array);
+		return (long[]) readPendingArray(Type.TAG_Long);
+	}
+
+	private Object readPendingArray(Type elementType) throws IOException {
+		if(pendingBytes != (long) arrayLength * fixedSize(elementType.ordinal())){
+			throw new IllegalStateException("Array has already been read");
+		}
+		pendingBytes = 0;
+		return readNumbers(elementType, arrayLength);
+	}
+
+	/**
+	 * Reads the contents of the current TAG_Byte_Array value into a new
+	 * array. Must be called before any call to
+	 * {@link #readBytes(byte[], int, int)}.
+	 * @return the byte array
+	 * @throws IOException if the stream ended early or any other IOException
+	 * occurred.
+	 */
+	public byte[] getByteArray() throws IOException {
+		checkValue(Type.TAG_Byte_Array);
+		if(pendingBytes != arrayLength){
+			throw new IllegalStateException("Byte array has already been partially read");
+		}
+		byte[] ba = new byte[arrayLength];
+		in.readFully(ba);
+		pendingBytes = 0;
+		return ba;
+	}
+
+	/**
+	 * Returns the contents of the current TAG_Byte_Array value as a
+	 * ByteBuffer. If this reader reads from a ByteBuffer, the result is a
+	 * read-only slice of that buffer and nothing is copied. Must be called
+	 * before any call to {@link #readBytes(byte[], int, int)}.
+	 * @return the byte array as a buffer
+	 * @throws IOException if the stream ended early or any other IOException
+	 * occurred.
+	 */
+	public ByteBuffer getByteBuffer() throws IOException {
+		checkValue(Type.TAG_Byte_Array);
+		if(pendingBytes != arrayLength){
+			throw new IllegalStateException("Byte array has already been partially read");
+		}
+		if(in instanceof ByteBufferInput){
+			pendingBytes = 0;
+			return ((ByteBufferInput) in).slice(arrayLength);
+		}
+		return ByteBuffer.wrap(getByteArray());
+	}
+
+	/**
+	 * Reads all elements of the list started by the current
+	 * {@link Event#START_LIST} event in bulk, and leaves the reader on the
+	 * {@link Event#END} event of the list. Only lists of numbers can be read
+	 * this way.
+	 * @return a byte[], short[], int[], long[], float[] or double[] array,
+	 * matching the element type of the list
+	 * @throws IOException if the stream ended early or any other IOException
+	 * occurred.
+	 */
+	public Object readListArray() throws IOException {
+		if(event != Event.START_LIST || !PrimitiveList.isPrimitive(listType)){
+			throw new IllegalStateException("Current event is not the start of a list of numbers");
+		}
+		int top = depth - 1;
+		if(frameRemaining[top] != listLength){
+			throw new IllegalStateException("List has already been partially read");
+		}
+		Object array = readNumbers(listType, listLength);
+		frameRemaining[top] = 0;
+		if(stats != null){
+			stats.tags(listType, listLength);
+		}
+		next();
+		return array;
+	}
+
+	/**
+	 * Reads <code>n</code> big-endian numbers of the given type into a new
+	 * array, decoding them in bulk through buffer views.
+	 */
+	private Object readNumbers(Type t, int n) throws IOException {
+		int size = fixedSize(t.ordinal());
+		Object array;
+		switch(t){
+			case TAG_Byte:
+				array = new byte[n];
+				break;
+			case TAG_Short:
+				array = new short[n];
+				break;
+			case TAG_Int:
+				array = new int[n];
+				break;
+			case TAG_Long:
+				array = new long[n];
+				break;
+			case TAG_Float:
+				array = new float[n];
+				break;
+			case TAG_Double:
+				array = new double[n];
+				break;
+			default:
+				throw new IllegalArgumentException(t.name() + " is not a number type");
+		}
+		if(in instanceof ByteBufferInput){
+			if((long) n * size > Integer.MAX_VALUE){
+				throw new IOException("Array of " + n + " " + t.name() + " is too large");
+			}
+			copyNumbers(((ByteBufferInput) in).view(n * size), array, t, 0, n);
+			return array;
+		}
+		if(scratch == null){
+			scratch = ByteBuffer.allocate(SKIP_BUFFER_SIZE);
+		}
+		int perChunk = scratch.capacity() / size;
+		for(int off = 0; off < n; off += perChunk){
+			int k = Math.min(perChunk, n - off);
+			in.readFully(scratch.array(), 0, k * size);
+			scratch.clear();
+			scratch.limit(k * size);
+			copyNumbers(scratch, array, t, off, k);
+		}
+		return array;
+	}
+
+	private static void copyNumbers(ByteBuffer src, Object dst, Type t, int off, int n) {
+		switch(t){
+			case TAG_Byte:
+				src.get((byte[]) dst, off, n);
+				break;
+			case TAG_Short:
+				src.asShortBuffer().get((short[]) dst, off, n);
+				break;
+			case TAG_Int:
+				src.asIntBuffer().get((int[]) dst, off, n);
+				break;
+			case TAG_Long:
+				src.asLongBuffer().get((long[]) dst, off, n);
+				break;
+			case TAG_Float:
+				src.asFloatBuffer().get((float[]) dst, off, n);
+				break;
+			case TAG_Double:
+				src.asDoubleBuffer().get((double[]) dst, off, n);
+				break;
+			default:
+				throw new IllegalArgumentException(t.name() + " is not a number type");
+		}
+	}
+
+	/**
+	 * Returns the absolute position of the next byte to be read if this
+	 * reader reads from a buffer, or -1 otherwise.
+	 */
+	int position() {
+		return in instanceof ByteBufferInput ? ((ByteBufferInput) in).position() : -1;
+	}
+
+	boolean isSlicingByteArrays() {
+		return sliceByteArrays;
+	}
+
+	/**
+	 * Reads the next part of the current TAG_Byte_Array value into a buffer,
+	 * allowing huge arrays to be processed in chunks.
+	 * @param dst buffer to copy into
+	 * @param off offset in <code>dst</code>
+	 * @param len maximum number of bytes to copy
+	 * @return the number of bytes copied, or -1 if the whole array has
+	 * already been read.
+	 * @throws IOException if the stream ended early or any other IOException
+	 * occurred.
+	 */
+	public int readBytes(byte[] dst, int off, int len) throws IOException {
+		checkValue(Type.TAG_Byte_Array);
+		if(pendingBytes == 0){
+			return -1;
+		}
+		int n = (int) Math.min(len, pendingBytes);
+		in.readFully(dst, off, n);
+		pendingBytes -= n;
+		return n;
+	}
+
+	/**
+	 * Returns the current value as the boxed object that an {@link NBTag} of
+	 * the current type would hold.
+	 */
+	private Object getValue() throws IOException {
+		switch(type){
+			case TAG_End:
+				return null;
+			case TAG_Byte:
+				return getByte();
+			case TAG_Short:
+				return getShort();
+			case TAG_Int:
+				return getInt();
+			case TAG_Long:
+				return getLong();
+			case TAG_Float:
+				return getFloat();
+			case TAG_Double:
+				return getDouble();
+			case TAG_Byte_Array:
+				return sliceByteArrays ? getByteBuffer() : getByteArray();
+			case TAG_String:
+				return getString();
+			case TAG_Int_Array:
+				return getIntArray();
+			case TAG_Long_Array:
+				return getLongArray();
+			default:
+				throw new IllegalStateException("No value for " + type.name());
+		}
+	}
+
+	/**
+	 * Returns the value of an unselected list element placeholder.
+	 */
+	private static Object emptyValue(Type t) {
+		switch(t){
+			case TAG_Byte:
+				return (byte) 0;
+			case TAG_Short:
+				return (short) 0;
+			case TAG_Int:
+				return 0;
+			case TAG_Long:
+				return 0L;
+			case TAG_Float:
+				return 0f;
+			case TAG_Double:
+				return 0d;
+			case TAG_Byte_Array:
+				return new byte[0];
+			case TAG_String:
+				return "";
+			case TAG_List:
+				return Type.TAG_End;
+			case TAG_Compound:
+				return new LinkedHashMap<String,NBTag>();
+			case TAG_Int_Array:
+				return new int[0];
+			case TAG_Long_Array:
+				return new long[0];
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Closes the underlying stream.
+	 * @throws IOException if the stream could not be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if(in instanceof Closeable){
+			((Closeable) in).close();
+		}
+	}
+
+	private void checkValue(Type expected) {
+		if(event != Event.VALUE || type != expected){
+			throw new IllegalStateException("Current event is not a " + expected.name() + " value");
+		}
+	}
+
+	private Event setEvent(Event e) {
+		event = e;
+		return e;
+	}
+
+	private Event beginPayload(Type t) throws IOException {
+		type = t;
+		if(stats != null){
+			stats.tag(t);
+		}
+		switch(t){
+			case TAG_End:
+				break;
+			case TAG_Byte:
+				longValue = in.readByte();
+				break;
+			case TAG_Short:
+				longValue = in.readShort();
+				break;
+			case TAG_Int:
+				longValue = in.readInt();
+				break;
+			case TAG_Long:
+				longValue = in.readLong();
+				break;
+			case TAG_Float:
+				doubleValue = in.readFloat();
+				break;
+			case TAG_Double:
+				doubleValue = in.readDouble();
+				break;
+			case TAG_Byte_Array:
+				arrayLength = readLength();
+				pendingBytes = arrayLength;
+				break;
+			case TAG_String:
+				stringValue = in.readUTF();
+				break;
+			case TAG_List:
+				byte lt = in.readByte();
+				listType = toType(lt);
+				listLength = readLength();
+				push(Type.TAG_List, lt, listLength);
+				return setEvent(Event.START_LIST);
+			case TAG_Compound:
+				push(Type.TAG_Compound, (byte) 0, 0);
+				return setEvent(Event.START_COMPOUND);
+			case TAG_Int_Array:
+				arrayLength = readLength();
+				pendingBytes = (long) arrayLength * 4;
+				break;
+			case TAG_Long_Array:
+				arrayLength = readLength();
+				pendingBytes = (long) arrayLength * 8;
+				break;
+		}
+		if(stats != null && pendingBytes > 0){
+			stats.array(arrayLength);
+		}
+		if(depth == 0){
+			finished = true;
+		}
+		return setEvent(Event.VALUE);
+	}
+
+	private Event endContainer() {
+		depth--;
+		type = TYPES[frameType[depth]];
+		name = null;
+		if(depth == 0){
+			finished = true;
+		}
+		return setEvent(Event.END);
+	}
+
+	private void push(Type container, byte elementType, int remaining) {
+		if(depth == frameType.length){
+			int n = depth * 2;
+			frameType = Arrays.copyOf(frameType, n);
+			frameListType = Arrays.copyOf(frameListType, n);
+			frameRemaining = Arrays.copyOf(frameRemaining, n);
+		}
+		frameType[depth] = (byte) container.ordinal();
+		frameListType[depth] = elementType;
+		frameRemaining[depth] = remaining;
+		depth++;
+		if(stats != null){
+			stats.depth(depth);
+		}
+	}
+
+	private String readName() throws IOException {
+		int len = in.readUnsignedShort();
+		if(nameBytes.length < len){
+			nameBytes = new byte[Math.max(len, nameBytes.length * 2)];
+			nameChars = new char[nameBytes.length];
+		}
+		in.readFully(nameBytes, 0, len);
+		if(nameCache != null){
+			return nameCache.intern(nameBytes, 0, len);
+		}
+		return NBTNameCache.decode(nameBytes, 0, len, nameChars);
+	}
+
+	private int readLength() throws IOException {
+		int length = in.readInt();
+		if(length < 0){
+			throw new IOException("Negative array or list length: " + length);
+		}
+		return length;
+	}
+
+	private static Type toType(byte t) throws IOException {
+		if(t < 0 || t >= TYPES.length){
+			throw new IOException("Unknown NBT tag type: " + t);
+		}
+		return TYPES[t];
+	}
+
+	/**
+	 * Skips a payload of the given type without allocating.
+	 */
+	private void skipPayload(int t) throws IOException {
+		switch(t){
+			case 0:
+				break;
+			case 1:
+				skipFully(1);
+				break;
+			case 2:
+				skipFully(2);
+				break;
+			case 3:
+			case 5:
+				skipFully(4);
+				break;
+			case 4:
+			case 6:
+				skipFully(8);
+				break;
+			case 7:
+				skipFully(readLength());
+				break;
+			case 8:
+				skipFully(in.readUnsignedShort());
+				break;
+			case 9:
+				byte lt = in.readByte();
+				toType(lt);
+				skipListContents(lt, readLength());
+				break;
+			case 10:
+				skipCompoundContents();
+				break;
+			case 11:
+				skipFully((long) readLength() * 4);
+				break;
+			case 12:
+				skipFully((long) readLength() * 8);
+				break;
+			default:
+				throw new IOException("Unknown NBT tag type: " + t);
+		}
+	}
+
+	private void skipListContents(byte elementType, int count) throws IOException {
+		int size = fixedSize(elementType);
+		if(size >= 0){
+			skipFully((long) size * count);
+		} else {
+			for(int i = 0; i < count; i++){
+				skipPayload(elementType);
+			}
+		}
+	}
+
+	private void skipCompoundContents() throws IOException {
+		byte t;
+		while((t = in.readByte()) != 0){
+			skipFully(in.readUnsignedShort());
+			skipPayload(t);
+		}
+	}
+
+	/**
+	 * Returns the payload size of a fixed-size type, or -1 if the size of the
+	 * payload is variable.
+	 */
+	static int fixedSize(int t) {
+		switch(t){
+			case 0:
+				return 0;
+			case 1:
+				return 1;
+			case 2:
+				return 2;
+			case 3:
+			case 5:
+				return 4;
+			case 4:
+			case 6:
+				return 8;
+			default:
+				return -1;
+		}
+	}
+
+	private void skipFully(long n) throws IOException {
+		while(n > 0){
+			int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+			if(skipped <= 0){
+				// skipBytes() may refuse to skip, fall back on reading
+				in.readFully(new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)]);
+				skipped = (int) Math.min(n, SKIP_BUFFER_SIZE);
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Region file in the Anvil (.mca) layout: a grid of 32 x 32 chunks, each an
+ * NBT document stored compressed in 4 KiB sectors. The first two sectors
+ * hold the location table (sector offset and sector count of every chunk)
+ * and the timestamp table; each chunk starts with its length and
+ * compression type.
+ * <p>
+ * The tables are memory-mapped, so looking up a chunk costs one array
+ * access. Free sectors are tracked in a bitmap; a rewritten chunk stays
+ * where it is if it still fits, otherwise it is moved to the first free
+ * run of sectors that is large enough. {@link #compact()} closes the gaps
+ * left behind. Only the sectors of the chunk being written are touched, the
+ * rest of the file is never copied.
+ * <p>
+ * Chunk coordinates may be given as world chunk coordinates; only their
+ * lowest 5 bits are used. Instances are thread-safe.
+ */
+public class NBTRegionFile implements Closeable {
+
+	/** Size of a sector in bytes. */
+	public static final int SECTOR_SIZE = 4096;
+	/** Number of chunks in a region file. */
+	public static final int CHUNK_COUNT = 1024;
+	/** Largest number of sectors a chunk can occupy. */
+	public static final int MAX_CHUNK_SECTORS = 255;
+
+	private static final int HEADER_SECTORS = 2;
+	private static final int CHUNK_HEADER_SIZE = 5;
+
+	/**
+	 * Compression types of chunks, with their ids in the file.
+	 */
+	public enum Compression {
+		/** gzip (id 1). */
+		GZIP(1),
+		/** zlib (id 2), the default. */
+		ZLIB(2),
+		/** Uncompressed NBT (id 3). */
+		NONE(3);
+
+		private final int id;
+
+		Compression(int id) {
+			this.id = id;
+		}
+
+		/**
+		 * Returns the id of this compression type in the chunk header.
+		 */
+		public int getId() {
+			return id;
+		}
+
+		static Compression forId(int id) throws IOException {
+			for(Compression c : values()){
+				if(c.id == id){
+					return c;
+				}
+			}
+			if((id & 0x80) != 0){
+				throw new IOException("Chunks stored in external files are not supported");
+			}
+			throw new IOException("Unknown chunk compression type " + id);
+		}
+	}
+
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private final MappedByteBuffer header;
+	private final BitSet usedSectors = new BitSet();
+	private int sectorCount;
+	private NBTCodecContext codec = null;
+
+	/**
+	 * Opens a region file for reading and writing, creating it if it does not
+	 * exist.
+	 * @param file path of the region file
+	 * @throws IOException if the file could not be opened or its location
+	 * table is invalid
+	 */
+	public NBTRegionFile(Path file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Opens a region file.
+	 * @param file path of the region file
+	 * @param readOnly if true, the file is opened for reading only and must
+	 * exist
+	 * @throws IOException if the file could not be opened or its location
+	 * table is invalid
+	 */
+	public NBTRegionFile(Path file, boolean readOnly) throws IOException {
+		this.readOnly = readOnly;
+		if(readOnly){
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+		} else {
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		}
+		try{
+			long size = channel.size();
+			if(size < HEADER_SECTORS * SECTOR_SIZE){
+				if(readOnly){
+					throw new IOException("Region file is too short: " + size + " bytes");
+				}
+				// new or truncated file: write empty tables
+				writeFully(ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE - (int) size), size);
+				size = HEADER_SECTORS * SECTOR_SIZE;
+			}
+			header = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, HEADER_SECTORS * SECTOR_SIZE);
+			sectorCount = (int) ((size + SECTOR_SIZE - 1) / SECTOR_SIZE);
+			usedSectors.set(0, HEADER_SECTORS);
+			for(int i = 0; i < CHUNK_COUNT; i++){
+				int location = header.getInt(i * 4);
+				if(location == 0){
+					continue;
+				}
+				int offset = location >>> 8;
+				int count = location & 0xFF;
+				if(offset < HEADER_SECTORS || count == 0 || offset + count > sectorCount){
+					throw new IOException("Invalid location of chunk " + (i & 31) + "," + (i >> 5) + ": sector " + offset + " + " + count);
+				}
+				usedSectors.set(offset, offset + count);
+			}
+		} catch(IOException | RuntimeException ex){
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns true if the chunk exists in this region.
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 */
+	public synchronized boolean hasChunk(int x, int z) {
+		return header.getInt(index(x, z) * 4) != 0;
+	}
+
+	/**
+	 * Returns the time the chunk was last written, in seconds since the
+	 * epoch, or 0 if it does not exist.
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 */
+	public synchronized int getTimestamp(int x, int z) {
+		return header.getInt(SECTOR_SIZE + index(x, z) * 4);
+	}
+
+	/**
+	 * Reads and decodes a chunk. Only reading the compressed data holds the
+	 * lock of this file, so several threads can decode chunks in parallel.
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 * @return the root tag of the chunk, or null if the chunk does not exist
+	 * @throws IOException if the chunk is corrupt or an IOException occurred
+	 */
+	public NBTag readChunk(int x, int z) throws IOException {
+		Compression compression;
+		ByteBuffer data;
+		synchronized(this){
+			checkOpen();
+			int location = header.getInt(index(x, z) * 4);
+			if(location == 0){
+				return null;
+			}
+			long pos = (long) (location >>> 8) * SECTOR_SIZE;
+			int maxLength = (location & 0xFF) * SECTOR_SIZE - 4;
+			ByteBuffer head = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+			readFully(head, pos);
+			int length = head.getInt(0);
+			if(length < 1 || length > maxLength){
+				throw new IOException("Invalid length of chunk " + x + "," + z + ": " + length);
+			}
+			compression = Compression.forId(head.get(4) & 0xFF);
+			data = ByteBuffer.allocate(length - 1);
+			readFully(data, pos + CHUNK_HEADER_SIZE);
+		}
+		switch(compression){
+			case NONE:
+				data.flip();
+				return NBTag.readNBTag(data, false);
+			case GZIP:
+				return NBTag.readFromGZipStream(new ByteArrayInputStream(data.array()));
+			default:
+				InputStream in = new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data.array())), 8192);
+				return NBTag.readNBTag(new DataInputStream(in));
+		}
+	}
+
+	/**
+	 * Writes a chunk with zlib compression.
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 * @param tag root tag of the chunk
+	 * @throws IOException if the chunk is too large or an IOException
+	 * occurred
+	 */
+	public void writeChunk(int x, int z, NBTag tag) throws IOException {
+		writeChunk(x, z, tag, Compression.ZLIB);
+	}
+
+	/**
+	 * Writes a chunk. If the new data fits into the sectors the chunk already
+	 * occupies, it is written in place.
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 * @param tag root tag of the chunk
+	 * @param compression how to compress the chunk
+	 * @throws IOException if the chunk is too large or an IOException
+	 * occurred
+	 */
+	public synchronized void writeChunk(int x, int z, NBTag tag, Compression compression) throws IOException {
+		checkWritable();
+		ChunkBuffer buffer = new ChunkBuffer();
+		buffer.write(new byte[CHUNK_HEADER_SIZE]);
+		switch(compression){
+			case NONE:
+				tag.write(buffer);
+				break;
+			case GZIP:
+				codec().writeGZip(tag, buffer);
+				break;
+			default:
+				codec().writeZlib(tag, buffer);
+				break;
+		}
+		int length = buffer.size();
+		int sectors = (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+		if(sectors > MAX_CHUNK_SECTORS){
+			throw new IOException("Chunk " + x + "," + z + " is too large: " + length + " bytes");
+		}
+		ByteBuffer data = buffer.toByteBuffer();
+		data.putInt(0, length - 4);
+		data.put(4, (byte) compression.getId());
+
+		int i = index(x, z);
+		int location = header.getInt(i * 4);
+		int offset = location >>> 8;
+		int oldSectors = location & 0xFF;
+		if(location != 0 && sectors <= oldSectors){
+			// rewrite in place and give back the sectors that are not needed
+			writeFully(data, (long) offset * SECTOR_SIZE);
+			usedSectors.clear(offset + sectors, offset + oldSectors);
+		} else {
+			if(location != 0){
+				usedSectors.clear(offset, offset + oldSectors);
+			}
+			offset = allocate(sectors);
+			writeFully(data, (long) offset * SECTOR_SIZE);
+			usedSectors.set(offset, offset + sectors);
+			if(offset + sectors > sectorCount){
+				sectorCount = offset + sectors;
+				padToSector();
+			}
+		}
+		header.putInt(i * 4, (offset << 8) | sectors);
+		header.putInt(SECTOR_SIZE + i * 4, (int) (System.currentTimeMillis() / 1000));
+	}
+
+	/**
+	 * Removes a chunk. Its sectors become free.
+	 * @param x chunk x coordinate
+	 * @param z chunk z coordinate
+	 * @return true if the chunk existed
+	 */
+	public synchronized boolean deleteChunk(int x, int z) {
+		checkWritable();
+		int i = index(x, z);
+		int location = header.getInt(i * 4);
+		if(location == 0){
+			return false;
+		}
+		int offset = location >>> 8;
+		usedSectors.clear(offset, offset + (location & 0xFF));
+		header.putInt(i * 4, 0);
+		header.putInt(SECTOR_SIZE + i * 4, 0);
+		return true;
+	}
+
+	/**
+	 * Returns the number of sectors that are not used by any chunk.
+	 */
+	public synchronized int getFreeSectors() {
+		return sectorCount - usedSectors.cardinality();
+	}
+
+	/**
+	 * Moves all chunks towards the start of the file so that there are no
+	 * free sectors between them, then truncates the file. Chunks are moved
+	 * one at a time, in the order they are stored.
+	 * @throws IOException if an IOException occurred
+	 */
+	public synchronized void compact() throws IOException {
+		checkWritable();
+		// sort chunk indices by sector offset
+		long[] order = new long[CHUNK_COUNT];
+		int n = 0;
+		for(int i = 0; i < CHUNK_COUNT; i++){
+			int location = header.getInt(i * 4);
+			if(location != 0){
+				order[n++] = ((long) (location >>> 8) << 32) | i;
+			}
+		}
+		Arrays.sort(order, 0, n);
+		int next = HEADER_SECTORS;
+		ByteBuffer data = null;
+		for(int k = 0; k < n; k++){
+			int i = (int) order[k];
+			int location = header.getInt(i * 4);
+			int offset = location >>> 8;
+			int sectors = location & 0xFF;
+			if(offset != next){
+				int size = sectors * SECTOR_SIZE;
+				if(data == null || data.capacity() < size){
+					data = ByteBuffer.allocate(Math.max(size, 16 * SECTOR_SIZE));
+				}
+				data.clear().limit(size);
+				readFully(data, (long) offset * SECTOR_SIZE);
+				data.flip();
+				writeFully(data, (long) next * SECTOR_SIZE);
+				header.putInt(i * 4, (next << 8) | sectors);
+			}
+			next += sectors;
+		}
+		header.force();
+		channel.truncate((long) next * SECTOR_SIZE);
+		sectorCount = next;
+		usedSectors.clear();
+		usedSectors.set(0, next);
+	}
+
+	/**
+	 * Forces all changes to the storage device.
+	 * @throws IOException if an IOException occurred
+	 */
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		if(!readOnly){
+			header.force();
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Flushes and closes the file.
+	 * @throws IOException if an IOException occurred
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(!channel.isOpen()){
+			return;
+		}
+		try{
+			flush();
+		} finally {
+			channel.close();
+			if(codec != null){
+				codec.close();
+				codec = null;
+			}
+		}
+	}
+
+	private static int index(int x, int z) {
+		return (x & 31) | ((z & 31) << 5);
+	}
+
+	/**
+	 * Returns the first sector of the first run of free sectors that is long
+	 * enough, which may extend past the end of the file.
+	 */
+	private int allocate(int sectors) {
+		int start = usedSectors.nextClearBit(HEADER_SECTORS);
+		while(start < sectorCount){
+			int end = usedSectors.nextSetBit(start);
+			if(end < 0 || end - start >= sectors){
+				return start;
+			}
+			start = usedSectors.nextClearBit(end);
+		}
+		return start;
+	}
+
+	private NBTCodecContext codec() {
+		if(codec == null){
+			codec = new NBTCodecContext();
+		}
+		return codec;
+	}
+
+	/**
+	 * Makes the file length a multiple of the sector size.
+	 */
+	private void padToSector() throws IOException {
+		long size = channel.size();
+		long end = (long) sectorCount * SECTOR_SIZE;
+		if(size < end){
+			writeFully(ByteBuffer.allocate((int) (end - size)), size);
+		}
+	}
+
+	private void readFully(ByteBuffer dst, long pos) throws IOException {
+		while(dst.hasRemaining()){
+			int n = channel.read(dst, pos);
+			if(n < 0){
+				throw new EOFException("Unexpected end of region file at byte " + pos);
+			}
+			pos += n;
+		}
+	}
+
+	private void writeFully(ByteBuffer src, long pos) throws IOException {
+		while(src.hasRemaining()){
+			pos += channel.write(src, pos);
+		}
+	}
+
+	private void checkOpen() {
+		if(!channel.isOpen()){
+			throw new IllegalStateException("Region file has been closed");
+		}
+	}
+
+	private void checkWritable() {
+		checkOpen();
+		if(readOnly){
+			throw new IllegalStateException("Region file is opened read-only");
+		}
+	}
+
+	/**
+	 * ByteArrayOutputStream that hands out its array without copying.
+	 */
+	private static final class ChunkBuffer extends ByteArrayOutputStream {
+		ChunkBuffer() {
+			super(SECTOR_SIZE);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,706 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses SNBT or JSON text, as written by {@link NBTTextWriter}, into a
+ * tree of {@link NBTag} objects or straight into an {@link NBTWriter}. Both
+ * formats are accepted by the same parser:
+ * <ul>
+ * <li>Names and strings may be quoted with double or single quotes, or
+ * unquoted if they only consist of letters, digits and
+ * <code>_-.+</code>.</li>
+ * <li>Numbers with a type suffix (<code>1b</code>, <code>2s</code>,
+ * <code>3L</code>, <code>4.5f</code>, <code>6d</code>) get that type.
+ * Integers without a suffix become TAG_Int, or TAG_Long if they do not fit,
+ * and decimals become TAG_Double. <code>true</code> and <code>false</code>
+ * become a TAG_Byte of 1 and 0.</li>
+ * <li><code>[B;...]</code>, <code>[I;...]</code> and <code>[L;...]</code>
+ * are array tags. Lists of numbers of different types are widened to the
+ * widest type, so that JSON arrays like <code>[1, 2.5]</code> can be
+ * read. In such lists, the strings <code>"NaN"</code>,
+ * <code>"Infinity"</code> and <code>"-Infinity"</code> are read as
+ * TAG_Double, since that is how JSON output holds them. Elsewhere, and in
+ * lists that hold nothing else, they stay strings.</li>
+ * <li>Members whose value is <code>null</code> are left out.</li>
+ * <li><code>[]</code> becomes an empty list of TAG_End, since the text
+ * does not say what the elements would have been.</li>
+ * </ul>
+ * The root tag has no name in the text, so the name is passed to the read
+ * methods. {@link #copyTo(NBTWriter, String)} streams compounds of any
+ * size; only lists are held in memory before they are written, because the
+ * wire format needs the length of a list before its elements. Instances are
+ * not thread-safe.
+ */
+public class NBTTextReader implements Closeable {
+
+	private final Reader in;
+	private final char[] buffer = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+	private int line = 1;
+	private final StringBuilder text = new StringBuilder();
+
+	// the last scalar read by readScalar()
+	private Type scalarType;
+	private long longValue;
+	private double doubleValue;
+	private String stringValue;
+
+	/**
+	 * Creates a parser. The reader is read in blocks, so it does not need to
+	 * be buffered.
+	 * @param in reader to read the text from
+	 */
+	public NBTTextReader(Reader in) {
+		if(in == null){
+			throw new NullPointerException("Input cannot be null");
+		}
+		this.in = in;
+	}
+
+	/**
+	 * Parses a complete document into a tree.
+	 * @param name name of the root tag
+	 * @return the root tag
+	 * @throws IOException if the text is not valid SNBT or JSON, or if an
+	 * IOException occurred
+	 */
+	public NBTag readTag(String name) throws IOException {
+		NBTag tag = parseValue(name);
+		if(tag == null){
+			throw error("The document is null");
+		}
+		expectEndOfDocument();
+		return tag;
+	}
+
+	/**
+	 * Parses a complete document and writes it to an NBTWriter, as a tag
+	 * with the given name.
+	 * @param w writer to write to, at the root or inside a compound or list
+	 * @param name name of the root tag
+	 * @throws IOException if the text is not valid SNBT or JSON, or if an
+	 * IOException occurred
+	 */
+	public void copyTo(NBTWriter w, String name) throws IOException {
+		skipSpace();
+		if(peek() != '{'){
+			NBTag tag = parseValue(name);
+			if(tag == null){
+				throw error("The document is null");
+			}
+			w.writeTag(tag);
+		} else {
+			copyCompound(w, name);
+		}
+		expectEndOfDocument();
+	}
+
+	private void copyCompound(NBTWriter w, String name) throws IOException {
+		read();
+		w.beginCompound(name);
+		skipSpace();
+		if(peek() == '}'){
+			read();
+		} else {
+			do{
+				String key = readKey();
+				skipSpace();
+				if(peek() == '{'){
+					copyCompound(w, key);
+				} else {
+					NBTag member = parseValue(key);
+					if(member != null){
+						w.writeTag(member);
+					}
+				}
+			} while(nextElement('}'));
+		}
+		w.end();
+	}
+
+	private void expectEndOfDocument() throws IOException {
+		skipSpace();
+		if(peek() >= 0){
+			throw error("Unexpected text after the end of the document");
+		}
+	}
+
+	/**
+	 * Parses a value, or returns null for <code>null</code>.
+	 */
+	private NBTag parseValue(String name) throws IOException {
+		skipSpace();
+		int c = peek();
+		if(c == '{'){
+			return parseCompound(name);
+		}
+		if(c == '['){
+			return parseList(name);
+		}
+		readScalar();
+		if(scalarType == null){
+			return null;
+		}
+		return scalarTag(name);
+	}
+
+	private NBTag scalarTag(String name) {
+		switch(scalarType){
+			case TAG_Byte:
+				return new NBTag(Type.TAG_Byte, name, (byte) longValue);
+			case TAG_Short:
+				return new NBTag(Type.TAG_Short, name, (short) longValue);
+			case TAG_Int:
+				return new NBTag(Type.TAG_Int, name, (int) longValue);
+			case TAG_Long:
+				return new NBTag(Type.TAG_Long, name, longValue);
+			case TAG_Float:
+				return new NBTag(Type.TAG_Float, name, (float) doubleValue);
+			case TAG_Double:
+				return new NBTag(Type.TAG_Double, name, doubleValue);
+			default:
+				return new NBTag(Type.TAG_String, name, stringValue);
+		}
+	}
+
+	private NBTag parseCompound(String name) throws IOException {
+		read();
+		NBTag tag = NBTag.makeCompoundTag(name);
+		skipSpace();
+		if(peek() == '}'){
+			read();
+			return tag;
+		}
+		do{
+			String key = readKey();
+			NBTag member = parseValue(key);
+			if(member != null){
+				tag.addTag(member);
+			}
+		} while(nextElement('}'));
+		return tag;
+	}
+
+	/**
+	 * Reads a member name and the colon after it.
+	 */
+	private String readKey() throws IOException {
+		skipSpace();
+		int c = peek();
+		String key;
+		if(c == '"' || c == '\''){
+			key = readQuoted();
+		} else {
+			key = readBare();
+			if(key.isEmpty()){
+				throw unexpected("a name");
+			}
+		}
+		skipSpace();
+		if(read() != ':'){
+			throw error("Expected ':' after " + key);
+		}
+		return key;
+	}
+
+	/**
+	 * Reads the separator after an element.
+	 * @return true if another element follows, false at the closing bracket
+	 */
+	private boolean nextElement(char close) throws IOException {
+		skipSpace();
+		int c = peek();
+		if(c != ',' && c != close){
+			throw unexpected("',' or '" + close + "'");
+		}
+		read();
+		return c == ',';
+	}
+
+	private NBTag parseList(String name) throws IOException {
+		read();
+		skipSpace();
+		int c = peek();
+		if((c == 'B' || c == 'I' || c == 'L') && peek(1) == ';'){
+			read();
+			read();
+			return parseArray(name, c == 'B' ? Type.TAG_Byte : c == 'I' ? Type.TAG_Int : Type.TAG_Long);
+		}
+		if(c == ']'){
+			read();
+			return new NBTag(name, Type.TAG_End);
+		}
+		if(c == '{' || c == '['){
+			List<NBTag> elements = new ArrayList<>();
+			do{
+				NBTag e = parseValue(null);
+				if(e == null){
+					throw error("Lists cannot hold null");
+				}
+				if(!elements.isEmpty() && e.getType() != elements.get(0).getType()){
+					throw error("List of " + elements.get(0).getType().name() + " holds a " + e.getType().name());
+				}
+				elements.add(e);
+			} while(nextElement(']'));
+			return NBTag.makeListTag(name, elements.toArray(new NBTag[elements.size()]));
+		}
+		readScalar();
+		if(scalarType == Type.TAG_String){
+			List<String> strings = new ArrayList<>();
+			strings.add(stringValue);
+			while(nextElement(']')){
+				readScalar();
+				if(scalarType != Type.TAG_String){
+					if(scalarType != null && allSpecial(strings)){
+						return parseNumberList(name, strings);
+					}
+					throw error("List of TAG_String holds a " + (scalarType == null ? "null" : scalarType.name()));
+				}
+				strings.add(stringValue);
+			}
+			return NBTag.makeListTag(name, strings.toArray(new String[strings.size()]));
+		}
+		return parseNumberList(name, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Parses a list of numbers whose first element has been read, widening
+	 * the elements to the widest type in the list.
+	 * @param leading elements before the current one, all NaN or infinity
+	 */
+	private NBTag parseNumberList(String name, List<String> leading) throws IOException {
+		int n = leading.size();
+		long[] longs = new long[Math.max(16, 2 * n)];
+		double[] doubles = null;
+		Type widest = Type.TAG_Byte;
+		if(n > 0){
+			widest = Type.TAG_Double;
+			doubles = new double[longs.length];
+			for(int i = 0; i < n; i++){
+				doubles[i] = Double.parseDouble(leading.get(i));
+			}
+		}
+		while(true){
+			if(scalarType == Type.TAG_String && isSpecial(stringValue)){
+				// JSON output quotes the values that JSON numbers cannot hold
+				scalarType = Type.TAG_Double;
+				doubleValue = Double.parseDouble(stringValue);
+			}
+			if(scalarType == null || scalarType == Type.TAG_String){
+				throw error("List of numbers holds a " + (scalarType == null ? "null" : scalarType.name()));
+			}
+			if(scalarType.ordinal() > widest.ordinal()){
+				widest = scalarType;
+			}
+			boolean floating = scalarType == Type.TAG_Float || scalarType == Type.TAG_Double;
+			if(floating && doubles == null){
+				doubles = new double[longs.length];
+				for(int i = 0; i < n; i++){
+					doubles[i] = longs[i];
+				}
+			}
+			if(n == longs.length){
+				longs = Arrays.copyOf(longs, 2 * n);
+				if(doubles != null){
+					doubles = Arrays.copyOf(doubles, 2 * n);
+				}
+			}
+			if(doubles != null){
+				doubles[n] = floating ? doubleValue : longValue;
+			}
+			longs[n++] = longValue;
+			if(!nextElement(']')){
+				break;
+			}
+			readScalar();
+		}
+		Object array;
+		switch(widest){
+			case TAG_Byte:
+				byte[] b = new byte[n];
+				for(int i = 0; i < n; i++){
+					b[i] = (byte) longs[i];
+				}
+				array = b;
+				break;
+			case TAG_Short:
+				short[] s = new short[n];
+				for(int i = 0; i < n; i++){
+					s[i] = (short) longs[i];
+				}
+				array = s;
+				break;
+			case TAG_Int:
+				int[] ia = new int[n];
+				for(int i = 0; i < n; i++){
+					ia[i] = (int) longs[i];
+				}
+				array = ia;
+				break;
+			case TAG_Long:
+				array = Arrays.copyOf(longs, n);
+				break;
+			case TAG_Float:
+				float[] f = new float[n];
+				for(int i = 0; i < n; i++){
+					f[i] = (float) doubles[i];
+				}
+				array = f;
+				break;
+			default:
+				array = Arrays.copyOf(doubles, n);
+				break;
+		}
+		return new NBTag(Type.TAG_List, name, new PrimitiveList(widest, array));
+	}
+
+	/**
+	 * Parses the elements of <code>[B;...]</code>, <code>[I;...]</code> or
+	 * <code>[L;...]</code> after the semicolon.
+	 */
+	private NBTag parseArray(String name, Type elementType) throws IOException {
+		long[] values = new long[16];
+		int n = 0;
+		skipSpace();
+		if(peek() == ']'){
+			read();
+		} else {
+			do{
+				readScalar();
+				if(scalarType == null || scalarType.ordinal() > Type.TAG_Long.ordinal()){
+					throw error("Array of " + elementType.name() + " holds a " + (scalarType == null ? "null" : scalarType.name()));
+				}
+				if((elementType == Type.TAG_Byte && longValue != (byte) longValue) || (elementType == Type.TAG_Int && longValue != (int) longValue)){
+					throw error("Integer out of range for " + elementType.name() + ": " + longValue);
+				}
+				if(n == values.length){
+					values = Arrays.copyOf(values, 2 * n);
+				}
+				values[n++] = longValue;
+			} while(nextElement(']'));
+		}
+		switch(elementType){
+			case TAG_Byte:
+				byte[] b = new byte[n];
+				for(int i = 0; i < n; i++){
+					b[i] = (byte) values[i];
+				}
+				return new NBTag(Type.TAG_Byte_Array, name, b);
+			case TAG_Int:
+				int[] ia = new int[n];
+				for(int i = 0; i < n; i++){
+					ia[i] = (int) values[i];
+				}
+				return new NBTag(Type.TAG_Int_Array, name, ia);
+			default:
+				return new NBTag(Type.TAG_Long_Array, name, Arrays.copyOf(values, n));
+		}
+	}
+
+	/**
+	 * Reads a string, number, boolean or null into the scalar fields.
+	 */
+	private void readScalar() throws IOException {
+		skipSpace();
+		int c = peek();
+		if(c == '"' || c == '\''){
+			scalarType = Type.TAG_String;
+			stringValue = readQuoted();
+			return;
+		}
+		String s = readBare();
+		if(s.isEmpty()){
+			throw unexpected("a value");
+		}
+		classify(s);
+	}
+
+	/**
+	 * Finds the type and value of an unquoted word.
+	 */
+	private void classify(String s) throws IOException {
+		switch(s){
+			case "true":
+				scalarType = Type.TAG_Byte;
+				longValue = 1;
+				return;
+			case "false":
+				scalarType = Type.TAG_Byte;
+				longValue = 0;
+				return;
+			case "null":
+				scalarType = null;
+				return;
+			default:
+				break;
+		}
+		int len = s.length();
+		Type suffix;
+		switch(s.charAt(len - 1)){
+			case 'b':
+			case 'B':
+				suffix = Type.TAG_Byte;
+				break;
+			case 's':
+			case 'S':
+				suffix = Type.TAG_Short;
+				break;
+			case 'l':
+			case 'L':
+				suffix = Type.TAG_Long;
+				break;
+			case 'f':
+			case 'F':
+				suffix = Type.TAG_Float;
+				break;
+			case 'd':
+			case 'D':
+				suffix = Type.TAG_Double;
+				break;
+			default:
+				suffix = null;
+				break;
+		}
+		if(suffix != null && len > 1){
+			String body = s.substring(0, len - 1);
+			if(suffix == Type.TAG_Float || suffix == Type.TAG_Double){
+				if(isDecimal(body) || isSpecial(body)){
+					scalarType = suffix;
+					doubleValue = Double.parseDouble(body);
+					longValue = (long) doubleValue;
+					return;
+				}
+			} else if(isInteger(body)){
+				scalarType = suffix;
+				longValue = parseInteger(body, suffix);
+				return;
+			}
+		}
+		if(isInteger(s)){
+			try{
+				longValue = Long.parseLong(s);
+			} catch(NumberFormatException ex){
+				throw error("Integer out of range: " + s);
+			}
+			scalarType = longValue == (int) longValue ? Type.TAG_Int : Type.TAG_Long;
+			return;
+		}
+		if(isDecimal(s)){
+			scalarType = Type.TAG_Double;
+			doubleValue = Double.parseDouble(s);
+			return;
+		}
+		scalarType = Type.TAG_String;
+		stringValue = s;
+	}
+
+	private long parseInteger(String s, Type t) throws IOException {
+		long v;
+		try{
+			v = Long.parseLong(s);
+		} catch(NumberFormatException ex){
+			throw error("Integer out of range: " + s);
+		}
+		if((t == Type.TAG_Byte && v != (byte) v) || (t == Type.TAG_Short && v != (short) v)){
+			throw error("Integer out of range for " + t.name() + ": " + s);
+		}
+		return v;
+	}
+
+	private static boolean isInteger(String s) {
+		int i = s.startsWith("-") || s.startsWith("+") ? 1 : 0;
+		if(i == s.length()){
+			return false;
+		}
+		for(; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c < '0' || c > '9'){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDecimal(String s) {
+		int i = s.startsWith("-") || s.startsWith("+") ? 1 : 0;
+		int digits = 0;
+		while(i < s.length() && Character.isDigit(s.charAt(i))){
+			i++;
+			digits++;
+		}
+		if(i < s.length() && s.charAt(i) == '.'){
+			i++;
+			while(i < s.length() && Character.isDigit(s.charAt(i))){
+				i++;
+				digits++;
+			}
+		}
+		if(digits == 0){
+			return false;
+		}
+		if(i < s.length() && (s.charAt(i) == 'e' || s.charAt(i) == 'E')){
+			i++;
+			if(i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+')){
+				i++;
+			}
+			int exponent = i;
+			while(i < s.length() && Character.isDigit(s.charAt(i))){
+				i++;
+			}
+			if(i == exponent){
+				return false;
+			}
+		}
+		return i == s.length();
+	}
+
+	private static boolean isSpecial(String s) {
+		return s.equals("NaN") || s.equals("Infinity") || s.equals("-Infinity") || s.equals("+Infinity");
+	}
+
+	private static boolean allSpecial(List<String> strings) {
+		for(String s : strings){
+			if(!isSpecial(s)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads an unquoted word, which may be empty.
+	 */
+	private String readBare() throws IOException {
+		text.setLength(0);
+		int c;
+		while((c = peek()) >= 0 && NBTTextWriter.isBareChar((char) c)){
+			text.append((char) c);
+			pos++;
+		}
+		return text.toString();
+	}
+
+	private String readQuoted() throws IOException {
+		int quote = read();
+		text.setLength(0);
+		while(true){
+			int c = read();
+			if(c < 0){
+				throw error("Unterminated string");
+			}
+			if(c == quote){
+				return text.toString();
+			}
+			if(c != '\\'){
+				text.append((char) c);
+				continue;
+			}
+			c = read();
+			switch(c){
+				case '"':
+				case '\'':
+				case '\\':
+				case '/':
+					text.append((char) c);
+					break;
+				case 'n':
+					text.append('\n');
+					break;
+				case 'r':
+					text.append('\r');
+					break;
+				case 't':
+					text.append('\t');
+					break;
+				case 'b':
+					text.append('\b');
+					break;
+				case 'f':
+					text.append('\f');
+					break;
+				case 'u':
+					int v = 0;
+					for(int i = 0; i < 4; i++){
+						int d = Character.digit(read(), 16);
+						if(d < 0){
+							throw error("Invalid \\u escape");
+						}
+						v = v * 16 + d;
+					}
+					text.append((char) v);
+					break;
+				default:
+					throw error("Invalid escape \\" + (c < 0 ? "" : String.valueOf((char) c)));
+			}
+		}
+	}
+
+	private void skipSpace() throws IOException {
+		int c;
+		while((c = peek()) == ' ' || c == '\t' || c == '\n' || c == '\r'){
+			read();
+		}
+	}
+
+	private int peek() throws IOException {
+		return peek(0);
+	}
+
+	/**
+	 * Returns the character <code>ahead</code> positions after the next one
+	 * without consuming anything, or -1 at the end of the input.
+	 */
+	private int peek(int ahead) throws IOException {
+		while(pos + ahead >= limit){
+			if(pos > 0){
+				System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if(n < 0){
+				return -1;
+			}
+			limit += n;
+		}
+		return buffer[pos + ahead];
+	}
+
+	private int read() throws IOException {
+		int c = peek();
+		if(c >= 0){
+			pos++;
+			if(c == '\n'){
+				line++;
+			}
+		}
+		return c;
+	}
+
+	private IOException unexpected(String expected) throws IOException {
+		int c = peek();
+		return error("Expected " + expected + " but found " + (c < 0 ? "the end of the input" : "'" + (char) c + "'"));
+	}
+
+	private IOException error(String message) {
+		return new IOException(message + " at line " + line);
+	}
+
+	/**
+	 * Closes the underlying reader.
+	 * @throws IOException if an IOException occurred
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,663 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTReader.Event;
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes NBT as text, in SNBT (the "stringified NBT" of Minecraft commands)
+ * or JSON, straight to a Writer. Unlike {@link NBTag#toString()}, nothing
+ * is built up in memory, so even huge documents can be dumped:
+ * <pre>
+ * NBTTextWriter w = new NBTTextWriter(new BufferedWriter(out), NBTTextWriter.Format.SNBT);
+ * w.setIndent("  ");
+ * w.setMaxArrayLength(16);
+ * w.copy(new NBTReader(new GZIPInputStream(in)));
+ * w.flush();
+ * </pre>
+ * {@link #copy(NBTReader)} converts a document as it is read, holding no
+ * more than one array or list of numbers at a time, and
+ * {@link #writeTag(NBTag)} converts a tree. The methods mirror those of
+ * {@link NBTWriter}, so text can also be produced tag by tag.
+ * <p>
+ * The name of the root tag is not written, as is usual for SNBT. SNBT
+ * output is read back by {@link NBTTextReader} to the same bytes, with one
+ * exception: an empty list is written as <code>[]</code> in both formats,
+ * without its element type, and is read back as a list of TAG_End. JSON
+ * output also loses the exact number types, which are inferred when it is
+ * read back. JSON has no numbers for NaN and infinity, so they are written
+ * as the strings <code>"NaN"</code>, <code>"Infinity"</code> and
+ * <code>"-Infinity"</code>. They are read back as numbers inside a list with
+ * other numbers, and as strings everywhere else. Output with truncated arrays is meant for reading and cannot be
+ * parsed back. Instances are not thread-safe.
+ */
+public class NBTTextWriter implements Closeable, Flushable {
+
+	/**
+	 * The text formats.
+	 */
+	public enum Format {
+		/** SNBT: unquoted names where possible, type suffixes on numbers
+		 * (<code>1b</code>, <code>2s</code>, <code>3L</code>,
+		 * <code>4.0f</code>, <code>5.0d</code>) and typed arrays
+		 * (<code>[I;1,2]</code>). */
+		SNBT,
+		/** JSON: compounds become objects, lists and arrays become arrays. */
+		JSON;
+	}
+
+	private final Writer out;
+	private final Format format;
+	private String indent = null;
+	private int maxArrayLength = Integer.MAX_VALUE;
+
+	// container stack
+	private boolean[] frameList = new boolean[16];
+	private boolean[] frameInline = new boolean[16];
+	private int[] frameCount = new int[16];
+	private int[] frameLimit = new int[16];
+	private int depth = 0;
+
+	/**
+	 * Creates a writer. Writing goes through many small calls, so
+	 * <code>out</code> should be buffered.
+	 * @param out writer to write the text to
+	 * @param format the text format
+	 */
+	public NBTTextWriter(Writer out, Format format) {
+		if(out == null || format == null){
+			throw new NullPointerException();
+		}
+		this.out = out;
+		this.format = format;
+	}
+
+	/**
+	 * Sets the indentation of pretty-printed output. Lists of numbers and
+	 * strings and arrays are kept on one line.
+	 * @param indent the text to indent each level with, like two spaces, or
+	 * null for compact output on a single line (the default)
+	 */
+	public void setIndent(String indent) {
+		this.indent = indent;
+	}
+
+	/**
+	 * Limits the number of elements written of each array and list of
+	 * numbers. The rest is replaced by a note of how many elements were left
+	 * out.
+	 * @param maxArrayLength most elements to write, or
+	 * <code>Integer.MAX_VALUE</code> to write all (the default)
+	 */
+	public void setMaxArrayLength(int maxArrayLength) {
+		if(maxArrayLength < 0){
+			throw new IllegalArgumentException("Negative array length: " + maxArrayLength);
+		}
+		this.maxArrayLength = maxArrayLength;
+	}
+
+	/**
+	 * Converts the rest of a document read by <code>r</code>. If called
+	 * before the first event, this converts the root tag; if called right
+	 * after a {@link Event#NAME} event, this converts the tag with that name.
+	 * @param r reader to convert from
+	 * @throws IOException if the input is not valid NBT, or if an IOException
+	 * occurred while reading or writing
+	 */
+	public void copy(NBTReader r) throws IOException {
+		if(r.getEvent() != Event.NAME){
+			Event e = r.next();
+			if(e != Event.NAME){
+				throw new IllegalStateException("Expected a named tag but found " + e.name());
+			}
+		}
+		copyTag(r, r.getName());
+	}
+
+	/**
+	 * Converts the tag after the current NAME event, or the current list
+	 * element after a call to next().
+	 */
+	private void copyTag(NBTReader r, String name) throws IOException {
+		Event e = r.getEvent() == Event.NAME ? r.next() : r.getEvent();
+		if(e == Event.START_COMPOUND){
+			beginCompound(name);
+			while(r.next() == Event.NAME){
+				copyTag(r, r.getName());
+			}
+			end();
+			return;
+		}
+		if(e == Event.START_LIST){
+			Type elementType = r.getListType();
+			int n = r.getListLength();
+			if(n > 0 && PrimitiveList.isPrimitive(elementType)){
+				writeNumbers(name, elementType, r.readListArray(), n);
+				return;
+			}
+			beginList(name, elementType, n);
+			for(int i = 0; i < n; i++){
+				r.next();
+				copyTag(r, null);
+			}
+			r.next();
+			end();
+			return;
+		}
+		switch(r.getType()){
+			case TAG_Byte:
+				writeByte(name, r.getByte());
+				break;
+			case TAG_Short:
+				writeShort(name, r.getShort());
+				break;
+			case TAG_Int:
+				writeInt(name, r.getInt());
+				break;
+			case TAG_Long:
+				writeLong(name, r.getLong());
+				break;
+			case TAG_Float:
+				writeFloat(name, r.getFloat());
+				break;
+			case TAG_Double:
+				writeDouble(name, r.getDouble());
+				break;
+			case TAG_String:
+				writeString(name, r.getString());
+				break;
+			case TAG_Byte_Array:
+				copyByteArray(r, name);
+				break;
+			case TAG_Int_Array:
+				writeIntArray(name, r.getIntArray());
+				break;
+			case TAG_Long_Array:
+				writeLongArray(name, r.getLongArray());
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Converts a byte array in chunks, reading no more of it than is
+	 * written.
+	 */
+	private void copyByteArray(NBTReader r, String name) throws IOException {
+		int n = r.getArrayLength();
+		beginArray(name, 'B');
+		int limit = Math.min(n, maxArrayLength);
+		byte[] chunk = new byte[Math.min(limit, 4096)];
+		int written = 0;
+		while(written < limit){
+			int k = r.readBytes(chunk, 0, Math.min(chunk.length, limit - written));
+			for(int i = 0; i < k; i++){
+				arraySeparator(written + i);
+				writeNumber(chunk[i], Type.TAG_Byte);
+			}
+			written += k;
+		}
+		endArray(written, n);
+	}
+
+	/**
+	 * Writes an existing tag and all of its nested tags. Inside a compound
+	 * the name of the tag is used.
+	 * @param tag the tag to write
+	 * @throws IOException if an IOException occurred
+	 */
+	@SuppressWarnings("unchecked")
+	public void writeTag(NBTag tag) throws IOException {
+		String name = tag.getName();
+		Object value = tag.getValue();
+		switch(tag.getType()){
+			case TAG_End:
+				break;
+			case TAG_Byte:
+				writeByte(name, (Byte) value);
+				break;
+			case TAG_Short:
+				writeShort(name, (Short) value);
+				break;
+			case TAG_Int:
+				writeInt(name, (Integer) value);
+				break;
+			case TAG_Long:
+				writeLong(name, (Long) value);
+				break;
+			case TAG_Float:
+				writeFloat(name, (Float) value);
+				break;
+			case TAG_Double:
+				writeDouble(name, (Double) value);
+				break;
+			case TAG_String:
+				writeString(name, (String) value);
+				break;
+			case TAG_Byte_Array:
+				if(value instanceof ByteBuffer){
+					ByteBuffer bb = ((ByteBuffer) value).duplicate();
+					int length = bb.remaining();
+					byte[] b = new byte[Math.min(length, maxArrayLength)];
+					bb.get(b);
+					writeArray(name, 'B', b, b.length, length);
+				} else {
+					writeByteArray(name, (byte[]) value);
+				}
+				break;
+			case TAG_Int_Array:
+				writeIntArray(name, (int[]) value);
+				break;
+			case TAG_Long_Array:
+				writeLongArray(name, (long[]) value);
+				break;
+			case TAG_List:
+				if(value instanceof PrimitiveList){
+					PrimitiveList p = (PrimitiveList) value;
+					writeNumbers(name, p.getElementType(), p.primitiveArray(), p.size());
+				} else {
+					List<NBTag> list = (List<NBTag>) value;
+					beginList(name, tag.getListType(), list.size());
+					for(NBTag e : list){
+						writeTag(e);
+					}
+					end();
+				}
+				break;
+			case TAG_Compound:
+				beginCompound(name);
+				for(NBTag e : ((Map<String,NBTag>) value).values()){
+					writeTag(e);
+				}
+				end();
+				break;
+		}
+	}
+
+	/**
+	 * Starts a compound. Every tag written until the matching
+	 * {@link #end()} becomes a member of it.
+	 * @param name name of the tag (ignored at the root and inside a list)
+	 * @throws IOException if an IOException occurred
+	 */
+	public void beginCompound(String name) throws IOException {
+		if(!beginValue(name)){
+			throw new IllegalStateException("Only numbers can be written to a list of numbers");
+		}
+		out.write('{');
+		push(false, false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Starts a list. Lists of numbers are truncated like arrays.
+	 * @param name name of the tag (ignored at the root and inside a list)
+	 * @param elementType type of the list elements
+	 * @param count number of list elements, which is not checked
+	 * @throws IOException if an IOException occurred
+	 */
+	public void beginList(String name, Type elementType, int count) throws IOException {
+		if(!beginValue(name)){
+			throw new IllegalStateException("Only numbers can be written to a list of numbers");
+		}
+		out.write('[');
+		boolean numbers = PrimitiveList.isPrimitive(elementType);
+		push(true, numbers || elementType == Type.TAG_String || count == 0, numbers ? maxArrayLength : Integer.MAX_VALUE);
+	}
+
+	private void push(boolean list, boolean inline, int limit) {
+		if(depth == frameList.length){
+			frameList = Arrays.copyOf(frameList, depth * 2);
+			frameInline = Arrays.copyOf(frameInline, depth * 2);
+			frameCount = Arrays.copyOf(frameCount, depth * 2);
+			frameLimit = Arrays.copyOf(frameLimit, depth * 2);
+		}
+		frameList[depth] = list;
+		frameInline[depth] = inline;
+		frameCount[depth] = 0;
+		frameLimit[depth] = limit;
+		depth++;
+	}
+
+	/**
+	 * Ends the innermost list or compound.
+	 * @throws IOException if an IOException occurred
+	 */
+	public void end() throws IOException {
+		if(depth == 0){
+			throw new IllegalStateException("No list or compound tag to end");
+		}
+		int top = --depth;
+		int count = frameCount[top];
+		if(count > frameLimit[top]){
+			writeOmitted(count - frameLimit[top], frameLimit[top] > 0);
+		} else if(count > 0 && indent != null && !frameInline[top]){
+			newLine(depth);
+		}
+		out.write(frameList[top] ? ']' : '}');
+	}
+
+	/**
+	 * Writes the separator, line break and name before a value.
+	 * @return false if the value is left out because its list is truncated
+	 */
+	private boolean beginValue(String name) throws IOException {
+		if(depth == 0){
+			return true;
+		}
+		int top = depth - 1;
+		int i = frameCount[top]++;
+		if(i >= frameLimit[top]){
+			return false;
+		}
+		if(i > 0){
+			out.write(',');
+		}
+		if(indent != null){
+			if(!frameInline[top]){
+				newLine(depth);
+			} else if(i > 0){
+				out.write(' ');
+			}
+		}
+		if(!frameList[top]){
+			writeName(name == null ? "" : name);
+			out.write(':');
+			if(indent != null){
+				out.write(' ');
+			}
+		}
+		return true;
+	}
+
+	private void newLine(int level) throws IOException {
+		out.write('\n');
+		for(int i = 0; i < level; i++){
+			out.write(indent);
+		}
+	}
+
+	private void writeName(String name) throws IOException {
+		if(format == Format.SNBT && isBareWord(name)){
+			out.write(name);
+		} else {
+			writeQuoted(name);
+		}
+	}
+
+	/**
+	 * Tells whether an SNBT name or string can be written without quotes.
+	 */
+	static boolean isBareWord(String s) {
+		if(s.isEmpty()){
+			return false;
+		}
+		for(int i = 0; i < s.length(); i++){
+			if(!isBareChar(s.charAt(i))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean isBareChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '_' || c == '-' || c == '.' || c == '+';
+	}
+
+	private void writeQuoted(String s) throws IOException {
+		out.write('"');
+		int start = 0;
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			String escape;
+			switch(c){
+				case '"':
+					escape = "\\\"";
+					break;
+				case '\\':
+					escape = "\\\\";
+					break;
+				case '\n':
+					escape = "\\n";
+					break;
+				case '\r':
+					escape = "\\r";
+					break;
+				case '\t':
+					escape = "\\t";
+					break;
+				case '\b':
+					escape = "\\b";
+					break;
+				case '\f':
+					escape = "\\f";
+					break;
+				default:
+					if(c >= 0x20){
+						continue;
+					}
+					escape = String.format("\\u%04x", (int) c);
+					break;
+			}
+			out.write(s, start, i - start);
+			out.write(escape);
+			start = i + 1;
+		}
+		out.write(s, start, s.length() - start);
+		out.write('"');
+	}
+
+	private void writeNumber(long v, Type t) throws IOException {
+		out.write(Long.toString(v));
+		if(format == Format.SNBT){
+			switch(t){
+				case TAG_Byte:
+					out.write('b');
+					break;
+				case TAG_Short:
+					out.write('s');
+					break;
+				case TAG_Long:
+					out.write('L');
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	private void writeNumber(double v, Type t) throws IOException {
+		String s = t == Type.TAG_Float ? Float.toString((float) v) : Double.toString(v);
+		if(format == Format.SNBT){
+			out.write(s);
+			out.write(t == Type.TAG_Float ? 'f' : 'd');
+		} else if(Double.isNaN(v) || Double.isInfinite(v)){
+			// not representable as a JSON number
+			writeQuoted(s);
+		} else {
+			out.write(s);
+		}
+	}
+
+	public void writeByte(String name, byte value) throws IOException {
+		if(beginValue(name)){
+			writeNumber(value, Type.TAG_Byte);
+		}
+	}
+
+	public void writeShort(String name, short value) throws IOException {
+		if(beginValue(name)){
+			writeNumber(value, Type.TAG_Short);
+		}
+	}
+
+	public void writeInt(String name, int value) throws IOException {
+		if(beginValue(name)){
+			writeNumber(value, Type.TAG_Int);
+		}
+	}
+
+	public void writeLong(String name, long value) throws IOException {
+		if(beginValue(name)){
+			writeNumber(value, Type.TAG_Long);
+		}
+	}
+
+	public void writeFloat(String name, float value) throws IOException {
+		if(beginValue(name)){
+			writeNumber(value, Type.TAG_Float);
+		}
+	}
+
+	public void writeDouble(String name, double value) throws IOException {
+		if(beginValue(name)){
+			writeNumber(value, Type.TAG_Double);
+		}
+	}
+
+	public void writeString(String name, String value) throws IOException {
+		if(!beginValue(name)){
+			throw new IllegalStateException("Only numbers can be written to a list of numbers");
+		}
+		writeQuoted(value);
+	}
+
+	public void writeByteArray(String name, byte[] value) throws IOException {
+		writeArray(name, 'B', value, value.length, value.length);
+	}
+
+	public void writeIntArray(String name, int[] value) throws IOException {
+		writeArray(name, 'I', value, value.length, value.length);
+	}
+
+	public void writeLongArray(String name, long[] value) throws IOException {
+		writeArray(name, 'L', value, value.length, value.length);
+	}
+
+	/**
+	 * Writes the first <code>available</code> elements of an array tag that
+	 * has <code>length</code> elements.
+	 */
+	private void writeArray(String name, char kind, Object array, int available, int length) throws IOException {
+		beginArray(name, kind);
+		int n = Math.min(available, maxArrayLength);
+		for(int i = 0; i < n; i++){
+			arraySeparator(i);
+			switch(kind){
+				case 'B':
+					writeNumber(((byte[]) array)[i], Type.TAG_Byte);
+					break;
+				case 'I':
+					writeNumber(((int[]) array)[i], Type.TAG_Int);
+					break;
+				default:
+					writeNumber(((long[]) array)[i], Type.TAG_Long);
+					break;
+			}
+		}
+		endArray(n, length);
+	}
+
+	/**
+	 * Writes a list of numbers from a primitive array.
+	 */
+	private void writeNumbers(String name, Type elementType, Object array, int length) throws IOException {
+		if(!beginValue(name)){
+			return;
+		}
+		out.write('[');
+		int n = Math.min(length, maxArrayLength);
+		for(int i = 0; i < n; i++){
+			arraySeparator(i);
+			switch(elementType){
+				case TAG_Byte:
+					writeNumber(((byte[]) array)[i], elementType);
+					break;
+				case TAG_Short:
+					writeNumber(((short[]) array)[i], elementType);
+					break;
+				case TAG_Int:
+					writeNumber(((int[]) array)[i], elementType);
+					break;
+				case TAG_Long:
+					writeNumber(((long[]) array)[i], elementType);
+					break;
+				case TAG_Float:
+					writeNumber(((float[]) array)[i], elementType);
+					break;
+				default:
+					writeNumber(((double[]) array)[i], elementType);
+					break;
+			}
+		}
+		endArray(n, length);
+	}
+
+	private void beginArray(String name, char kind) throws IOException {
+		if(!beginValue(name)){
+			throw new IllegalStateException("Only numbers can be written to a list of numbers");
+		}
+		out.write('[');
+		if(format == Format.SNBT){
+			out.write(kind);
+			out.write(';');
+		}
+	}
+
+	private void arraySeparator(int i) throws IOException {
+		if(i > 0){
+			out.write(',');
+			if(indent != null){
+				out.write(' ');
+			}
+		}
+	}
+
+	private void endArray(int written, int length) throws IOException {
+		if(written < length){
+			writeOmitted(length - written, written > 0);
+		}
+		out.write(']');
+	}
+
+	private void writeOmitted(int n, boolean separator) throws IOException {
+		if(separator){
+			arraySeparator(1);
+		}
+		String note = "... " + n + " more";
+		if(format == Format.JSON){
+			writeQuoted(note);
+		} else {
+			out.write(note);
+		}
+	}
+
+	/**
+	 * Returns the number of lists and compounds that are currently open.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Closes the underlying writer.
+	 * @throws IOException if an IOException occurred
+	 */
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,303 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Push writer for the NBT wire format. Tags are written straight to the
+ * stream as the methods are called, so documents of any size can be
+ * produced without first building a tree of {@link NBTag} objects. Nesting
+ * and list element types are checked as the document is written. Example:
+ * <pre>
+ * NBTWriter w = new NBTWriter(out);
+ * w.beginCompound("Level");
+ *     w.writeInt("xPos", 3);
+ *     w.beginList("Heights", NBTag.Type.TAG_Int, 2);
+ *         w.writeInt(null, 64);
+ *         w.writeInt(null, 65);
+ *     w.end();
+ * w.end();
+ * w.flush();
+ * </pre>
+ * Inside a TAG_List the names passed to the write methods are ignored,
+ * because list elements are unnamed. Instances are not thread-safe.
+ */
+public class NBTWriter implements Closeable, Flushable {
+
+	private final DataOutputStream out;
+
+	// container stack
+	private byte[] frameType = new byte[16];
+	private byte[] frameListType = new byte[16];
+	private int[] frameRemaining = new int[16];
+	private int depth = 0;
+
+	private boolean rootWritten = false;
+
+	/**
+	 * Creates a writer on top of the given stream. The output is not
+	 * compressed, wrap the stream in a GZIPOutputStream first if necessary.
+	 * @param os stream to write to
+	 */
+	public NBTWriter(OutputStream os) {
+		if(os == null){
+			throw new NullPointerException("Output cannot be null");
+		}
+		this.out = os instanceof DataOutputStream ? (DataOutputStream) os : new DataOutputStream(os);
+	}
+
+	/**
+	 * Starts a TAG_Compound. Every tag written until the matching
+	 * {@link #end()} becomes a member of this compound.
+	 * @param name name of the tag (ignored inside a list)
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void beginCompound(String name) throws IOException {
+		beginTag(Type.TAG_Compound, name);
+		push(Type.TAG_Compound, Type.TAG_End, 0);
+	}
+
+	/**
+	 * Starts a TAG_List. Exactly <code>count</code> tags of type
+	 * <code>elementType</code> must be written before the matching
+	 * {@link #end()}.
+	 * @param name name of the tag (ignored inside a list)
+	 * @param elementType type of the list elements
+	 * @param count number of list elements
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void beginList(String name, Type elementType, int count) throws IOException {
+		if(count < 0){
+			throw new IllegalArgumentException("Negative list length: " + count);
+		}
+		beginTag(Type.TAG_List, name);
+		out.writeByte(elementType.ordinal());
+		out.writeInt(count);
+		push(Type.TAG_List, elementType, count);
+	}
+
+	/**
+	 * Ends the innermost list or compound tag.
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void end() throws IOException {
+		if(depth == 0){
+			throw new IllegalStateException("No list or compound tag to end");
+		}
+		int top = depth - 1;
+		if(frameType[top] == Type.TAG_Compound.ordinal()){
+			out.writeByte(0);// TAG_End
+		} else if(frameRemaining[top] != 0){
+			throw new IllegalStateException("List is missing " + frameRemaining[top] + " elements");
+		}
+		depth--;
+		if(depth == 0){
+			rootWritten = true;
+		}
+	}
+
+	public void writeByte(String name, byte value) throws IOException {
+		beginTag(Type.TAG_Byte, name);
+		out.writeByte(value);
+		endValue();
+	}
+
+	public void writeShort(String name, short value) throws IOException {
+		beginTag(Type.TAG_Short, name);
+		out.writeShort(value);
+		endValue();
+	}
+
+	public void writeInt(String name, int value) throws IOException {
+		beginTag(Type.TAG_Int, name);
+		out.writeInt(value);
+		endValue();
+	}
+
+	public void writeLong(String name, long value) throws IOException {
+		beginTag(Type.TAG_Long, name);
+		out.writeLong(value);
+		endValue();
+	}
+
+	public void writeFloat(String name, float value) throws IOException {
+		beginTag(Type.TAG_Float, name);
+		out.writeFloat(value);
+		endValue();
+	}
+
+	public void writeDouble(String name, double value) throws IOException {
+		beginTag(Type.TAG_Double, name);
+		out.writeDouble(value);
+		endValue();
+	}
+
+	public void writeString(String name, String value) throws IOException {
+		beginTag(Type.TAG_String, name);
+		out.writeUTF(value);
+		endValue();
+	}
+
+	public void writeByteArray(String name, byte[] value) throws IOException {
+		writeByteArray(name, value, 0, value.length);
+	}
+
+	/**
+	 * Writes a TAG_Byte_Array holding a part of the given array.
+	 * @param name name of the tag (ignored inside a list)
+	 * @param value source array
+	 * @param off offset of the first byte to write
+	 * @param len number of bytes to write
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeByteArray(String name, byte[] value, int off, int len) throws IOException {
+		checkRange(value.length, off, len);
+		beginTag(Type.TAG_Byte_Array, name);
+		out.writeInt(len);
+		out.write(value, off, len);
+		endValue();
+	}
+
+	public void writeIntArray(String name, int[] value) throws IOException {
+		writeIntArray(name, value, 0, value.length);
+	}
+
+	/**
+	 * Writes a TAG_Int_Array holding a part of the given array. The values
+	 * are encoded in bulk.
+	 * @param name name of the tag (ignored inside a list)
+	 * @param value source array
+	 * @param off offset of the first element to write
+	 * @param len number of elements to write
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeIntArray(String name, int[] value, int off, int len) throws IOException {
+		checkRange(value.length, off, len);
+		beginTag(Type.TAG_Int_Array, name);
+		out.writeInt(len);
+		NBTag.writeNumbers(out, value, Type.TAG_Int, off, len);
+		endValue();
+	}
+
+	public void writeLongArray(String name, long[] value) throws IOException {
+		writeLongArray(name, value, 0, value.length);
+	}
+
+	/**
+	 * Writes a TAG_Long_Array holding a part of the given array. The values
+	 * are encoded in bulk.
+	 * @param name name of the tag (ignored inside a list)
+	 * @param value source array
+	 * @param off offset of the first element to write
+	 * @param len number of elements to write
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeLongArray(String name, long[] value, int off, int len) throws IOException {
+		checkRange(value.length, off, len);
+		beginTag(Type.TAG_Long_Array, name);
+		out.writeInt(len);
+		NBTag.writeNumbers(out, value, Type.TAG_Long, off, len);
+		endValue();
+	}
+
+	/**
+	 * Writes an existing tag and all of its nested tags. Inside a compound
+	 * the name of the tag is used, inside a list only its payload is written.
+	 * @param tag the tag to write
+	 * @throws IOException if an IOException occurred.
+	 */
+	public void writeTag(NBTag tag) throws IOException {
+		if(tag.getType() == Type.TAG_End){
+			throw new IllegalArgumentException("Use end() to close a compound tag");
+		}
+		beginTag(tag.getType(), tag.getName());
+		tag.writePayload(out);
+		endValue();
+	}
+
+	/**
+	 * Returns the number of lists and compounds that are currently open.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Closes the underlying stream. All lists and compounds must have been
+	 * ended.
+	 * @throws IOException if an IOException occurred.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(depth != 0){
+			throw new IllegalStateException(depth + " list or compound tags were not ended");
+		}
+		out.close();
+	}
+
+	/**
+	 * Checks that a tag of the given type may be written here and writes its
+	 * header (type and name) if it is not a list element.
+	 */
+	private void beginTag(Type t, String name) throws IOException {
+		if(depth == 0){
+			if(rootWritten){
+				throw new IllegalStateException("The root tag has already been written");
+			}
+			writeHeader(t, name);
+			return;
+		}
+		int top = depth - 1;
+		if(frameType[top] == Type.TAG_Compound.ordinal()){
+			writeHeader(t, name);
+		} else {
+			if(frameListType[top] != t.ordinal()){
+				throw new IllegalArgumentException("Tag type " + t.name() + " cannot be added to list of " + Type.values()[frameListType[top]].name() + " tags.");
+			}
+			if(frameRemaining[top] == 0){
+				throw new IllegalStateException("List already holds all of its elements");
+			}
+			frameRemaining[top]--;
+		}
+	}
+
+	private static void checkRange(int length, int off, int len) {
+		if(off < 0 || len < 0 || off > length - len){
+			throw new IndexOutOfBoundsException("Range [" + off + ", " + (off + len) + ") out of bounds for length " + length);
+		}
+	}
+
+	private void writeHeader(Type t, String name) throws IOException {
+		out.writeByte(t.ordinal());
+		out.writeUTF(name == null ? "" : name);
+	}
+
+	private void endValue() {
+		if(depth == 0){
+			rootWritten = true;
+		}
+	}
+
+	private void push(Type container, Type elementType, int remaining) {
+		if(depth == frameType.length){
+			int n = depth * 2;
+			frameType = Arrays.copyOf(frameType, n);
+			frameListType = Arrays.copyOf(frameListType, n);
+			frameRemaining = Arrays.copyOf(frameRemaining, n);
+		}
+		frameType[depth] = (byte) container.ordinal();
+		frameListType[depth] = (byte) elementType.ordinal();
+		frameRemaining[depth] = remaining;
+		depth++;
+	}
+}
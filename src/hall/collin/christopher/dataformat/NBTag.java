@@ -6,15 +6,23 @@ package hall.collin.christopher.dataformat;
  */
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -30,9 +38,24 @@ public class NBTag {
 	
 	
     private final Type type;
-    private Type listType = null;
+    // volatile, so that values set under the lock of an NBTConcurrentTree 
+    // are seen by threads that read them without locking
+    private volatile Type listType;
     private final String name;
-    private Object value;
+    private volatile Object value;
+    /** container this tag was last sized or added in, for cache invalidation */
+    private NBTag parent = null;
+    /** payload size in bytes, or -1 if not known */
+    private long cachedSize = -1;
+    /** 
+     * Where the payload was last encoded by an {@link NBTIncrementalWriter}: 
+     * the container it was encoded in (or the snapshot, for the root) and the 
+     * offset from the start of the container payload. Set by 
+     * NBTBufferEncoder; <code>dirty</code> is set again on every change. 
+     */
+    Object savedIn = null;
+    int savedAt;
+    boolean dirty = true;
 
 	
 
@@ -65,7 +88,13 @@ public class NBTag {
         TAG_List,
 		/** Compound tag holds multiple tags of any type, referenced by their 
 		 * tag name, functions as a Map&lt;String,NBTag&gt;. */
-        TAG_Compound;
+        TAG_Compound,
+		/** Integer array tag signifying that this tag holds an array of 32bit 
+		 * integers.*/
+        TAG_Int_Array,
+		/** Long integer array tag signifying that this tag holds an array of 
+		 * 64bit integers.*/
+        TAG_Long_Array;
     }
 
     /**
@@ -101,6 +130,28 @@ public class NBTag {
      * @param value an object that fits the tag type or a {@link Type} to create an empty TAG_List with this list type.
      */
     public NBTag(Type type, String name, Object value) {
+        this(type, name, value, true);
+    }
+
+    /**
+     * Constructs a tag, optionally without making the tags in its Map or 
+     * List its children. Views whose nested tags are made when they are 
+     * accessed pass false, so that they are not all made up front.
+     */
+    NBTag(Type type, String name, Object value, boolean adopt) {
+        this.type = type;
+        this.name = name;
+        this.value = accept(value);
+        if (adopt)
+            adoptChildren();
+    }
+
+    /**
+     * Checks that a value fits the type of this tag, sets the list type of a 
+     * TAG_List and returns the value to store.
+     */
+    @SuppressWarnings("unchecked")
+    private Object accept(Object value) {
         switch (type) {
         case TAG_End:
             if (value != null)
@@ -131,13 +182,21 @@ public class NBTag {
                 throw new IllegalArgumentException(value.getClass().getName() + " cannot be stored in a " + type.name());
             break;
         case TAG_Byte_Array:
-            if (!(value instanceof byte[]))
+            if (!(value instanceof byte[]) && !(value instanceof ByteBuffer))
                 throw new IllegalArgumentException(value.getClass().getName() + " cannot be stored in a " + type.name());
             break;
         case TAG_String:
             if (!(value instanceof String))
                 throw new IllegalArgumentException(value.getClass().getName() + " cannot be stored in a " + type.name());
             break;
+        case TAG_Int_Array:
+            if (!(value instanceof int[]))
+                throw new IllegalArgumentException(value.getClass().getName() + " cannot be stored in a " + type.name());
+            break;
+        case TAG_Long_Array:
+            if (!(value instanceof long[]))
+                throw new IllegalArgumentException(value.getClass().getName() + " cannot be stored in a " + type.name());
+            break;
         case TAG_List:
             if (value instanceof Type) {
                 this.listType = (Type) value;
@@ -145,7 +204,10 @@ public class NBTag {
             } else {
                 if (!(value instanceof List))
 					throw new IllegalArgumentException(Type.TAG_List.name() + " expects an object of class java.util.List<NBTag>");
-                this.listType = (((List<NBTag>) value).get(0)).getType();
+                if (value instanceof PrimitiveList)
+                    this.listType = ((PrimitiveList) value).getElementType();
+                else
+                    this.listType = (((List<NBTag>) value).get(0)).getType();
             }
             break;
         case TAG_Compound:
@@ -155,9 +217,7 @@ public class NBTag {
         default:
             throw new IllegalArgumentException();
         }
-        this.type = type;
-        this.name = name;
-        this.value = value;
+        return value;
     }
 
     public Type getType() {
@@ -172,70 +232,147 @@ public class NBTag {
         return value;
     }
 
+    /**
+     * Replaces the value of this tag. The new value must fit the type of 
+     * this tag, like the value passed to the constructor.
+     *
+     * @param newValue an object that fits the tag type or a {@link Type} to make this an empty TAG_List with this list type.
+     */
     public void setValue(Object newValue)
     {
-        switch (type) {
-        case TAG_End:
-            if (value != null)
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Byte:
-            if (!(value instanceof Byte))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Short:
-            if (!(value instanceof Short))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Int:
-            if (!(value instanceof Integer))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Long:
-            if (!(value instanceof Long))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Float:
-            if (!(value instanceof Float))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Double:
-            if (!(value instanceof Double))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_Byte_Array:
-            if (!(value instanceof byte[]))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_String:
-            if (!(value instanceof String))
-                throw new IllegalArgumentException(newValue.getClass().getName() + " cannot be stored in a " + type.name());
-            break;
-        case TAG_List:
-            if (value instanceof Type) {
-                this.listType = (Type) value;
-                value = new ArrayList<NBTag>();
-            } else {
-                if (!(value instanceof List))
-					throw new IllegalArgumentException(value.getClass().getName() + " is not a List type");
-                this.listType = (((List<NBTag>) value).get(0)).getType();
-            }
-            break;
-        case TAG_Compound:
-            if (!(value instanceof Map))
-                throw new IllegalArgumentException(value.getClass().getName() + " is not a Map type");
-            break;
-        default:
-                throw new IllegalArgumentException("Unrecognized NBTag type: " + type.name());
+        // in a concurrent tree, hold the lock of this container or of the 
+        // container this tag is in
+        NBTConcurrentTree tree = NBTConcurrentTree.treeOf(value);
+        Lock lock = NBTConcurrentTree.lockOf(value);
+        if (tree == null && parent != null) {
+            tree = NBTConcurrentTree.treeOf(parent.value);
+            lock = NBTConcurrentTree.lockOf(parent.value);
         }
-
-        value = newValue;
+        if (lock != null)
+            lock.lock();
+        try {
+            value = accept(newValue);
+            adoptChildren();
+            if (tree != null)
+                makeConcurrent(tree);
+        } finally {
+            if (lock != null)
+                lock.unlock();
+        }
+        changed();
     }
 
     public Type getListType() {
         return listType;
     }
 
+	/**
+	 * Returns the elements of a TAG_List of TAG_Byte tags as an array. Lists 
+	 * read from a stream or made by <code>makeListTag(String, byte...)</code> 
+	 * store their elements in such an array, which is always returned as is, 
+	 * so changes to it are written through until elements are added to or 
+	 * removed from the list. Lists made from a java.util.List&lt;NBTag&gt; 
+	 * keep their element tags, and a new array is built from them on every 
+	 * call. After writing to a shared array, call 
+	 * {@link #invalidateSize()} so that the next incremental save encodes 
+	 * the list again.
+	 * @return the list elements
+	 * @throws UnsupportedOperationException if this is not a list of TAG_Byte
+	 */
+	public byte[] getByteList() {
+		return (byte[]) getPrimitiveList(Type.TAG_Byte);
+	}
+	/**
+	 * Returns the elements of a TAG_List of TAG_Short tags as an array. See 
+	 * {@link #getByteList()} for when the array is shared with the tag.
+	 * @return the list elements
+	 * @throws UnsupportedOperationException if this is not a list of TAG_Short
+	 */
+	public short[] getShortList() {
+		return (short[]) getPrimitiveList(Type.TAG_Short);
+	}
+	/**
+	 * Returns the elements of a TAG_List of TAG_Int tags as an array. See 
+	 * {@link #getByteList()} for when the array is shared with the tag.
+	 * @return the list elements
+	 * @throws UnsupportedOperationException if this is not a list of TAG_Int
+	 */
+	public int[] getIntList() {
+		return (int[]) getPrimitiveList(Type.TAG_Int);
+	}
+	/**
+	 * Returns the elements of a TAG_List of TAG_Long tags as an array. See 
+	 * {@link #getByteList()} for when the array is shared with the tag.
+	 * @return the list elements
+	 * @throws UnsupportedOperationException if this is not a list of TAG_Long
+	 */
+	public long[] getLongList() {
+		return (long[]) getPrimitiveList(Type.TAG_Long);
+	}
+	/**
+	 * Returns the elements of a TAG_List of TAG_Float tags as an array. See 
+	 * {@link #getByteList()} for when the array is shared with the tag.
+	 * @return the list elements
+	 * @throws UnsupportedOperationException if this is not a list of TAG_Float
+	 */
+	public float[] getFloatList() {
+		return (float[]) getPrimitiveList(Type.TAG_Float);
+	}
+	/**
+	 * Returns the elements of a TAG_List of TAG_Double tags as an array. See 
+	 * {@link #getByteList()} for when the array is shared with the tag.
+	 * @return the list elements
+	 * @throws UnsupportedOperationException if this is not a list of 
+	 * TAG_Double
+	 */
+	public double[] getDoubleList() {
+		return (double[]) getPrimitiveList(Type.TAG_Double);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object getPrimitiveList(Type elementType) {
+		if (type != Type.TAG_List || listType != elementType)
+			throw new UnsupportedOperationException("NBTag of type " + this.type.name() + " is not a list of " + elementType.name() + " tags");
+		if (value instanceof PrimitiveList)
+			return ((PrimitiveList) value).primitiveArray();
+		return toPrimitiveArray((List<NBTag>) value, elementType);
+	}
+
+	/**
+	 * Copies the values of a list of number tags into a new primitive array.
+	 */
+	static Object toPrimitiveArray(List<NBTag> elements, Type elementType) {
+		int n = elements.size();
+		switch (elementType) {
+		case TAG_Byte:
+			byte[] b = new byte[n];
+			for (int i = 0; i < n; i++) b[i] = (Byte) elements.get(i).value;
+			return b;
+		case TAG_Short:
+			short[] s = new short[n];
+			for (int i = 0; i < n; i++) s[i] = (Short) elements.get(i).value;
+			return s;
+		case TAG_Int:
+			int[] ia = new int[n];
+			for (int i = 0; i < n; i++) ia[i] = (Integer) elements.get(i).value;
+			return ia;
+		case TAG_Long:
+			long[] l = new long[n];
+			for (int i = 0; i < n; i++) l[i] = (Long) elements.get(i).value;
+			return l;
+		case TAG_Float:
+			float[] f = new float[n];
+			for (int i = 0; i < n; i++) f[i] = (Float) elements.get(i).value;
+			return f;
+		case TAG_Double:
+			double[] d = new double[n];
+			for (int i = 0; i < n; i++) d[i] = (Double) elements.get(i).value;
+			return d;
+		default:
+			throw new IllegalArgumentException(elementType.name() + " is not a number type");
+		}
+	}
+
     /**
      * Add a tag to a TAG_List or a TAG_Compound.
      */
@@ -249,7 +386,10 @@ public class NBTag {
 			Map<String,NBTag> subtags = (Map<String,NBTag>) value;
 			subtags.put(tag.name, tag);
 		} 
-		
+		// a list of numbers copies the value, so the tag is not a child
+		if (!(value instanceof PrimitiveList))
+			tag.parent = this;
+		changed();
 
     }
 
@@ -265,7 +405,9 @@ public class NBTag {
             throw new UnsupportedOperationException("Cannot remove a NBTag by index from a NBTag of type " + this.type.name());
         
 		List<NBTag> subtags = (List<NBTag>) value;
-		return subtags.remove(index);
+		NBTag removed = subtags.remove(index);
+		removed(removed);
+		return removed;
 		
     }
 	 /**
@@ -278,7 +420,9 @@ public class NBTag {
             throw new UnsupportedOperationException("Cannot remove a NBTag by name from a NBTag of type " + this.type.name());
 
 		Map<String,NBTag> subtags = (Map<String,NBTag>) value;
-		return subtags.remove(targetName);
+		NBTag removed = subtags.remove(targetName);
+		removed(removed);
+		return removed;
 		
     }
 
@@ -294,7 +438,9 @@ public class NBTag {
             return;
         if(type == Type.TAG_List){
 			List<NBTag> subtags = (List<NBTag>)value;
-			subtags.remove(tag);
+			if(subtags.remove(tag)){
+				removed(tag);
+			}
 			return;
 		} else if(type == Type.TAG_Compound){
 			Map<String,NBTag> subtags = (Map<String,NBTag>)value;
@@ -305,13 +451,184 @@ public class NBTag {
 			}
 			if(subtags.get(tag.name) == tag){
 				subtags.remove(tag.name);
+				removed(tag);
 			}
 		}
 		
     }
 
+    private void removed(NBTag child) {
+        if (child == null)
+            return;
+        if (child.parent == this)
+            child.parent = null;
+        changed();
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(OutputStream)} writes for 
+     * this tag, including its type and name. The size of every container is 
+     * cached, so after a change only the sizes of the changed tag and its 
+     * ancestors are computed again. The cache is kept up to date by 
+     * {@link #setValue(Object)}, {@link #addTag(NBTag)} and the removeTag 
+     * methods; call {@link #invalidateSize()} after changing the Map or List 
+     * returned by {@link #getValue()} directly. A tag should not be a child 
+     * of more than one container.
+     *
+     * @return the encoded size in bytes
+     */
+    public long serializedSize() {
+        long n = 1;
+        if (type != Type.TAG_End)
+            n += 2 + NBTBufferEncoder.utfLength(name) + payloadSize();
+        return n;
+    }
+
+    /**
+     * Discards the cached size of this tag and of the containers it is in, 
+     * and marks them as changed for the next incremental save. Only needed 
+     * after changing the value of a tag without going through its mutator 
+     * methods. Tags put into the Map or List of this tag directly become 
+     * its children, so that their own changes are tracked from then on.
+     */
+    public void invalidateSize() {
+        adoptChildren();
+        changed();
+    }
+
+    /**
+     * Sets this tag as the parent of the tags in its Map or List, so that 
+     * changes to them reach this tag.
+     */
+    @SuppressWarnings("unchecked")
+    private void adoptChildren() {
+        if (value instanceof LazyCompoundMap)
+            ((LazyCompoundMap) value).setOwner(this);
+        else if (value instanceof PrimitiveList)
+            ((PrimitiveList) value).setOwner(this);
+        else if (type == Type.TAG_Compound)
+            for (NBTag child : ((Map<String,NBTag>) value).values())
+                child.parent = this;
+        else if (type == Type.TAG_List)
+            for (NBTag child : (List<NBTag>) value)
+                child.parent = this;
+    }
+
+    /**
+     * Discards the cached sizes and sets the dirty flags of this tag and of 
+     * the containers it is in.
+     */
+    void changed() {
+        // members of lazy compounds are decoded after their container was 
+        // sized, so an unmarked tag may still have marked ancestors
+        for (NBTag t = this; t != null; t = t.parent) {
+            t.cachedSize = -1;
+            t.dirty = true;
+        }
+    }
+
     /**
-     * Find the first nested tag with specified name in a TAG_Compound.
+     * Returns true if this tag has changed since it was last written by an 
+     * {@link NBTIncrementalWriter}, or has never been written by one. A 
+     * change to a nested tag marks all the containers it is in as changed.
+     *
+     * @return true if the next incremental save has to encode this tag again
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void setParent(NBTag parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Replaces the Maps and Lists of tags of this tag and its nested tags 
+     * with the thread-safe containers of a concurrent tree, unless they 
+     * already are. Lists of numbers are kept as they are.
+     */
+    @SuppressWarnings("unchecked")
+    void makeConcurrent(NBTConcurrentTree tree) {
+        if (NBTConcurrentTree.treeOf(value) == tree)
+            return;
+        if (type == Type.TAG_Compound) {
+            ConcurrentCompoundMap map = new ConcurrentCompoundMap(tree, this);
+            for (Map.Entry<String,NBTag> e : ((Map<String,NBTag>) value).entrySet()) {
+                NBTag child = e.getValue();
+                child.makeConcurrent(tree);
+                child.parent = this;
+                map.putUnlocked(e.getKey(), child);
+            }
+            value = map;
+        } else if (type == Type.TAG_List && !(value instanceof PrimitiveList)) {
+            List<NBTag> list = (List<NBTag>) value;
+            for (NBTag child : list) {
+                child.makeConcurrent(tree);
+                child.parent = this;
+            }
+            value = new ConcurrentTagList(tree, this, list);
+        }
+    }
+
+    /**
+     * Returns the size of the payload written by writePayload.
+     */
+    @SuppressWarnings("unchecked")
+    long payloadSize() {
+        if (cachedSize >= 0)
+            return cachedSize;
+        long n;
+        switch (type) {
+        case TAG_End:
+            n = 0;
+            break;
+        case TAG_Byte_Array:
+            if (value instanceof ByteBuffer)
+                n = 4 + ((ByteBuffer) value).remaining();
+            else
+                n = 4 + ((byte[]) value).length;
+            break;
+        case TAG_String:
+            n = 2 + NBTBufferEncoder.utfLength((String) value);
+            break;
+        case TAG_Int_Array:
+            n = 4 + 4L * ((int[]) value).length;
+            break;
+        case TAG_Long_Array:
+            n = 4 + 8L * ((long[]) value).length;
+            break;
+        case TAG_List:
+            if (value instanceof PrimitiveList) {
+                n = ((PrimitiveList) value).payloadSize();
+                break;
+            }
+            n = 5;
+            for (NBTag tt : (List<NBTag>) value) {
+                n += tt.payloadSize();
+            }
+            break;
+        case TAG_Compound:
+            if (value instanceof LazyCompoundMap) {
+                n = ((LazyCompoundMap) value).payloadSize();
+                break;
+            }
+            n = 1;// TAG_End
+            for (NBTag subtag : ((Map<String,NBTag>) value).values()) {
+                n += subtag.serializedSize();
+            }
+            break;
+        default:
+            n = NBTReader.fixedSize(type.ordinal());
+            break;
+        }
+        cachedSize = n;
+        return n;
+    }
+
+    /**
+     * Find the first nested tag with specified name in a TAG_Compound. This 
+     * searches the whole tree; use an {@link NBTPath} to navigate directly to 
+     * a known location instead.
      *
      * @param name the name to look for. May be null to look for unnamed tags.
      * @return the first nested tag that has the specified name.
@@ -334,6 +651,19 @@ public class NBTag {
 			if(subtags.containsKey(name)){
 				return subtags.get(name);
 			}
+			if(subtags instanceof LazyCompoundMap){
+				// only decode the members that can contain the name
+				LazyCompoundMap lazy = (LazyCompoundMap)subtags;
+				for(int i = 0; i < lazy.size(); i++){
+					if(lazy.typeAt(i) == Type.TAG_Compound){
+						NBTag searchResult = lazy.tagAt(i).findTagByName(name);
+						if(searchResult != null){
+							return searchResult;
+						}
+					}
+				}
+				return null;
+			}
 			for(NBTag c : subtags.values()){
 				if(c.type == Type.TAG_Compound){
 					NBTag searchResult = c.findTagByName(name);
@@ -355,22 +685,33 @@ public class NBTag {
      * @throws IOException if there was no valid NBT structure in the InputStream or if another IOException occurred.
      */
     public static NBTag readFromGZipStream(InputStream is) throws IOException {
-        DataInputStream dis = new DataInputStream(new GZIPInputStream(is));
-        return readNBTag(dis);
+        return read(is, true, null, null);
     }
 	/**
-	 * Reads a short (2 byte) from the data stream, then reads that many UTF-8 
-	 * characters and returns it as a String.
-	 * @param dis
-	 * @return
-	 * @throws IOException 
+	 * Like <code>readFromGZipStream(InputStream)</code>, but decodes tag 
+	 * names through a symbol table, so that every tag with the same name 
+	 * shares one String instance.
+	 * @param is stream to read from, like a FileInputStream
+	 * @param names symbol table to look up and store tag names in, or null
+	 * @return NBT tag or structure read from the InputStream
+	 * @throws IOException if there was no valid NBT structure in the 
+	 * InputStream or if another IOException occurred.
 	 */
-	private static String readTagName(DataInputStream dis) throws IOException{
-		short nameLength = readShort(dis);
-		byte[] utfChars = new byte[nameLength];
-		dis.read(utfChars);
-		String name = new String(utfChars);
-		return name;
+	public static NBTag readFromGZipStream(InputStream is, NBTNameCache names) throws IOException {
+		return read(is, true, names, null);
+	}
+	/**
+	 * Like <code>readFromGZipStream(InputStream)</code>, but only decodes the 
+	 * parts of the structure that are selected by a projection.
+	 * @param is stream to read from, like a FileInputStream
+	 * @param projection the parts to decode
+	 * @return NBT tag or structure read from the InputStream, holding only 
+	 * the selected parts
+	 * @throws IOException if there was no valid NBT structure in the 
+	 * InputStream or if another IOException occurred.
+	 */
+	public static NBTag readFromGZipStream(InputStream is, NBTProjection projection) throws IOException {
+		return read(is, true, null, projection);
 	}
 	/**
 	 * Reads a byte from the data stream, correcting for wrong endian-ness
@@ -435,90 +776,168 @@ public class NBTag {
 	}
 	/**
 	 * Like <code>readFromGZip(InputStream)</code>, but does not try to use GZip 
-	 * decompression on the InputStream.
+	 * decompression on the InputStream. The tree is built from the events of 
+	 * an {@link NBTReader}; use that class directly to scan a stream without 
+	 * building the tree.
 	 * @param dis
 	 * @return
 	 * @throws IOException 
 	 */
 	public static NBTag readNBTag(DataInputStream dis) throws IOException {
-		byte type = readByte(dis);
-        NBTag tag = null;
-
-        if (type == 0) {
-            tag = new NBTag(Type.TAG_End, null, null);
-        } else {
-			String name = readTagName(dis);
-            tag = new NBTag(Type.values()[type], name, readPayload(dis,type));
-        }
+		return read(dis, false, null, null);
+	}
+	/**
+	 * Like <code>readNBTag(DataInputStream)</code>, but decodes tag names 
+	 * through a symbol table, so that every tag with the same name shares one 
+	 * String instance.
+	 * @param dis stream to read from
+	 * @param names symbol table to look up and store tag names in, or null
+	 * @return NBT tag or structure read from the stream
+	 * @throws IOException if there was no valid NBT structure in the stream 
+	 * or if another IOException occurred.
+	 */
+	public static NBTag readNBTag(DataInputStream dis, NBTNameCache names) throws IOException {
+		return read(dis, false, names, null);
+	}
+	/**
+	 * Like <code>readNBTag(DataInputStream)</code>, but only decodes the 
+	 * parts of the structure that are selected by a projection. Everything 
+	 * else is skipped at the byte level without being decoded.
+	 * @param dis stream to read from
+	 * @param projection the parts to decode
+	 * @return NBT tag or structure read from the stream, holding only the 
+	 * selected parts
+	 * @throws IOException if there was no valid NBT structure in the stream 
+	 * or if another IOException occurred.
+	 */
+	public static NBTag readNBTag(DataInputStream dis, NBTProjection projection) throws IOException {
+		return read(dis, false, null, projection);
+	}
+	/**
+	 * Common implementation of the stream read methods. Statistics are only 
+	 * collected if a {@link NBTMetricsListener} is installed.
+	 */
+	private static NBTag read(InputStream is, boolean gzip, NBTNameCache names, NBTProjection projection) throws IOException {
+		NBTMetricsListener listener = NBTMetrics.listener;
+		if(listener != null){
+			return NBTMetrics.read(listener, is, gzip, names, projection);
+		}
+		NBTReader reader = new NBTReader(gzip ? new GZIPInputStream(is) : is);
+		reader.setNameCache(names);
+		return reader.readTag(projection);
+	}
 
-        return tag;
+	/**
+	 * Like <code>readNBTag(DataInputStream)</code>, but compound tags are 
+	 * decoded lazily: reading only records the name, type and position of 
+	 * each member, and a member is decoded the first time it is accessed 
+	 * through <code>getValue()</code>, <code>findTagByName(...)</code> or 
+	 * iteration. Members that are never accessed are written back by copying 
+	 * their original bytes. The rest of the stream is read into memory, so it 
+	 * should hold a single uncompressed NBT structure.
+	 * @param is stream to read from
+	 * @return NBT tag or structure read from the InputStream
+	 * @throws IOException if there was no valid NBT structure in the 
+	 * InputStream or if another IOException occurred.
+	 */
+	public static NBTag readLazyNBTag(InputStream is) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		byte[] chunk = new byte[8192];
+		int n;
+		while((n = is.read(chunk)) >= 0){
+			buffer.write(chunk, 0, n);
+		}
+		return readLazyNBTag(buffer.toByteArray());
+	}
+	/**
+	 * Like <code>readLazyNBTag(InputStream)</code>, but reads the NBT 
+	 * structure from a byte array. The array must not be modified while the 
+	 * returned tag is in use.
+	 * @param data uncompressed NBT data
+	 * @return NBT tag or structure read from the array
+	 * @throws IOException if there was no valid NBT structure in the array.
+	 */
+	public static NBTag readLazyNBTag(byte[] data) throws IOException {
+		return readLazyNBTag(ByteBuffer.wrap(data), false);
+	}
+	/**
+	 * Like <code>readLazyNBTag(InputStream)</code>, but reads the NBT 
+	 * structure from a buffer starting at its position, which is moved past 
+	 * the structure. The contents of the buffer must not be modified while 
+	 * the returned tag is in use.
+	 * @param buffer uncompressed NBT data, e.g. a MappedByteBuffer
+	 * @param sliceByteArrays if true, the values of TAG_Byte_Array tags are 
+	 * read-only ByteBuffer slices of <code>buffer</code> instead of byte[] 
+	 * copies
+	 * @return NBT tag or structure read from the buffer
+	 * @throws IOException if there was no valid NBT structure in the buffer.
+	 */
+	public static NBTag readLazyNBTag(ByteBuffer buffer, boolean sliceByteArrays) throws IOException {
+		return readFromBuffer(buffer, true, sliceByteArrays);
+	}
+	/**
+	 * Like <code>readNBTag(DataInputStream)</code>, but decodes directly 
+	 * from a buffer starting at its position, which is moved past the 
+	 * structure.
+	 * @param buffer uncompressed NBT data, e.g. a MappedByteBuffer
+	 * @param sliceByteArrays if true, the values of TAG_Byte_Array tags are 
+	 * read-only ByteBuffer slices of <code>buffer</code> instead of byte[] 
+	 * copies. The slices share the contents of <code>buffer</code>, so it 
+	 * must not be modified while the returned tag is in use.
+	 * @return NBT tag or structure read from the buffer
+	 * @throws IOException if there was no valid NBT structure in the buffer.
+	 */
+	public static NBTag readNBTag(ByteBuffer buffer, boolean sliceByteArrays) throws IOException {
+		return readFromBuffer(buffer, false, sliceByteArrays);
+	}
+	/**
+	 * Memory-maps an uncompressed NBT file and decodes it directly from the 
+	 * mapping, without copying the file onto the heap. 
+	 * @param channel channel of the file to read, from its first byte
+	 * @param sliceByteArrays if true, the values of TAG_Byte_Array tags are 
+	 * read-only ByteBuffer slices of the mapping instead of byte[] copies. 
+	 * The file must not be modified while such slices are in use.
+	 * @return NBT tag or structure read from the file
+	 * @throws IOException if there was no valid NBT structure in the file or 
+	 * if the file could not be mapped.
+	 */
+	public static NBTag readNBTag(FileChannel channel, boolean sliceByteArrays) throws IOException {
+		long size = channel.size();
+		if(size > Integer.MAX_VALUE){
+			throw new IOException("File is too large to be mapped: " + size + " bytes");
+		}
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		return readNBTag(map, sliceByteArrays);
 	}
 
-    private static Object readPayload(DataInputStream dis, byte type) throws IOException {
-        switch (type) {
-        case 0:
-            return null;
-        case 1:
-            return readByte(dis);
-        case 2:
-            return readShort(dis);
-        case 3:
-            return readInt(dis);
-        case 4:
-            return readLong(dis);
-        case 5:
-            return readFloat(dis);
-        case 6:
-            return readDouble(dis);
-        case 7:
-            int length = readInt(dis);
-            byte[] ba = new byte[length];
-            dis.readFully(ba);
-            return ba;
-        case 8:
-            return readTagName(dis);
-        case 9:
-            byte lt = readByte(dis);
-            int ll = readInt(dis);
-            List<NBTag> lo = new ArrayList<NBTag>(ll);
-            for (int i = 0; i < ll; i++) {
-                lo.add(new NBTag(Type.values()[lt], null, readPayload(dis, lt)));
-            }
-            if (lo.isEmpty())
-                return Type.values()[lt];
-            else
-                return lo;
-        case 10:
-			Map<String,NBTag> children = new LinkedHashMap<>();
-            NBTag content = null; 
-			do{
-				content = readNBTag(dis);
-				if(content.type != Type.TAG_End){
-					children.put(content.name,content);
-				}
-			} while(content.type != Type.TAG_End);
-            return children;
-        }
-        return null;
-    }
+	private static NBTag readFromBuffer(ByteBuffer buffer, boolean lazy, boolean sliceByteArrays) throws IOException {
+		ByteBufferInput in = new ByteBufferInput(buffer.duplicate().order(ByteOrder.BIG_ENDIAN), buffer.position());
+		NBTag tag = new NBTReader(in, lazy, sliceByteArrays).readTag();
+		buffer.position(in.position());
+		return tag;
+	}
 
     /**
      * Read a tag and its nested tags from an InputStream.
 	 * 
-	 * <b>THIS METHOD USES GZIP COMPRESSION ON THE STREAM!</b>
+	 * <b>THIS METHOD USES GZIP COMPRESSION ON THE STREAM!</b> The gzip data 
+	 * is complete when this method returns, but <code>os</code> is not 
+	 * closed. To write many documents, an {@link NBTCodecContext} avoids 
+	 * setting up a new Deflater each time.
      *
      * @param os stream to write to, like a FileOutputStream
      * @throws IOException if this is not a valid NBT structure or if any IOException occurred.
      */
     public void writeToGZip(OutputStream os) throws IOException {
+        NBTMetricsListener listener = NBTMetrics.listener;
+        if (listener != null) {
+            NBTMetrics.write(listener, this, os, true);
+            return;
+        }
         GZIPOutputStream gzos;
         DataOutputStream dos = new DataOutputStream(gzos = new GZIPOutputStream(os));
-        dos.writeByte(type.ordinal());
-        if (type != Type.TAG_End) {
-            dos.writeUTF(name);
-            writePayload(dos);
-        }
-        gzos.flush();
+        writeTag(dos);
+        gzos.finish();
     }
 	/**
 	 * Turns this tag into a stream of bytes and writes it to the OutputStream 
@@ -530,16 +949,86 @@ public class NBTag {
 	 * @throws IOException Thrown if there is a problem writing to the buffer.
 	 */
 	public void write(OutputStream os) throws IOException {
+		NBTMetricsListener listener = NBTMetrics.listener;
+		if(listener != null){
+			NBTMetrics.write(listener, this, os, false);
+			return;
+		}
 		DataOutputStream dos = new DataOutputStream(os);
-		dos.writeByte(type.ordinal());
+		writeTag(dos);
+		dos.flush();
+	}
+
+	/**
+	 * Turns this tag into a stream of bytes and writes it to the OutputStream 
+	 * in the given compression format. The stream is neither flushed nor 
+	 * closed. {@link NBTCompression#read(InputStream)} reads it back.
+	 * @param os stream to write to, like a FileOutputStream
+	 * @param compression the compression format, like 
+	 * {@link NBTCompression#GZIP}
+	 * @throws IOException Thrown if there is a problem writing to the stream.
+	 */
+	public void write(OutputStream os, NBTCompression compression) throws IOException {
+		compression.writeTag(this, os);
+	}
+
+	/**
+	 * Encodes this tag into a heap or direct buffer, starting at its 
+	 * position, and advances the position past the encoded bytes. The bytes 
+	 * are the same as those written by {@link #write(OutputStream)}. Together 
+	 * with {@link #serializedSize()} this allows a length-prefixed frame to be 
+	 * built in a single allocation: 
+	 * <pre>
+	 * ByteBuffer frame = ByteBuffer.allocateDirect(4 + (int) tag.serializedSize());
+	 * frame.putInt((int) tag.serializedSize());
+	 * tag.encode(frame);
+	 * frame.flip();
+	 * </pre>
+	 * @param dst buffer to write to
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the remaining space of 
+	 * <code>dst</code> is smaller than {@link #serializedSize()}; nothing is 
+	 * written in that case
+	 * @throws ReadOnlyBufferException if <code>dst</code> is read-only
+	 */
+	public int encode(ByteBuffer dst) {
+		if (dst.isReadOnly())
+			throw new ReadOnlyBufferException();
+		long size = serializedSize();
+		if (size > dst.remaining())
+			throw new BufferOverflowException();
+		NBTBufferEncoder enc = new NBTBufferEncoder(dst);
+		enc.putTag(this);
+		dst.position(enc.position());
+		return (int) size;
+	}
+
+	/**
+	 * Encodes this tag into a new array of exactly {@link #serializedSize()} 
+	 * bytes.
+	 * @return the encoded tag
+	 */
+	public byte[] toByteArray() {
+		long size = serializedSize();
+		if (size > Integer.MAX_VALUE - 8)
+			throw new OutOfMemoryError("Tag too large for an array: " + size + " bytes");
+		byte[] b = new byte[(int) size];
+		encode(ByteBuffer.wrap(b));
+		return b;
+	}
+
+    /**
+     * Writes the type, name and payload of this tag.
+     */
+    void writeTag(DataOutputStream dos) throws IOException {
+        dos.writeByte(type.ordinal());
         if (type != Type.TAG_End) {
             dos.writeUTF(name);
             writePayload(dos);
         }
-		dos.flush();
-	}
+    }
 
-    private void writePayload(DataOutputStream dos) throws IOException {
+    void writePayload(DataOutputStream dos) throws IOException {
         switch (type) {
         case TAG_End:
             break;
@@ -562,6 +1051,12 @@ public class NBTag {
             dos.writeDouble((Double) value);
             break;
         case TAG_Byte_Array:
+            if (value instanceof ByteBuffer) {
+                ByteBuffer bb = ((ByteBuffer) value).duplicate();
+                dos.writeInt(bb.remaining());
+                writeBuffer(dos, bb);
+                break;
+            }
             byte[] ba = (byte[]) value;
             dos.writeInt(ba.length);
             dos.write(ba);
@@ -569,7 +1064,21 @@ public class NBTag {
         case TAG_String:
             dos.writeUTF((String) value);
             break;
+        case TAG_Int_Array:
+            int[] ia = (int[]) value;
+            dos.writeInt(ia.length);
+            writeNumbers(dos, ia, Type.TAG_Int, 0, ia.length);
+            break;
+        case TAG_Long_Array:
+            long[] la = (long[]) value;
+            dos.writeInt(la.length);
+            writeNumbers(dos, la, Type.TAG_Long, 0, la.length);
+            break;
         case TAG_List:
+            if (value instanceof PrimitiveList) {
+                ((PrimitiveList) value).writePayload(dos);
+                break;
+            }
             List<NBTag> list = (List<NBTag>) value;
             dos.writeByte(getListType().ordinal());
             dos.writeInt(list.size());
@@ -578,6 +1087,10 @@ public class NBTag {
             }
             break;
         case TAG_Compound:
+            if (value instanceof LazyCompoundMap) {
+                ((LazyCompoundMap) value).writePayload(dos);
+                break;
+            }
             Map<String,NBTag> subtags = (Map<String,NBTag>) value;
             for (String n : subtags.keySet()) {
                 NBTag subtag = subtags.get(n);
@@ -598,6 +1111,62 @@ public class NBTag {
     
 
 	
+	/**
+	 * Writes <code>n</code> elements of a primitive array in big-endian 
+	 * order. The elements are encoded in bulk through a buffer view instead 
+	 * of one DataOutputStream call per element.
+	 */
+	static void writeNumbers(DataOutputStream dos, Object array, Type elementType, int off, int n) throws IOException {
+		if (elementType == Type.TAG_Byte) {
+			dos.write((byte[]) array, off, n);
+			return;
+		}
+		int size = NBTReader.fixedSize(elementType.ordinal());
+		ByteBuffer chunk = ByteBuffer.allocate((int) Math.min((long) n * size, 8192));
+		int perChunk = chunk.capacity() / size;
+		for (int i = off, end = off + n; i < end; i += perChunk) {
+			int k = Math.min(perChunk, end - i);
+			chunk.clear();
+			switch (elementType) {
+			case TAG_Short:
+				chunk.asShortBuffer().put((short[]) array, i, k);
+				break;
+			case TAG_Int:
+				chunk.asIntBuffer().put((int[]) array, i, k);
+				break;
+			case TAG_Long:
+				chunk.asLongBuffer().put((long[]) array, i, k);
+				break;
+			case TAG_Float:
+				chunk.asFloatBuffer().put((float[]) array, i, k);
+				break;
+			case TAG_Double:
+				chunk.asDoubleBuffer().put((double[]) array, i, k);
+				break;
+			default:
+				throw new IllegalArgumentException(elementType.name() + " is not a number type");
+			}
+			dos.write(chunk.array(), 0, k * size);
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer to the stream, consuming them.
+	 */
+	static void writeBuffer(DataOutputStream dos, ByteBuffer bb) throws IOException {
+		if (bb.hasArray()) {
+			dos.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+			bb.position(bb.limit());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(bb.remaining(), 8192)];
+		while (bb.hasRemaining()) {
+			int n = Math.min(chunk.length, bb.remaining());
+			bb.get(chunk, 0, n);
+			dos.write(chunk, 0, n);
+		}
+	}
+
 	private static void tagToString(NBTag t, StringBuilder sb, int indent) {
 		if(t.getType() == Type.TAG_End) {
 			return;
@@ -629,6 +1198,18 @@ public class NBTag {
 			sb.append(" type=\"byte[");
 			sb.append(((byte[])value).length);
 			sb.append("]\"/>");
+		} else if(value instanceof ByteBuffer) {
+			sb.append(" type=\"byte[");
+			sb.append(((ByteBuffer)value).remaining());
+			sb.append("]\"/>");
+		} else if(value instanceof int[]) {
+			sb.append(" type=\"int[");
+			sb.append(((int[])value).length);
+			sb.append("]\"/>");
+		} else if(value instanceof long[]) {
+			sb.append(" type=\"long[");
+			sb.append(((long[])value).length);
+			sb.append("]\"/>");
 		} else {
 			sb.append(" type=\"");
 			sb.append(value.getClass().getSimpleName());
@@ -659,6 +1240,13 @@ public class NBTag {
 			sb.append(">\n");
 		}
 	}
+	/**
+	 * Returns an XML-like outline of this tag and its nested tags, built in 
+	 * memory. Arrays are shown by their length only. To dump large trees or 
+	 * array contents, or to get text that can be parsed back, use an 
+	 * {@link NBTTextWriter}.
+	 * @return outline of this tag
+	 */
 	@Override
 	public String toString(){
 		StringBuilder out = new StringBuilder();
@@ -707,11 +1295,11 @@ public class NBTag {
 	 * @return The constructed list tag.
 	 */
 	public static NBTag makeListTag(String name, Byte... data){
-		NBTag tag = new NBTag(name,Type.TAG_Byte);
-		for(Byte b : data){
-			tag.addTag(new NBTag(Type.TAG_Byte,null,b));
+		byte[] bytes = new byte[data.length];
+		for(int i = 0; i < data.length; i++){
+			bytes[i] = data[i];
 		}
-		return tag;
+		return new NBTag(Type.TAG_List,name,new PrimitiveList(Type.TAG_Byte,bytes));
 	}
 	/**
 	 * Creates a list tag from the provided array of elements.
@@ -745,72 +1333,52 @@ public class NBTag {
 	/**
 	 * Creates a list tag from the provided array of elements.
 	 * @param name The name of the list tag
-	 * @param data The array of data elements to store in the list tag.
+	 * @param data The array of data elements to store in the list tag. It is 
+	 * stored as is, without copying (see <code>getDoubleList()</code>).
 	 * @return The constructed list tag.
 	 */
 	public static NBTag makeListTag(String name, double... data){
-		Type t = Type.TAG_Double;
-		NBTag tag = new NBTag(name,t);
-		for(double e : data){
-			tag.addTag(new NBTag(t,null,e));
-		}
-		return tag;
+		return new NBTag(Type.TAG_List,name,new PrimitiveList(Type.TAG_Double,data));
 	}
 	/**
 	 * Creates a list tag from the provided array of elements.
 	 * @param name The name of the list tag
-	 * @param data The array of data elements to store in the list tag.
+	 * @param data The array of data elements to store in the list tag. It is 
+	 * stored as is, without copying (see <code>getFloatList()</code>).
 	 * @return The constructed list tag.
 	 */
 	public static NBTag makeListTag(String name, float... data){
-		Type t = Type.TAG_Float;
-		NBTag tag = new NBTag(name,t);
-		for(float e : data){
-			tag.addTag(new NBTag(t,null,e));
-		}
-		return tag;
+		return new NBTag(Type.TAG_List,name,new PrimitiveList(Type.TAG_Float,data));
 	}
 	/**
 	 * Creates a list tag from the provided array of elements.
 	 * @param name The name of the list tag
-	 * @param data The array of data elements to store in the list tag.
+	 * @param data The array of data elements to store in the list tag. It is 
+	 * stored as is, without copying (see <code>getIntList()</code>).
 	 * @return The constructed list tag.
 	 */
 	public static NBTag makeListTag(String name, int... data){
-		Type t = Type.TAG_Int;
-		NBTag tag = new NBTag(name,t);
-		for(int e : data){
-			tag.addTag(new NBTag(t,null,e));
-		}
-		return tag;
+		return new NBTag(Type.TAG_List,name,new PrimitiveList(Type.TAG_Int,data));
 	}
 	/**
 	 * Creates a list tag from the provided array of elements.
 	 * @param name The name of the list tag
-	 * @param data The array of data elements to store in the list tag.
+	 * @param data The array of data elements to store in the list tag. It is 
+	 * stored as is, without copying (see <code>getLongList()</code>).
 	 * @return The constructed list tag.
 	 */
 	public static NBTag makeListTag(String name, long... data){
-		Type t = Type.TAG_Long;
-		NBTag tag = new NBTag(name,t);
-		for(long e : data){
-			tag.addTag(new NBTag(t,null,e));
-		}
-		return tag;
+		return new NBTag(Type.TAG_List,name,new PrimitiveList(Type.TAG_Long,data));
 	}
 	/**
 	 * Creates a list tag from the provided array of elements.
 	 * @param name The name of the list tag
-	 * @param data The array of data elements to store in the list tag.
+	 * @param data The array of data elements to store in the list tag. It is 
+	 * stored as is, without copying (see <code>getShortList()</code>).
 	 * @return The constructed list tag.
 	 */
 	public static NBTag makeListTag(String name, short... data){
-		Type t = Type.TAG_Short;
-		NBTag tag = new NBTag(name,t);
-		for(short e : data){
-			tag.addTag(new NBTag(t,null,e));
-		}
-		return tag;
+		return new NBTag(Type.TAG_List,name,new PrimitiveList(Type.TAG_Short,data));
 	}
 	/**
 	 * Creates a list tag from the provided array of elements.
@@ -906,4 +1474,24 @@ public class NBTag {
 	public NBTag makeTag(String name, String data){
 		return new NBTag(Type.TAG_String,name,data);
 	}
+	/**
+	 * Creates a tag to hold the given data,
+	 * @param name The tag name (will be used to reference this data if this tag 
+	 * is stored in a compount tag).
+	 * @param data The data held by this tag.
+	 * @return A new int array tag.
+	 */
+	public static NBTag makeTag(String name, int[] data){
+		return new NBTag(Type.TAG_Int_Array,name,data);
+	}
+	/**
+	 * Creates a tag to hold the given data,
+	 * @param name The tag name (will be used to reference this data if this tag 
+	 * is stored in a compount tag).
+	 * @param data The data held by this tag.
+	 * @return A new long array tag.
+	 */
+	public static NBTag makeTag(String name, long[] data){
+		return new NBTag(Type.TAG_Long_Array,name,data);
+	}
 }
@@ -0,0 +1,61 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Projection over a set of compiled paths. Each path is paired with the
+ * index of its next step.
+ */
+final class PathProjection implements NBTProjection {
+
+	private final NBTPath[] paths;
+	private final int[] steps;
+
+	PathProjection(NBTPath[] paths, int[] steps) {
+		this.paths = paths;
+		this.steps = steps;
+	}
+
+	@Override
+	public NBTProjection select(String name, int index, Type type) {
+		List<NBTPath> nextPaths = null;
+		int[] nextSteps = null;
+		for(int i = 0; i < paths.length; i++){
+			NBTPath p = paths[i];
+			int s = steps[i];
+			if(!matches(p, s, name, index)){
+				continue;
+			}
+			if(s + 1 == p.stepCount()){
+				return NBTProjection.ALL;
+			}
+			if(nextPaths == null){
+				nextPaths = new ArrayList<>(paths.length);
+				nextSteps = new int[paths.length];
+			}
+			nextSteps[nextPaths.size()] = s + 1;
+			nextPaths.add(p);
+		}
+		if(nextPaths == null){
+			return null;
+		}
+		int[] trimmed = new int[nextPaths.size()];
+		System.arraycopy(nextSteps, 0, trimmed, 0, trimmed.length);
+		return new PathProjection(nextPaths.toArray(new NBTPath[trimmed.length]), trimmed);
+	}
+
+	private static boolean matches(NBTPath p, int s, String name, int index) {
+		switch(p.stepKind(s)){
+			case NBTPath.NAME:
+				return index < 0 && p.stepName(s).equals(name);
+			case NBTPath.ANY_NAME:
+				return index < 0;
+			case NBTPath.INDEX:
+				return index >= 0 && (p.stepIndex(s) < 0 || p.stepIndex(s) == index);
+			default:
+				return index >= 0;
+		}
+	}
+}
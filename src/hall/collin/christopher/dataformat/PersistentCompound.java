@@ -0,0 +1,292 @@
+package hall.collin.christopher.dataformat;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable members of a compound {@link NBTImmutableTag}. Members are kept
+ * in insertion order in a {@link PersistentVector}, and a hash array mapped
+ * trie (HAMT) maps every name to its position in the vector. Adding,
+ * replacing and removing a member copies O(log n) small arrays and shares
+ * the rest with the old version.
+ * <p>
+ * Removed members leave an empty slot in the vector, which is compacted
+ * once more than half of the slots are empty.
+ */
+final class PersistentCompound implements Iterable<NBTImmutableTag> {
+
+	static final PersistentCompound EMPTY = new PersistentCompound(null, PersistentVector.<NBTImmutableTag>empty(), 0);
+
+	/** name to Integer position, or null if empty */
+	private final Node index;
+	/** members in insertion order; null for removed members */
+	private final PersistentVector<NBTImmutableTag> slots;
+	private final int count;
+
+	private PersistentCompound(Node index, PersistentVector<NBTImmutableTag> slots, int count) {
+		this.index = index;
+		this.slots = slots;
+		this.count = count;
+	}
+
+	int size() {
+		return count;
+	}
+
+	NBTImmutableTag get(String name) {
+		if(index == null){
+			return null;
+		}
+		Integer slot = (Integer) index.find(0, name.hashCode(), name);
+		return slot == null ? null : slots.get(slot);
+	}
+
+	/**
+	 * Returns a compound with the member added, or replaced in place if a
+	 * member with the same name exists.
+	 */
+	PersistentCompound with(NBTImmutableTag member) {
+		String name = member.getName();
+		int hash = name.hashCode();
+		Integer slot = index == null ? null : (Integer) index.find(0, hash, name);
+		if(slot != null){
+			return new PersistentCompound(index, slots.set(slot, member), count);
+		}
+		Node root = index == null ? BitmapNode.EMPTY : index;
+		return new PersistentCompound(root.assoc(0, hash, name, slots.size()), slots.append(member), count + 1);
+	}
+
+	/**
+	 * Returns a compound without the named member.
+	 */
+	PersistentCompound without(String name) {
+		int hash = name.hashCode();
+		Integer slot = index == null ? null : (Integer) index.find(0, hash, name);
+		if(slot == null){
+			return this;
+		}
+		PersistentCompound c = new PersistentCompound(index.without(0, hash, name), slots.set(slot, null), count - 1);
+		if(c.slots.size() > 2 * c.count + 8){
+			PersistentCompound compact = EMPTY;
+			for(NBTImmutableTag t : c){
+				compact = compact.with(t);
+			}
+			return compact;
+		}
+		return c;
+	}
+
+	@Override
+	public Iterator<NBTImmutableTag> iterator() {
+		final Iterator<NBTImmutableTag> it = slots.iterator();
+		return new Iterator<NBTImmutableTag>() {
+			private NBTImmutableTag next = advance();
+
+			private NBTImmutableTag advance() {
+				while(it.hasNext()){
+					NBTImmutableTag t = it.next();
+					if(t != null){
+						return t;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public NBTImmutableTag next() {
+				if(next == null){
+					throw new NoSuchElementException();
+				}
+				NBTImmutableTag t = next;
+				next = advance();
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Node of the trie. Each level consumes five bits of the name's hash.
+	 */
+	private static abstract class Node {
+
+		abstract Object find(int shift, int hash, String key);
+
+		abstract Node assoc(int shift, int hash, String key, Object value);
+
+		/** returns null if the node becomes empty */
+		abstract Node without(int shift, int hash, String key);
+
+		static Node create(int shift, String k1, Object v1, int h2, String k2, Object v2) {
+			int h1 = k1.hashCode();
+			if(h1 == h2){
+				return new CollisionNode(h1, new Object[]{k1, v1, k2, v2});
+			}
+			return BitmapNode.EMPTY.assoc(shift, h1, k1, v1).assoc(shift, h2, k2, v2);
+		}
+	}
+
+	/**
+	 * Node with up to 32 entries, stored compactly in the order of their bits
+	 * in the bitmap. An entry is a key and value pair, or null and a child
+	 * node.
+	 */
+	private static final class BitmapNode extends Node {
+
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+		private final int bitmap;
+		private final Object[] array;
+
+		BitmapNode(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		@Override
+		Object find(int shift, int hash, String key) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bitmap & bit) == 0){
+				return null;
+			}
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if(k == null){
+				return ((Node) array[i + 1]).find(shift + 5, hash, key);
+			}
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		@Override
+		Node assoc(int shift, int hash, String key, Object value) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			if((bitmap & bit) == 0){
+				Object[] a = new Object[array.length + 2];
+				System.arraycopy(array, 0, a, 0, i);
+				a[i] = key;
+				a[i + 1] = value;
+				System.arraycopy(array, i, a, i + 2, array.length - i);
+				return new BitmapNode(bitmap | bit, a);
+			}
+			Object k = array[i];
+			Object v = array[i + 1];
+			Object[] a = array.clone();
+			if(k == null){
+				Node child = ((Node) v).assoc(shift + 5, hash, key, value);
+				if(child == v){
+					return this;
+				}
+				a[i + 1] = child;
+			} else if(key.equals(k)){
+				if(v == value){
+					return this;
+				}
+				a[i + 1] = value;
+			} else {
+				a[i] = null;
+				a[i + 1] = create(shift + 5, (String) k, v, hash, key, value);
+			}
+			return new BitmapNode(bitmap, a);
+		}
+
+		@Override
+		Node without(int shift, int hash, String key) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bitmap & bit) == 0){
+				return this;
+			}
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if(k == null){
+				Node child = ((Node) array[i + 1]).without(shift + 5, hash, key);
+				if(child == array[i + 1]){
+					return this;
+				}
+				if(child != null){
+					Object[] a = array.clone();
+					a[i + 1] = child;
+					return new BitmapNode(bitmap, a);
+				}
+			} else if(!key.equals(k)){
+				return this;
+			}
+			if(bitmap == bit){
+				return null;
+			}
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, a.length - i);
+			return new BitmapNode(bitmap ^ bit, a);
+		}
+	}
+
+	/**
+	 * Node for keys whose hashes are all equal.
+	 */
+	private static final class CollisionNode extends Node {
+
+		private final int hash;
+		private final Object[] array;
+
+		CollisionNode(int hash, Object[] array) {
+			this.hash = hash;
+			this.array = array;
+		}
+
+		private int indexOf(String key) {
+			for(int i = 0; i < array.length; i += 2){
+				if(key.equals(array[i])){
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		Object find(int shift, int hash, String key) {
+			int i = indexOf(key);
+			return i < 0 ? null : array[i + 1];
+		}
+
+		@Override
+		Node assoc(int shift, int hash, String key, Object value) {
+			if(hash != this.hash){
+				// nest this node below a bitmap node and add the key there
+				Node n = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[]{null, this});
+				return n.assoc(shift, hash, key, value);
+			}
+			int i = indexOf(key);
+			Object[] a;
+			if(i >= 0){
+				a = array.clone();
+			} else {
+				i = array.length;
+				a = new Object[i + 2];
+				System.arraycopy(array, 0, a, 0, i);
+				a[i] = key;
+			}
+			a[i + 1] = value;
+			return new CollisionNode(hash, a);
+		}
+
+		@Override
+		Node without(int shift, int hash, String key) {
+			int i = indexOf(key);
+			if(i < 0){
+				return this;
+			}
+			if(array.length == 2){
+				return null;
+			}
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, a.length - i);
+			return new CollisionNode(hash, a);
+		}
+	}
+}
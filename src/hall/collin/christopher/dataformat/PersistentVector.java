@@ -0,0 +1,195 @@
+package hall.collin.christopher.dataformat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable vector with structural sharing, used for the lists and the
+ * member order of {@link NBTImmutableTag}. Elements are kept in a trie of
+ * 32-element arrays plus a separate tail array, as in Clojure's vectors:
+ * <code>get</code>, <code>set</code> and <code>append</code> take
+ * O(log32 n) and copy only the arrays on the path to the element, sharing
+ * everything else with the old version. Removing elements other than the
+ * last ones rebuilds the vector.
+ */
+final class PersistentVector<E> implements Iterable<E> {
+
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	private static final PersistentVector<Object> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH], new Object[0]);
+
+	private final int size;
+	/** bits to shift an index by to find its slot in the root */
+	private final int shift;
+	private final Object[] root;
+	private final Object[] tail;
+
+	private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+		this.size = size;
+		this.shift = shift;
+		this.root = root;
+		this.tail = tail;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <E> PersistentVector<E> empty() {
+		return (PersistentVector<E>) EMPTY;
+	}
+
+	/**
+	 * Builds a vector from a list, filling the trie bottom-up.
+	 */
+	static <E> PersistentVector<E> of(List<? extends E> elements) {
+		int n = elements.size();
+		if(n == 0){
+			return empty();
+		}
+		int tailOffset = ((n - 1) >>> BITS) << BITS;
+		Object[] tail = elements.subList(tailOffset, n).toArray();
+		int count = tailOffset >>> BITS;
+		Object[][] level = new Object[count][];
+		for(int i = 0; i < count; i++){
+			level[i] = elements.subList(i << BITS, (i + 1) << BITS).toArray();
+		}
+		int shift = 0;
+		do{
+			int parents = (count + MASK) >>> BITS;
+			Object[][] up = new Object[Math.max(parents, 1)][];
+			for(int i = 0; i < up.length; i++){
+				up[i] = new Object[WIDTH];
+				int from = i << BITS;
+				System.arraycopy(level, from, up[i], 0, Math.min(WIDTH, count - from));
+			}
+			level = up;
+			count = up.length;
+			shift += BITS;
+		} while(count > 1);
+		return new PersistentVector<>(n, shift, level[0], tail);
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int tailOffset() {
+		return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+	}
+
+	private Object[] arrayFor(int index) {
+		if(index < 0 || index >= size){
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+		}
+		if(index >= tailOffset()){
+			return tail;
+		}
+		Object[] node = root;
+		for(int level = shift; level > 0; level -= BITS){
+			node = (Object[]) node[(index >>> level) & MASK];
+		}
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	E get(int index) {
+		return (E) arrayFor(index)[index & MASK];
+	}
+
+	/**
+	 * Returns a vector with the element at <code>index</code> replaced.
+	 */
+	PersistentVector<E> set(int index, E element) {
+		if(index < 0 || index >= size){
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+		}
+		if(index >= tailOffset()){
+			Object[] newTail = tail.clone();
+			newTail[index & MASK] = element;
+			return new PersistentVector<>(size, shift, root, newTail);
+		}
+		return new PersistentVector<>(size, shift, set(shift, root, index, element), tail);
+	}
+
+	private static Object[] set(int level, Object[] node, int index, Object element) {
+		Object[] copy = node.clone();
+		if(level == 0){
+			copy[index & MASK] = element;
+		} else {
+			int sub = (index >>> level) & MASK;
+			copy[sub] = set(level - BITS, (Object[]) node[sub], index, element);
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns a vector with an element added at the end.
+	 */
+	PersistentVector<E> append(E element) {
+		if(size - tailOffset() < WIDTH){
+			Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+			newTail[tail.length] = element;
+			return new PersistentVector<>(size + 1, shift, root, newTail);
+		}
+		// the tail is full: move it into the trie
+		Object[] newRoot;
+		int newShift = shift;
+		if((size >>> BITS) > (1 << shift)){
+			newRoot = new Object[WIDTH];
+			newRoot[0] = root;
+			newRoot[1] = newPath(shift, tail);
+			newShift += BITS;
+		} else {
+			newRoot = pushTail(shift, root);
+		}
+		return new PersistentVector<>(size + 1, newShift, newRoot, new Object[]{element});
+	}
+
+	private Object[] pushTail(int level, Object[] parent) {
+		int sub = ((size - 1) >>> level) & MASK;
+		Object[] copy = parent.clone();
+		if(level == BITS){
+			copy[sub] = tail;
+		} else {
+			Object[] child = (Object[]) parent[sub];
+			copy[sub] = child == null ? newPath(level - BITS, tail) : pushTail(level - BITS, child);
+		}
+		return copy;
+	}
+
+	private static Object[] newPath(int level, Object[] node) {
+		if(level == 0){
+			return node;
+		}
+		Object[] path = new Object[WIDTH];
+		path[0] = newPath(level - BITS, node);
+		return path;
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private int next = 0;
+			private Object[] array = null;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public E next() {
+				if(next >= size){
+					throw new NoSuchElementException();
+				}
+				if((next & MASK) == 0 || array == null){
+					array = arrayFor(next);
+				}
+				return (E) array[next++ & MASK];
+			}
+		};
+	}
+}
@@ -0,0 +1,307 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Contents of a TAG_List of numbers, stored as a primitive array (byte[],
+ * short[], int[], long[], float[] or double[]) instead of one NBTag and one
+ * boxed number per element.
+ * <p>
+ * This is still a List&lt;NBTag&gt; for compatibility, but the array always
+ * holds the data. Element access and iteration return short-lived tags that
+ * read from the array, and setting the value of such a tag writes the value
+ * back into the array (unless elements have been added or removed since the
+ * tag was returned). Tags passed to <code>add</code> and <code>set</code>
+ * have their value copied into the array; the list keeps no reference to
+ * them.
+ */
+final class PrimitiveList extends AbstractList<NBTag> implements RandomAccess {
+
+	private final Type elementType;
+	/** the elements, followed by unused room after elements were added */
+	private Object array;
+	private int size;
+	/** tag holding this list, set as the parent of returned elements */
+	private NBTag owner = null;
+	private boolean readOnly = false;
+
+	/**
+	 * @param elementType TAG_Byte, TAG_Short, TAG_Int, TAG_Long, TAG_Float
+	 * or TAG_Double
+	 * @param array primitive array matching the element type, used without
+	 * copying
+	 */
+	PrimitiveList(Type elementType, Object array) {
+		if(!isPrimitive(elementType)){
+			throw new IllegalArgumentException(elementType.name() + " cannot be stored in a primitive list");
+		}
+		this.elementType = elementType;
+		this.array = array;
+		this.size = Array.getLength(array);
+	}
+
+	/**
+	 * Returns true if lists with the given element type can be stored in a
+	 * PrimitiveList.
+	 */
+	static boolean isPrimitive(Type t) {
+		switch(t){
+			case TAG_Byte:
+			case TAG_Short:
+			case TAG_Int:
+			case TAG_Long:
+			case TAG_Float:
+			case TAG_Double:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	Type getElementType() {
+		return elementType;
+	}
+
+	void setOwner(NBTag owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Makes every change to the list and its elements throw
+	 * UnsupportedOperationException.
+	 */
+	PrimitiveList readOnly() {
+		readOnly = true;
+		return this;
+	}
+
+	private void checkWritable() {
+		if(readOnly){
+			throw new UnsupportedOperationException("This list is read-only");
+		}
+	}
+
+	/**
+	 * Returns the backing array, trimmed to the length of the list. Changes
+	 * to it are written through until elements are added or removed.
+	 */
+	Object primitiveArray() {
+		if(Array.getLength(array) != size){
+			Object a = Array.newInstance(array.getClass().getComponentType(), size);
+			System.arraycopy(array, 0, a, 0, size);
+			array = a;
+		}
+		return array;
+	}
+
+	/**
+	 * Writes the list payload: element type, length and elements.
+	 */
+	void writePayload(DataOutputStream dos) throws IOException {
+		dos.writeByte(elementType.ordinal());
+		dos.writeInt(size);
+		NBTag.writeNumbers(dos, array, elementType, 0, size);
+	}
+
+	/**
+	 * Returns the number of bytes {@link #writePayload(DataOutputStream)}
+	 * writes.
+	 */
+	long payloadSize() {
+		return 5 + (long) size * NBTReader.fixedSize(elementType.ordinal());
+	}
+
+	/**
+	 * Same as {@link #writePayload(DataOutputStream)}, into a buffer.
+	 */
+	void encode(NBTBufferEncoder enc) {
+		enc.putByte(elementType.ordinal());
+		enc.putInt(size);
+		enc.putNumbers(array, elementType, size);
+	}
+
+	private Object boxed(int i) {
+		switch(elementType){
+			case TAG_Byte:
+				return ((byte[]) array)[i];
+			case TAG_Short:
+				return ((short[]) array)[i];
+			case TAG_Int:
+				return ((int[]) array)[i];
+			case TAG_Long:
+				return ((long[]) array)[i];
+			case TAG_Float:
+				return ((float[]) array)[i];
+			default:
+				return ((double[]) array)[i];
+		}
+	}
+
+	private void store(int i, Object value) {
+		switch(elementType){
+			case TAG_Byte:
+				((byte[]) array)[i] = (Byte) value;
+				break;
+			case TAG_Short:
+				((short[]) array)[i] = (Short) value;
+				break;
+			case TAG_Int:
+				((int[]) array)[i] = (Integer) value;
+				break;
+			case TAG_Long:
+				((long[]) array)[i] = (Long) value;
+				break;
+			case TAG_Float:
+				((float[]) array)[i] = (Float) value;
+				break;
+			default:
+				((double[]) array)[i] = (Double) value;
+				break;
+		}
+	}
+
+	private Object valueOf(NBTag element) {
+		if(element.getType() != elementType){
+			throw new IllegalArgumentException(element.getType().name() + " cannot be stored in a list of " + elementType.name());
+		}
+		return element.getValue();
+	}
+
+	private void checkIndex(int index, int max) {
+		if(index < 0 || index > max){
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public NBTag get(int index) {
+		checkIndex(index, size - 1);
+		return new Element(this, index);
+	}
+
+	@Override
+	public NBTag set(int index, NBTag element) {
+		checkWritable();
+		checkIndex(index, size - 1);
+		Object v = valueOf(element);
+		NBTag old = new NBTag(elementType, null, boxed(index));
+		store(index, v);
+		return old;
+	}
+
+	@Override
+	public void add(int index, NBTag element) {
+		checkWritable();
+		checkIndex(index, size);
+		Object v = valueOf(element);
+		int capacity = Array.getLength(array);
+		if(size == capacity){
+			Object a = Array.newInstance(array.getClass().getComponentType(), Math.max(10, capacity + (capacity >> 1)));
+			System.arraycopy(array, 0, a, 0, size);
+			array = a;
+		}
+		System.arraycopy(array, index, array, index + 1, size - index);
+		size++;
+		store(index, v);
+		modCount++;
+	}
+
+	@Override
+	public NBTag remove(int index) {
+		checkWritable();
+		checkIndex(index, size - 1);
+		NBTag old = new NBTag(elementType, null, boxed(index));
+		removeRange(index, index + 1);
+		return old;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		checkWritable();
+		System.arraycopy(array, toIndex, array, fromIndex, size - toIndex);
+		size -= toIndex - fromIndex;
+		modCount++;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		if(o instanceof Element){
+			Element e = (Element) o;
+			if(e.attachedTo(this)){
+				return e.index;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		int i = indexOf(o);
+		if(i < 0){
+			return false;
+		}
+		removeRange(i, i + 1);
+		return true;
+	}
+
+	/**
+	 * An element returned by {@link PrimitiveList#get(int)}. Its value is
+	 * read from and written to the array, until the list is structurally
+	 * changed; from then on it is a detached tag of its own.
+	 */
+	private static final class Element extends NBTag {
+
+		private final PrimitiveList list;
+		private final int index;
+		private final int expectedModCount;
+
+		Element(PrimitiveList list, int index) {
+			super(list.elementType, null, list.boxed(index));
+			this.list = list;
+			this.index = index;
+			this.expectedModCount = list.modCount;
+			setParent(list.owner);
+		}
+
+		boolean attachedTo(PrimitiveList l) {
+			return list == l && list.modCount == expectedModCount;
+		}
+
+		@Override
+		public Object getValue() {
+			if(attachedTo(list)){
+				return list.boxed(index);
+			}
+			return super.getValue();
+		}
+
+		@Override
+		public void setValue(Object newValue) {
+			list.checkWritable();
+			super.setValue(newValue);
+			if(attachedTo(list)){
+				list.store(index, super.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package hall.collin.christopher.dataformat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks that bad length prefixes are rejected.
+ */
+public class NBTFrameChannelTest {
+
+	private static NBTFrameChannel receiver(byte... data) {
+		return new NBTFrameChannel(Channels.newChannel(new ByteArrayInputStream(data)), null);
+	}
+
+	private static void assertRejected(byte... data) {
+		try{
+			receiver(data).receive();
+			fail("Frame was not rejected");
+		} catch(IOException e){
+			// expected
+		}
+	}
+
+	@Test
+	public void testLengthTooLarge() {
+		// 2^32 + 1, which would wrap around to a 1-byte frame
+		assertRejected((byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x10, (byte) 0);
+		// 2^31
+		assertRejected((byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x08, (byte) 0);
+		// six bytes
+		assertRejected((byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0);
+	}
+
+	@Test
+	public void testLengthAboveMaximum() {
+		NBTFrameChannel frames = receiver((byte) 0x81, (byte) 0x01, (byte) 0);
+		frames.setMaxFrameSize(128);
+		try{
+			frames.receive();
+			fail("Frame was not rejected");
+		} catch(IOException e){
+			// expected
+		}
+	}
+
+	@Test
+	public void testPaddedLength() throws IOException {
+		// a one-byte frame with a TAG_End, its length written in five bytes
+		NBTFrameChannel frames = receiver((byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x00, (byte) 0);
+		assertEquals(NBTag.Type.TAG_End, frames.receive().getType());
+	}
+}
@@ -0,0 +1,123 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that an incremental save after a change writes the same bytes as
+ * {@link NBTag#write(java.io.OutputStream)}.
+ */
+public class NBTIncrementalWriterTest {
+
+	private NBTag root;
+	private NBTIncrementalWriter saver;
+
+	@Before
+	public void setUp() throws IOException {
+		NBTag level = NBTag.makeCompoundTag("Level",
+				new NBTag(Type.TAG_Long, "Time", 1000L),
+				new NBTag(Type.TAG_String, "Name", "world"),
+				NBTag.makeListTag("Heights", 1, 2, 3, 4),
+				NBTag.makeListTag("Pos", 0.5, 64.0, -3.25),
+				NBTag.makeListTag("Entities",
+						NBTag.makeCompoundTag(null, new NBTag(Type.TAG_String, "id", "pig")),
+						NBTag.makeCompoundTag(null, new NBTag(Type.TAG_String, "id", "cow"))));
+		// decode it, so that the lists of numbers are stored as arrays
+		root = NBTag.readNBTag(ByteBuffer.wrap(bytes(level)), false);
+		saver = new NBTIncrementalWriter();
+		saver.encode(root);
+	}
+
+	private static byte[] bytes(NBTag tag) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tag.write(out);
+		return out.toByteArray();
+	}
+
+	private void assertSavedAsWritten() throws IOException {
+		ByteBuffer saved = saver.encode(root);
+		byte[] b = new byte[saved.remaining()];
+		saved.get(b);
+		assertArrayEquals(bytes(root), b);
+	}
+
+	private NBTag member(String name) {
+		return root.findTagByName(name);
+	}
+
+	@Test
+	public void testUnchanged() throws IOException {
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testSetValue() throws IOException {
+		member("Time").setValue(2000L);
+		assertTrue(root.isDirty());
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testSetValueOfNestedTag() throws IOException {
+		List<NBTag> entities = (List<NBTag>) member("Entities").getValue();
+		entities.get(1).findTagByName("id").setValue("sheep");
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testAddAndRemoveTag() throws IOException {
+		root.addTag(new NBTag(Type.TAG_Long, "Seed", 42L));
+		assertSavedAsWritten();
+		root.removeTag("Name");
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testPutDirectly() throws IOException {
+		NBTag seed = new NBTag(Type.TAG_Long, "Seed", 42L);
+		((Map<String,NBTag>) root.getValue()).put("Seed", seed);
+		root.invalidateSize();
+		assertSavedAsWritten();
+		seed.setValue(43L);
+		assertTrue(root.isDirty());
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testSetValueOfListElement() throws IOException {
+		List<NBTag> heights = (List<NBTag>) member("Heights").getValue();
+		heights.get(0).setValue(99);
+		assertTrue(root.isDirty());
+		assertSavedAsWritten();
+		for(NBTag t : (List<NBTag>) member("Pos").getValue()){
+			t.setValue((Double) t.getValue() + 1);
+		}
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testWriteToListArray() throws IOException {
+		member("Heights").getIntList()[2] = 99;
+		member("Heights").invalidateSize();
+		assertSavedAsWritten();
+		member("Pos").getDoubleList()[0] = 7;
+		member("Pos").invalidateSize();
+		assertSavedAsWritten();
+	}
+
+	@Test
+	public void testReplaceList() throws IOException {
+		member("Heights").setValue(NBTag.makeListTag(null, 5, 6).getValue());
+		assertSavedAsWritten();
+		member("Pos").setValue(Type.TAG_Double);
+		assertSavedAsWritten();
+	}
+}
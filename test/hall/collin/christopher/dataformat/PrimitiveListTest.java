@@ -0,0 +1,84 @@
+package hall.collin.christopher.dataformat;
+
+import hall.collin.christopher.dataformat.NBTag.Type;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that lists of numbers keep their primitive array however they are
+ * accessed.
+ */
+public class PrimitiveListTest {
+
+	private static NBTag decoded(NBTag tag) throws IOException {
+		return NBTag.readNBTag(ByteBuffer.wrap(tag.toByteArray()), false);
+	}
+
+	@Test
+	public void testReadingKeepsArray() throws IOException {
+		NBTag list = decoded(NBTag.makeListTag("a", 1, 2, 3));
+		int[] array = list.getIntList();
+		int sum = 0;
+		for(NBTag t : (List<NBTag>) list.getValue()){
+			sum += (Integer) t.getValue();
+		}
+		assertEquals(6, sum);
+		assertSame(array, list.getIntList());
+		array[0] = 10;
+		assertEquals(10, ((List<NBTag>) list.getValue()).get(0).getValue());
+	}
+
+	@Test
+	public void testElementWritesThrough() throws IOException {
+		NBTag list = decoded(NBTag.makeListTag("a", 1L, 2L, 3L));
+		((List<NBTag>) list.getValue()).get(1).setValue(20L);
+		assertArrayEquals(new long[]{1, 20, 3}, list.getLongList());
+		assertArrayEquals(NBTag.makeListTag("a", 1L, 20L, 3L).toByteArray(), list.toByteArray());
+	}
+
+	@Test
+	public void testStructuralChanges() throws IOException {
+		NBTag list = decoded(NBTag.makeListTag("a", 1, 2, 3));
+		List<NBTag> elements = (List<NBTag>) list.getValue();
+		NBTag first = elements.get(0);
+		list.addTag(new NBTag(Type.TAG_Int, null, 4));
+		elements.add(0, new NBTag(Type.TAG_Int, null, 0));
+		elements.set(2, new NBTag(Type.TAG_Int, null, 22));
+		list.removeTag(3);
+		assertArrayEquals(new int[]{0, 1, 22, 4}, list.getIntList());
+		assertSame(list.getIntList(), list.getIntList());
+		assertEquals(5L + 4 * 4, list.serializedSize() - 4);
+		// an element returned before the list changed no longer writes through
+		first.setValue(100);
+		assertArrayEquals(new int[]{0, 1, 22, 4}, list.getIntList());
+		assertArrayEquals(NBTag.makeListTag("a", 0, 1, 22, 4).toByteArray(), list.toByteArray());
+	}
+
+	@Test
+	public void testRemoveElement() throws IOException {
+		NBTag list = decoded(NBTag.makeListTag("a", 1.5, 2.5));
+		List<NBTag> elements = (List<NBTag>) list.getValue();
+		list.removeSubTag(elements.get(0));
+		assertArrayEquals(NBTag.makeListTag("a", 2.5).toByteArray(), list.toByteArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongElementType() throws IOException {
+		NBTag list = decoded(NBTag.makeListTag("a", 1, 2, 3));
+		list.addTag(new NBTag(Type.TAG_Long, null, 4L));
+	}
+
+	@Test
+	public void testListOfTagsIsCopied() {
+		NBTag list = NBTag.makeListTag("a", new NBTag(Type.TAG_Int, null, 1), new NBTag(Type.TAG_Int, null, 2));
+		assertNotSame(list.getIntList(), list.getIntList());
+		assertArrayEquals(new int[]{1, 2}, list.getIntList());
+	}
+}